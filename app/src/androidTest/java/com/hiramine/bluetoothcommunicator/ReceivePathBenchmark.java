@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+// 受信経路の性能比較（MESSAGE_READ を Handler で受け取る従来の経路 と ReceiveRing）
+// 通信路はSimulatedTransportなので、Bluetoothデバイスは不要（Androidの実行環境は必要）。
+// 相手側から、先頭８バイトに送信時刻を入れた固定長のメッセージを送信し、読み込み側で組み立てて、次を計測する。
+// ・スループット：続けて送信した場合の、全メッセージを受け取るまでの速さ[MB/s]
+// ・待ち時間：間隔を空けて送信した場合の、送信から受け取りまでの時間（中央値、99パーセンタイル、最大）
+public class ReceivePathBenchmark
+{
+	// 結果
+	public static final class Result
+	{
+		public String name;
+		public double megabytesPerSecond;
+		public long   latencyP50Nanos;
+		public long   latencyP99Nanos;
+		public long   latencyMaxNanos;
+
+		@Override
+		public String toString()
+		{
+			return name + " : " + String.format( "%.1f", megabytesPerSecond ) + " MB/s"
+				   + ", latency p50=" + latencyP50Nanos / 1000 + "us"
+				   + ", p99=" + latencyP99Nanos / 1000 + "us"
+				   + ", max=" + latencyMaxNanos / 1000 + "us";
+		}
+	}
+
+	// メッセージの組み立てと計測（読み込み側のスレッドのみ）
+	private static final class Reassembler
+	{
+		private final int            mMessageSize;
+		private final long[]         mLatencies;
+		private final CountDownLatch mDone = new CountDownLatch( 1 );
+		private       int            mPosition = 0;    // メッセージ内の位置
+		private       long           mStamp    = 0;
+		private       int            mCount    = 0;
+
+		Reassembler( int messageSize, int messageCount )
+		{
+			mMessageSize = messageSize;
+			mLatencies = new long[messageCount];
+		}
+
+		void feed( byte[] buf, int offset, int length )
+		{
+			for( int i = offset; i < offset + length; i++ )
+			{
+				accept( buf[i] );
+			}
+		}
+
+		void feed( ByteBuffer buffer )
+		{
+			for( int i = buffer.position(); i < buffer.limit(); i++ )
+			{
+				accept( buffer.get( i ) );
+			}
+		}
+
+		private void accept( byte b )
+		{
+			if( 8 > mPosition )
+			{
+				mStamp = ( mStamp << 8 ) | ( b & 0xff );
+			}
+			if( mMessageSize == ++mPosition )
+			{
+				if( mCount < mLatencies.length )
+				{
+					mLatencies[mCount] = System.nanoTime() - mStamp;
+				}
+				mPosition = 0;
+				mStamp = 0;
+				if( mLatencies.length == ++mCount )
+				{
+					mDone.countDown();
+				}
+			}
+		}
+
+		boolean await( long timeoutMillis ) throws InterruptedException
+		{
+			return mDone.await( timeoutMillis, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	// 従来の経路の読み込み側（MESSAGE_READを受け取り、MainActivityと同じように読み込みバッファーにコピーする）
+	private static final class ReadHandler extends Handler
+	{
+		private final byte[]       mReadBuffer = new byte[1024];
+		private volatile Reassembler mReassembler;
+
+		ReadHandler( Looper looper )
+		{
+			super( looper );
+		}
+
+		@Override
+		public void handleMessage( Message msg )
+		{
+			Reassembler reassembler = mReassembler;
+			if( BluetoothService.MESSAGE_READ != msg.what || null == reassembler || 0 >= msg.arg1 )
+			{
+				return;
+			}
+			byte[] buf = (byte[])msg.obj;
+			System.arraycopy( buf, 0, mReadBuffer, 0, msg.arg1 );
+			reassembler.feed( mReadBuffer, 0, msg.arg1 );
+		}
+	}
+
+	// 定数
+	private static final long TIMEOUT_MILLIS        = 60000;
+	private static final int  LATENCY_MESSAGES      = 2000;
+	private static final long LATENCY_INTERVALNANOS = 200 * 1000;    // 待ち時間の計測時の送信間隔
+
+	// メンバー変数
+	private final int mMessageSize;
+	private final int mMessageCount;
+
+	// コンストラクタ
+	// messageSizeは８以上（先頭８バイトに送信時刻を入れる）。
+	public ReceivePathBenchmark( int messageSize, int messageCount )
+	{
+		mMessageSize = Math.max( 8, messageSize );
+		mMessageCount = messageCount;
+	}
+
+	// すべての経路の計測
+	public Result[] runAll() throws InterruptedException
+	{
+		return new Result[]{
+				run( "Handler", null ),
+				run( "Ring(blocking)", new ReceiveRing( ReceiveRing.DEFAULT_CAPACITY, ReceiveRing.WAIT_BLOCKING ) ),
+				run( "Ring(yielding)", new ReceiveRing( ReceiveRing.DEFAULT_CAPACITY, ReceiveRing.WAIT_YIELDING ) ),
+				run( "Ring(busyspin)", new ReceiveRing( ReceiveRing.DEFAULT_CAPACITY, ReceiveRing.WAIT_BUSYSPIN ) ),
+				run( "Ring(direct,blocking)", new ReceiveRing( ByteBuffer.allocateDirect( ReceiveRing.DEFAULT_CAPACITY ), ReceiveRing.WAIT_BLOCKING ) ) };
+	}
+
+	// １つの経路の計測（ringがnullなら、従来の経路）
+	// リングバッファーは接続ごとに使い捨てなので、スループット用と待ち時間用で、同じ設定のものを作り直す。
+	public Result run( String name, ReceiveRing ring ) throws InterruptedException
+	{
+		HandlerThread handlerThread = new HandlerThread( "ReceivePathBenchmark" );
+		handlerThread.start();
+		try
+		{
+			Result result = new Result();
+			result.name = name;
+
+			// スループット（続けて送信）
+			Reassembler throughput = new Reassembler( mMessageSize, mMessageCount );
+			long        startNanos = System.nanoTime();
+			measure( handlerThread.getLooper(), ring, throughput, 0 );
+			long elapsedNanos = System.nanoTime() - startNanos;
+			result.megabytesPerSecond = (double)mMessageSize * mMessageCount * 1000 / elapsedNanos;
+
+			// 待ち時間（間隔を空けて送信）
+			Reassembler latency = new Reassembler( mMessageSize, LATENCY_MESSAGES );
+			measure( handlerThread.getLooper(), copyOf( ring ), latency, LATENCY_INTERVALNANOS );
+			long[] latencies = latency.mLatencies.clone();
+			Arrays.sort( latencies );
+			result.latencyP50Nanos = latencies[latencies.length / 2];
+			result.latencyP99Nanos = latencies[latencies.length * 99 / 100];
+			result.latencyMaxNanos = latencies[latencies.length - 1];
+			return result;
+		}
+		finally
+		{
+			handlerThread.quit();
+		}
+	}
+
+	// 接続、送信、全メッセージの受け取り、切断
+	private void measure( Looper looper, final ReceiveRing ring, final Reassembler reassembler, long intervalNanos ) throws InterruptedException
+	{
+		ReadHandler        handler   = new ReadHandler( looper );
+		SimulatedTransport transport = new SimulatedTransport( new FaultInjector( 0 ), false );
+		BluetoothService   service   = new BluetoothService( null, handler, transport, new ConnectionScheduler.ThreadPerConnection() );
+		Thread             consumer  = null;
+		if( null == ring )
+		{
+			handler.mReassembler = reassembler;
+		}
+		else
+		{
+			service.setReceiveRing( ring );
+			consumer = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while( 0 <= ring.await() )
+						{
+							ByteBuffer slice = ring.peek();
+							int        count = slice.remaining();
+							reassembler.feed( slice );
+							ring.advance( count );
+						}
+					}
+					catch( InterruptedException e )
+					{
+						;    // 終了
+					}
+				}
+			}, "ReceivePathBenchmark-Consumer" );
+			consumer.start();
+		}
+
+		service.connect();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( BluetoothService.STATE_CONNECTED != service.getState() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+
+		// 相手側からの送信
+		int    messages = reassembler.mLatencies.length;
+		byte[] message  = new byte[mMessageSize];
+		try
+		{
+			long next = System.nanoTime();
+			for( int i = 0; i < messages; i++ )
+			{
+				if( 0 < intervalNanos )
+				{
+					while( System.nanoTime() < next )
+					{
+						LockSupport.parkNanos( next - System.nanoTime() );
+					}
+					next += intervalNanos;
+				}
+				long stamp = System.nanoTime();
+				for( int j = 0; j < 8; j++ )
+				{
+					message[j] = (byte)( stamp >>> ( 56 - 8 * j ) );
+				}
+				transport.writePeer( message, 0, message.length );
+			}
+			reassembler.await( TIMEOUT_MILLIS );
+		}
+		catch( IOException e )
+		{
+			;    // 切断された（計測できた分だけで結果を出す）
+		}
+
+		service.disconnect();
+		if( null != consumer )
+		{
+			consumer.join( TIMEOUT_MILLIS );
+		}
+	}
+
+	// 同じ設定の、新しいリングバッファー
+	private static ReceiveRing copyOf( ReceiveRing ring )
+	{
+		if( null == ring )
+		{
+			return null;
+		}
+		ByteBuffer buffer = ring.isDirect() ? ByteBuffer.allocateDirect( ring.getCapacity() ) : ByteBuffer.allocate( ring.getCapacity() );
+		return new ReceiveRing( buffer, ring.getWaitStrategy() );
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+// 受信経路の性能比較の実行（Handlerの経路と、ReceiveRingの各待ち方）。結果はログに出力する。
+@RunWith( AndroidJUnit4.class )
+public class ReceivePathBenchmarkTest
+{
+	// 定数
+	private static final int MESSAGE_SIZE  = 64;
+	private static final int MESSAGE_COUNT = 20000;
+
+	@Test( timeout = 600000 )
+	public void compareReceivePaths() throws Exception
+	{
+		ReceivePathBenchmark.Result[] results = new ReceivePathBenchmark( MESSAGE_SIZE, MESSAGE_COUNT ).runAll();
+		for( ReceivePathBenchmark.Result result : results )
+		{
+			Log.i( "ReceivePathBenchmark", result.toString() );
+
+			// 全メッセージを受け取れていること（途中で切断されると、待ち時間が記録されない分が0になる）
+			assertTrue( result.name, 0 < result.megabytesPerSecond );
+			assertTrue( result.name, 0 < result.latencyP50Nanos );
+			assertTrue( result.name, result.latencyP50Nanos <= result.latencyP99Nanos );
+			assertTrue( result.name, result.latencyP99Nanos <= result.latencyMaxNanos );
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+
+// バックグラウンドでのデバイス検索（DiscoverySchedulerを、BluetoothAdapterとメインスレッドで動かす）
+// ・購読者がいる間、周期的に検索する。アクティビティがポーズしていても、購読を解除するまで続ける。
+// ・検索していない間は、次の期限まで何もしない（タイマーは次の期限の１つだけ）。
+// ・ブロードキャストレシーバーは、アプリケーションのContextに登録する（アクティビティのライフサイクルに依存しない）。
+// ・すべてのメソッドは、メインスレッドから呼ぶこと。リスナーもメインスレッドで呼ばれる。
+public class BluetoothDiscovery implements DiscoveryScheduler.Radio
+{
+	// アプリで１つ（検索はBluetoothアダプタ全体の動作なので）
+	private static BluetoothDiscovery sInstance;
+
+	// メンバー変数
+	private final Context            mContext;
+	private final BluetoothAdapter   mBluetoothAdapter;
+	private final DiscoveryScheduler mScheduler;
+	private final Handler            mHandler = new Handler( Looper.getMainLooper() );
+	private       boolean            mReceiverRegistered = false;
+
+	// 次の期限の処理
+	private final Runnable mPollRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			reschedule();
+		}
+	};
+
+	// ブロードキャストレシーバー
+	private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver()
+	{
+		@Override
+		public void onReceive( Context context, Intent intent )
+		{
+			String action = intent.getAction();
+
+			// Bluetooth端末発見
+			if( BluetoothDevice.ACTION_FOUND.equals( action ) )
+			{
+				BluetoothDevice device = intent.getParcelableExtra( BluetoothDevice.EXTRA_DEVICE );
+				short           rssi   = intent.getShortExtra( BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE );
+				mScheduler.onDeviceFound( device.getAddress(), device.getName(), rssi );
+				reschedule();    // 消失の期限が変わる
+				return;
+			}
+			// Bluetooth端末検索終了
+			if( BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals( action ) )
+			{
+				mScheduler.onInquiryFinished();
+				reschedule();
+				return;
+			}
+		}
+	};
+
+	// インスタンスの取得
+	public static BluetoothDiscovery getInstance( Context context )
+	{
+		if( null == sInstance )
+		{
+			sInstance = new BluetoothDiscovery( context.getApplicationContext() );
+		}
+		return sInstance;
+	}
+
+	private BluetoothDiscovery( Context context )
+	{
+		mContext = context;
+		BluetoothManager bluetoothManager = (BluetoothManager)context.getSystemService( Context.BLUETOOTH_SERVICE );
+		mBluetoothAdapter = ( null != bluetoothManager ) ? bluetoothManager.getAdapter() : null;
+		mScheduler = new DiscoveryScheduler( DiscoveryScheduler.SYSTEM_CLOCK, this );
+	}
+
+	// 検索時間、周期、TTLの設定
+	public DiscoveryScheduler getScheduler()
+	{
+		return mScheduler;
+	}
+
+	// 購読の開始（最初の購読者で、周期的な検索を開始する）
+	public void subscribe( DiscoveryScheduler.DiscoveryListener listener )
+	{
+		if( !mReceiverRegistered )
+		{
+			IntentFilter filter = new IntentFilter( BluetoothDevice.ACTION_FOUND );
+			filter.addAction( BluetoothAdapter.ACTION_DISCOVERY_FINISHED );
+			mContext.registerReceiver( mBroadcastReceiver, filter );
+			mReceiverRegistered = true;
+		}
+		mScheduler.addListener( listener );
+		mScheduler.start();
+		reschedule();
+	}
+
+	// 購読の解除（購読者がいなくなったら、検索を停止する）
+	public void unsubscribe( DiscoveryScheduler.DiscoveryListener listener )
+	{
+		mScheduler.removeListener( listener );
+		if( mScheduler.hasListeners() )
+		{
+			return;
+		}
+		mScheduler.stop();
+		mHandler.removeCallbacks( mPollRunnable );
+		if( mReceiverRegistered )
+		{
+			mContext.unregisterReceiver( mBroadcastReceiver );
+			mReceiverRegistered = false;
+		}
+	}
+
+	// すぐに検索する
+	public void scanNow()
+	{
+		mScheduler.scanNow();
+		reschedule();
+	}
+
+	// 今回の検索の停止（次の周期には、また検索する）
+	public void cancelScan()
+	{
+		mScheduler.cancelWindow();
+		reschedule();
+	}
+
+	@Override
+	public boolean startInquiry()
+	{
+		if( null == mBluetoothAdapter || !mBluetoothAdapter.isEnabled() )
+		{
+			return false;
+		}
+		return mBluetoothAdapter.startDiscovery();    // 約 12 秒間の問い合わせのスキャンが行われる
+	}
+
+	@Override
+	public void cancelInquiry()
+	{
+		if( null != mBluetoothAdapter )
+		{
+			mBluetoothAdapter.cancelDiscovery();
+		}
+	}
+
+	// 時間になった処理を行い、次の期限に１つだけタイマーを設定する
+	private void reschedule()
+	{
+		mHandler.removeCallbacks( mPollRunnable );
+		long delay = mScheduler.poll();
+		if( DiscoveryScheduler.NO_DEADLINE != delay )
+		{
+			mHandler.postDelayed( mPollRunnable, delay );
+		}
+	}
+}
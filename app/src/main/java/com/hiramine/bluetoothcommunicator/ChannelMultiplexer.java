@@ -0,0 +1,384 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+// １つの接続の上に、複数の論理チャンネル（テレメトリー、設定、ログなど）を多重化する
+// ・フレームは、チャンネル番号（１バイト）、ペイロード長（２バイト、ビッグエンディアン）、ペイロード の順。
+// ・送信は、チャンネルごとのキューから、１フレーム（最大 setFramePayload()で設定したバイト数）ずつ巡回して取り出す。
+// 　そのため、大量に送信しているチャンネルがあっても、他のチャンネルの待ち時間は、チャンネル数×１フレーム分で済む。
+// ・送信キュー（OutboundQueue）には少しずつしか入れないので、巡回の順番が、そのまま送信の順番になる。
+// ・接続完了前に書き込んだ送信データは、溜めておき、接続完了後に送信する。
+// ・送信処理は、BluetoothServiceのスケジューラで実行する。
+// ・受信は、ReceiveListenerとして受信データを分解し、チャンネルごとのリスナーに、ペイロードをそのまま（コピーせずに）渡す。
+// 　１つのペイロードが、複数回に分けて渡されることがある（チャンネルごとのバイト列として扱うこと）。
+// ・同じ接続で、多重化しない送信（BluetoothService.write()）を混ぜないこと。
+// ・フロー制御は、制御バイトを送受信データに混ぜないもの（FlowControl.None）のみ使える（フレームが壊れるため）。
+public class ChannelMultiplexer implements ReceiveListener, BluetoothService.StateListener
+{
+	// 定数
+	public static final int CHANNEL_COUNT           = 256;
+	public static final int HEADER_LENGTH           = 3;
+	public static final int MAX_FRAMEPAYLOAD        = 0xffff;
+	public static final int DEFAULT_FRAMEPAYLOAD    = 256;
+	public static final int DEFAULT_MAXQUEUEDBYTES  = 64 * 1024;    // チャンネルごとに溜められるバイト数（超えると書き込み側を待たせる）
+	private static final int STATE_HEADER_CHANNEL   = 0;    // 受信中のフレームの部分
+	private static final int STATE_HEADER_LENGTHHI  = 1;
+	private static final int STATE_HEADER_LENGTHLO  = 2;
+	private static final int STATE_PAYLOAD          = 3;
+
+	// メンバー変数（送信）
+	private final BluetoothService        mService;
+	private final ArrayDeque<ByteBuffer>[] mSendQueues;
+	private final int[]   mQueuedBytes = new int[CHANNEL_COUNT];
+	private final AtomicLongArray mSentBytes = new AtomicLongArray( CHANNEL_COUNT );    // 送信処理のスレッドのみが書き込む
+	private       int     mFramePayload   = DEFAULT_FRAMEPAYLOAD;
+	private       int     mMaxQueuedBytes = DEFAULT_MAXQUEUEDBYTES;
+	private       int     mNextChannel    = 0;    // 次に巡回するチャンネル
+	private       int     mQueuedTotal    = 0;
+	private       boolean mConnected      = false;    // 接続完了したかどうか（それまでは、送信データを溜めておく）
+	private       boolean mClosed         = false;
+
+	// メンバー変数（受信）
+	private volatile ReceiveListener[][] mListeners = new ReceiveListener[CHANNEL_COUNT][];    // 変更時は作り直す（受信ごとに割り当てをしないため）
+	private final AtomicLongArray mReceivedBytes = new AtomicLongArray( CHANNEL_COUNT );    // 受信処理のスレッドのみが書き込む
+	private volatile long mDiscardedBytes = 0;    // リスナーのないチャンネルのペイロード（受信処理のスレッドのみが書き込む）
+	private int mReceiveState = STATE_HEADER_CHANNEL;    // 以下、受信処理のスレッドのみ
+	private int mReceiveChannel;
+	private int mReceiveRemaining;
+
+	// コンストラクタ
+	// BluetoothServiceのconnect()の前に作成し、start()すること。
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public ChannelMultiplexer( BluetoothService service )
+	{
+		mService = service;
+		mSendQueues = new ArrayDeque[CHANNEL_COUNT];
+		for( int channel = 0; channel < CHANNEL_COUNT; channel++ )
+		{
+			mSendQueues[channel] = new ArrayDeque<ByteBuffer>();
+		}
+	}
+
+	// １フレームのペイロードの最大バイト数の設定（小さいほど公平になり、ヘッダーの分だけ効率が下がる）
+	public synchronized void setFramePayload( int framePayload )
+	{
+		mFramePayload = Math.max( 1, Math.min( MAX_FRAMEPAYLOAD, framePayload ) );
+	}
+
+	// チャンネルごとに溜められるバイト数の設定
+	public synchronized void setMaxQueuedBytes( int maxQueuedBytes )
+	{
+		mMaxQueuedBytes = maxQueuedBytes;
+		notifyAll();
+	}
+
+	// チャンネルの受信リスナーの追加（リスナーは、受信処理のスレッドから呼ばれる）
+	public synchronized void addReceiveListener( int channel, ReceiveListener listener )
+	{
+		ReceiveListener[][] listeners = mListeners.clone();
+		ReceiveListener[]   current   = listeners[channel];
+		int                 count     = ( null == current ) ? 0 : current.length;
+		ReceiveListener[]   updated   = new ReceiveListener[count + 1];
+		if( 0 < count )
+		{
+			System.arraycopy( current, 0, updated, 0, count );
+		}
+		updated[count] = listener;
+		listeners[channel] = updated;
+		mListeners = listeners;
+	}
+
+	public synchronized void removeReceiveListener( int channel, ReceiveListener listener )
+	{
+		ReceiveListener[] current = mListeners[channel];
+		if( null == current )
+		{
+			return;
+		}
+		for( int i = 0; i < current.length; i++ )
+		{
+			if( current[i] == listener )
+			{
+				ReceiveListener[] updated = new ReceiveListener[current.length - 1];
+				System.arraycopy( current, 0, updated, 0, i );
+				System.arraycopy( current, i + 1, updated, i, current.length - i - 1 );
+				ReceiveListener[][] listeners = mListeners.clone();
+				listeners[channel] = ( 0 == updated.length ) ? null : updated;
+				mListeners = listeners;
+				return;
+			}
+		}
+	}
+
+	// 送信処理の開始と、受信データ、状態変化の受け取りの開始
+	// 送信処理は、BluetoothServiceのスケジューラで実行する（切断完了まで、１つ分を占有する）。
+	// フロー制御が制御バイトを送受信データに混ぜる場合は、IllegalStateException（setFlowControl()の後に呼ぶこと）。
+	// 戻り値は、開始できたかどうか（スケジューラに空きがなければ、何もせずにfalse。接続には影響しない）。
+	public boolean start()
+	{
+		FlowControl flowControl = mService.getFlowControl();
+		if( !flowControl.isTransparent() )
+		{
+			throw new IllegalStateException( "flow control is not transparent : " + flowControl.getClass().getSimpleName() );
+		}
+		mService.addReceiveListener( this );
+		mService.addStateListener( this );
+		try
+		{
+			mService.getScheduler().execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					send();
+				}
+			} );
+		}
+		catch( RejectedExecutionException e )
+		{
+			Log.e( "ChannelMultiplexer", "Rejected : execute()", e );
+			mService.removeStateListener( this );
+			mService.removeReceiveListener( this );
+			return false;
+		}
+		if( BluetoothService.STATE_CONNECTED == mService.getState() )
+		{    // 接続完了後に開始された
+			onStateChange( mService, BluetoothService.STATE_CONNECTED );
+		}
+		return true;
+	}
+
+	// 終了（溜まっている送信データは破棄する。切断完了でも終了する）
+	public synchronized void close()
+	{
+		mClosed = true;
+		for( int channel = 0; channel < CHANNEL_COUNT; channel++ )
+		{
+			mSendQueues[channel].clear();
+			mQueuedBytes[channel] = 0;
+		}
+		mQueuedTotal = 0;
+		notifyAll();
+	}
+
+	// チャンネルへの送信（非同期）
+	public boolean write( int channel, byte[] out ) throws InterruptedException
+	{
+		return write( channel, ByteBuffer.wrap( out ) );
+	}
+
+	// チャンネルへの送信（非同期。bufferのposition ～ limit を、コピーせずに送信する）
+	// チャンネルに溜まっているバイト数が上限を超えている間、待たされる。送信が終わるまで、内容を変更しないこと。
+	// 戻り値は、送信キューに入れられたかどうか（閉じられていたら、false）。
+	public synchronized boolean write( int channel, ByteBuffer buffer ) throws InterruptedException
+	{
+		if( !mClosed && BluetoothService.STATE_DISCONNECTED == mService.getState() )
+		{    // 切断完了の通知（状態通知用のスレッドから届く）より先に書き込まれた
+			close();
+		}
+		int length = buffer.remaining();
+		if( 0 == length )
+		{
+			return !mClosed;
+		}
+		while( !mClosed && 0 < mQueuedBytes[channel] && mQueuedBytes[channel] + length > mMaxQueuedBytes )
+		{
+			wait();
+		}
+		if( mClosed )
+		{
+			return false;
+		}
+		mSendQueues[channel].add( buffer.duplicate() );    // 送信済みの位置は、複製のpositionで管理する
+		mQueuedBytes[channel] += length;
+		mQueuedTotal += length;
+		notifyAll();
+		return true;
+	}
+
+	// チャンネルに溜まっているバイト数
+	public synchronized int getQueuedBytes( int channel )
+	{
+		return mQueuedBytes[channel];
+	}
+
+	// チャンネルの送信したバイト数（ヘッダーは含まない）
+	public long getSentBytes( int channel )
+	{
+		return mSentBytes.get( channel );
+	}
+
+	// チャンネルの受信したバイト数（ヘッダーは含まない）
+	public long getReceivedBytes( int channel )
+	{
+		return mReceivedBytes.get( channel );
+	}
+
+	// リスナーのないチャンネル宛てで、捨てたバイト数
+	public long getDiscardedBytes()
+	{
+		return mDiscardedBytes;
+	}
+
+	// 接続完了で送信を始め、切断完了で終了する
+	@Override
+	public void onStateChange( BluetoothService service, int state )
+	{
+		if( BluetoothService.STATE_CONNECTED == state )
+		{
+			synchronized( this )
+			{
+				mConnected = true;
+				notifyAll();
+			}
+		}
+		else if( BluetoothService.STATE_DISCONNECTED == state )
+		{
+			close();
+		}
+	}
+
+	// 受信データの分解（受信処理のスレッドから呼ばれる）
+	@Override
+	public void onReceive( byte[] buf, int offset, int length )
+	{
+		int end = offset + length;
+		int i   = offset;
+		while( i < end )
+		{
+			switch( mReceiveState )
+			{
+				case STATE_HEADER_CHANNEL:
+					mReceiveChannel = buf[i++] & 0xff;
+					mReceiveState = STATE_HEADER_LENGTHHI;
+					break;
+				case STATE_HEADER_LENGTHHI:
+					mReceiveRemaining = ( buf[i++] & 0xff ) << 8;
+					mReceiveState = STATE_HEADER_LENGTHLO;
+					break;
+				case STATE_HEADER_LENGTHLO:
+					mReceiveRemaining |= buf[i++] & 0xff;
+					mReceiveState = ( 0 < mReceiveRemaining ) ? STATE_PAYLOAD : STATE_HEADER_CHANNEL;
+					break;
+				case STATE_PAYLOAD:
+				{    // ペイロード（受信データ上の範囲のまま渡す）
+					int count = Math.min( end - i, mReceiveRemaining );
+					ReceiveListener[] listeners = mListeners[mReceiveChannel];
+					if( null == listeners )
+					{
+						mDiscardedBytes += count;
+					}
+					else
+					{
+						for( ReceiveListener listener : listeners )
+						{
+							listener.onReceive( buf, i, count );
+						}
+					}
+					mReceivedBytes.lazySet( mReceiveChannel, mReceivedBytes.get( mReceiveChannel ) + count );
+					i += count;
+					mReceiveRemaining -= count;
+					if( 0 == mReceiveRemaining )
+					{
+						mReceiveState = STATE_HEADER_CHANNEL;
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	// 送信処理（チャンネルを巡回して、１フレームずつ送信キューに入れる）
+	private void send()
+	{
+		OutboundQueue outboundQueue = mService.getOutboundQueue();
+		try
+		{
+			while( true )
+			{
+				int        channel;
+				ByteBuffer payload;
+				int        framePayload;
+				synchronized( this )
+				{
+					while( !mClosed && ( !mConnected || 0 == mQueuedTotal ) )
+					{    // 接続完了前は、書き込まれた送信データを取り出さずに待つ（BluetoothService.write()で捨てられるため）
+						wait();
+					}
+					if( mClosed )
+					{
+						return;
+					}
+					channel = nextChannel();
+					framePayload = mFramePayload;
+					ByteBuffer buffer = mSendQueues[channel].peek();
+					int        count  = Math.min( buffer.remaining(), framePayload );
+					payload = buffer.duplicate();
+					payload.limit( payload.position() + count );
+					buffer.position( buffer.position() + count );
+					if( !buffer.hasRemaining() )
+					{
+						mSendQueues[channel].poll();
+					}
+					mQueuedBytes[channel] -= count;
+					mQueuedTotal -= count;
+					notifyAll();    // チャンネルの空きを待っている書き込み側を起こす
+				}
+
+				int    count  = payload.remaining();
+				byte[] header = { (byte)channel, (byte)( count >> 8 ), (byte)count };
+				// 送信キューには、前のフレームがほぼ送信されてから入れる（巡回の順番どおりに送信するため）
+				if( !outboundQueue.awaitQueuedBytes( OutboundQueue.LANE_INTERACTIVE, framePayload ) )
+				{    // 切断された
+					return;
+				}
+				if( !mService.write( new ByteBuffer[]{ ByteBuffer.wrap( header ), payload }, OutboundQueue.LANE_INTERACTIVE ) )
+				{    // 切断された（送信していないので、数えない）
+					return;
+				}
+				mSentBytes.lazySet( channel, mSentBytes.get( channel ) + count );
+			}
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// 次に送信するチャンネル（送信データのあるチャンネルを、順番に巡回する）
+	private int nextChannel()
+	{
+		for( int i = 0; i < CHANNEL_COUNT; i++ )
+		{
+			int channel = ( mNextChannel + i ) % CHANNEL_COUNT;
+			if( !mSendQueues[channel].isEmpty() )
+			{
+				mNextChannel = ( channel + 1 ) % CHANNEL_COUNT;
+				return channel;
+			}
+		}
+		return mNextChannel;    // 呼び出し元で、送信データがあることを確認済み
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+// 接続の各段階にかかった時間
+public class ConnectTimings
+{
+	// 定数
+	public static final int PHASE_OPEN           = 0;    // ソケットの作成
+	public static final int PHASE_PREPARECONNECT = 1;    // 接続の準備（デバイス検索の停止）
+	public static final int PHASE_CONNECT        = 2;    // 接続（RFCOMMでは、SDPによるサービス検索を含む）
+	public static final int PHASE_FIRSTBYTE      = 3;    // 接続完了から最初の受信まで
+	public static final int PHASE_COUNT          = 4;
+
+	private static final String[] PHASE_NAMES = { "open", "prepareConnect", "connect", "firstByte" };
+
+	// メンバー変数
+	private final long[] mDurationNanos = new long[PHASE_COUNT];
+	private final long[] mStartNanos    = new long[PHASE_COUNT];
+
+	public ConnectTimings()
+	{
+		for( int phase = 0; phase < PHASE_COUNT; phase++ )
+		{
+			mDurationNanos[phase] = -1;
+		}
+	}
+
+	// 段階の開始
+	synchronized void start( int phase )
+	{
+		mStartNanos[phase] = System.nanoTime();
+	}
+
+	// 段階の終了
+	synchronized void end( int phase )
+	{
+		mDurationNanos[phase] = System.nanoTime() - mStartNanos[phase];
+	}
+
+	// 段階が終わったかどうか
+	public synchronized boolean isMeasured( int phase )
+	{
+		return 0 <= mDurationNanos[phase];
+	}
+
+	// 段階にかかった時間[ns]（終わっていなければ、-1）
+	public synchronized long getDurationNanos( int phase )
+	{
+		return mDurationNanos[phase];
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		for( int phase = 0; phase < PHASE_COUNT; phase++ )
+		{
+			if( 0 < phase )
+			{
+				builder.append( ", " );
+			}
+			builder.append( PHASE_NAMES[phase] ).append( " : " );
+			if( 0 <= mDurationNanos[phase] )
+			{
+				builder.append( mDurationNanos[phase] / 1000000.0 ).append( "ms" );
+			}
+			else
+			{
+				builder.append( "-" );
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+// １つの接続の診断情報（状態遷移、定期的な計測値、受信データ）を、ファイルに書き出す（事後の調査用）
+// ・形式は、１行に１レコードのJSON（NDJSON）。
+// ・受信処理のスレッドや状態遷移を行うスレッドは、キューに入れるだけで待たない（キューが一杯なら、捨てて数える）。
+// 　ファイルへの書き込みは、専用のスレッドで、まとめてバッファー付きで行う（ディスクが遅くても、通信は止まらない）。
+// ・ファイルは、サイズか経過時間で切り替える。DirectorySinkは、古いファイルから消して、ファイル数と合計サイズを抑える。
+// ・書き出し用の処理は、BluetoothServiceのスケジューラで実行する（スケジューラに空きがなければ、書き出さない）。
+// ・切断完了で、最後の計測値を書き出して終了する。
+//
+// {"t":時刻[ms],"type":"start","name":"..."}
+// {"t":時刻[ms],"type":"state","state":状態}
+// {"t":時刻[ms],"type":"metrics","rx":受信バイト数,"tx":送信バイト数,"txFrames":送信データ数,"queued":[制御,対話,大量データ],"dropped":捨てたレコード数}
+// {"t":時刻[ms],"type":"rx","hex":"受信データの16進数"}（受信データの記録を有効にした場合のみ）
+public class ConnectionExporter implements BluetoothService.StateListener, ReceiveListener
+{
+	// 書き出し先
+	public interface Sink
+	{
+		// ファイルを作成して開く
+		OutputStream open( String fileName ) throws IOException;
+	}
+
+	// ディレクトリーに書き出す
+	// ファイルを作成する前に、ディレクトリー内の古いファイル（.ndjson）から消して、
+	// ファイル数を maxFiles - 1 以下、合計サイズを maxTotalBytes 以下にする（作成するファイルを含めて、maxFiles以下になる）。
+	// 合計サイズは、作成するファイルの分（setRotation()のmaxFileBytes程度）だけ、maxTotalBytesを超えることがある。
+	public static class DirectorySink implements Sink
+	{
+		// 定数
+		public static final int  DEFAULT_MAXFILES      = 50;
+		public static final long DEFAULT_MAXTOTALBYTES = 16 * DEFAULT_MAXFILEBYTES;
+		private static final String EXTENSION = ".ndjson";
+
+		private final File mDirectory;
+		private final int  mMaxFiles;
+		private final long mMaxTotalBytes;
+
+		public DirectorySink( File directory )
+		{
+			this( directory, DEFAULT_MAXFILES, DEFAULT_MAXTOTALBYTES );
+		}
+
+		// コンストラクタ（残すファイル数と合計サイズの上限の指定あり）
+		public DirectorySink( File directory, int maxFiles, long maxTotalBytes )
+		{
+			mDirectory = directory;
+			mMaxFiles = Math.max( 1, maxFiles );
+			mMaxTotalBytes = maxTotalBytes;
+		}
+
+		@Override
+		public OutputStream open( String fileName ) throws IOException
+		{
+			if( !mDirectory.isDirectory() && !mDirectory.mkdirs() )
+			{
+				throw new IOException( "cannot create " + mDirectory );
+			}
+			deleteOldFiles();
+			return new FileOutputStream( new File( mDirectory, fileName ) );
+		}
+
+		// 古いファイルの削除（更新日時の古い順。同じなら、名前の順）
+		private void deleteOldFiles()
+		{
+			File[] files = mDirectory.listFiles();
+			if( null == files )
+			{
+				return;
+			}
+			ArrayList<File> exported   = new ArrayList<File>();
+			long            totalBytes = 0;
+			for( File file : files )
+			{
+				if( file.isFile() && file.getName().endsWith( EXTENSION ) )
+				{
+					exported.add( file );
+					totalBytes += file.length();
+				}
+			}
+			File[] sorted = exported.toArray( new File[exported.size()] );
+			Arrays.sort( sorted, new Comparator<File>()
+			{
+				@Override
+				public int compare( File lhs, File rhs )
+				{
+					long lhsModified = lhs.lastModified();
+					long rhsModified = rhs.lastModified();
+					if( lhsModified != rhsModified )
+					{
+						return ( lhsModified < rhsModified ) ? -1 : 1;
+					}
+					return lhs.getName().compareTo( rhs.getName() );
+				}
+			} );
+			int count = sorted.length;
+			for( File file : sorted )
+			{
+				if( count < mMaxFiles && totalBytes <= mMaxTotalBytes )
+				{
+					break;
+				}
+				long length = file.length();
+				if( file.delete() )
+				{
+					count--;
+					totalBytes -= length;
+				}
+				else
+				{
+					Log.e( "ConnectionExporter", "Failed : delete " + file );
+				}
+			}
+		}
+	}
+
+	// キューに入れるレコード
+	private static final class Record
+	{
+		static final int TYPE_STATE    = 0;
+		static final int TYPE_RECEIVED = 1;
+
+		final int    type;
+		final long   timeMillis;
+		final int    state;
+		final byte[] data;
+
+		Record( int type, long timeMillis, int state, byte[] data )
+		{
+			this.type = type;
+			this.timeMillis = timeMillis;
+			this.state = state;
+			this.data = data;
+		}
+	}
+
+	// 定数
+	public static final int  DEFAULT_QUEUECAPACITY     = 1024;
+	public static final long DEFAULT_SNAPSHOTINTERVAL  = 1000;    // 計測値の書き出し間隔[ms]
+	public static final long DEFAULT_MAXFILEBYTES      = 1024 * 1024;
+	public static final long DEFAULT_MAXFILEAGEMILLIS  = 60 * 60 * 1000;
+	private static final int WRITERBUFFERSIZE          = 8192;
+	private static final int BATCHSIZE                 = 256;    // １回にキューから取り出すレコードの数
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	// メンバー変数
+	private final Sink    mSink;
+	private final String  mName;    // ファイル名の先頭部分（接続ごと）
+	private final ArrayBlockingQueue<Record> mQueue;
+	private final AtomicLong mDroppedRecords = new AtomicLong();
+	private long    mSnapshotIntervalMillis = DEFAULT_SNAPSHOTINTERVAL;
+	private long    mMaxFileBytes           = DEFAULT_MAXFILEBYTES;
+	private long    mMaxFileAgeMillis       = DEFAULT_MAXFILEAGEMILLIS;
+	private boolean mCaptureReceived        = false;
+	private BluetoothService mService;
+	private volatile boolean mClosing = false;
+
+	// メンバー変数（書き出し用のスレッドのみ）
+	private Writer        mWriter;
+	private long          mFileBytes;
+	private long          mFileOpenedMillis;
+	private int           mFileIndex = 0;
+	private boolean       mFailed    = false;    // 書き込みに失敗したら、以降は捨てる
+	private final StringBuilder mLine = new StringBuilder( 256 );
+
+	// コンストラクタ
+	// nameは、ファイル名の先頭部分（デバイスアドレスなど。ファイル名に使えない文字は置き換える）。
+	public ConnectionExporter( Sink sink, String name )
+	{
+		this( sink, name, DEFAULT_QUEUECAPACITY );
+	}
+
+	// コンストラクタ（キューの容量の指定あり）
+	public ConnectionExporter( Sink sink, String name, int queueCapacity )
+	{
+		mSink = sink;
+		mName = name.replaceAll( "[^0-9A-Za-z_.-]", "-" );
+		mQueue = new ArrayBlockingQueue<Record>( queueCapacity );
+	}
+
+	// 計測値の書き出し間隔の設定（attach()の前に呼ぶこと）
+	public void setSnapshotIntervalMillis( long snapshotIntervalMillis )
+	{
+		mSnapshotIntervalMillis = snapshotIntervalMillis;
+	}
+
+	// ファイルを切り替えるサイズと経過時間の設定（attach()の前に呼ぶこと）
+	public void setRotation( long maxFileBytes, long maxFileAgeMillis )
+	{
+		mMaxFileBytes = maxFileBytes;
+		mMaxFileAgeMillis = maxFileAgeMillis;
+	}
+
+	// 受信データも記録するかどうかの設定（attach()の前に呼ぶこと。記録すると、受信ごとにコピーが発生する）
+	public void setCaptureReceived( boolean captureReceived )
+	{
+		mCaptureReceived = captureReceived;
+	}
+
+	// BluetoothServiceへの取り付けと、書き出しの開始（connect()の前に呼ぶこと）
+	// 書き出し用の処理は、BluetoothServiceのスケジューラで実行する（切断完了まで、１つ分を占有する）。
+	// 戻り値は、書き出しを開始できたかどうか（スケジューラに空きがなければ、取り付けずにfalse。接続には影響しない）。
+	public boolean attach( BluetoothService service )
+	{
+		mService = service;
+		service.addStateListener( this );
+		if( mCaptureReceived )
+		{
+			service.addReceiveListener( this );
+		}
+		try
+		{
+			service.getScheduler().execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					export();
+				}
+			} );
+		}
+		catch( RejectedExecutionException e )
+		{
+			Log.e( "ConnectionExporter", "Rejected : execute()", e );
+			service.removeStateListener( this );
+			service.removeReceiveListener( this );
+			return false;
+		}
+		return true;
+	}
+
+	// 書き出しの終了（残っているレコードを書き出してから終了する。切断完了でも終了する）
+	public void close()
+	{
+		mClosing = true;
+	}
+
+	// キューが一杯で捨てたレコードの数
+	public long getDroppedRecords()
+	{
+		return mDroppedRecords.get();
+	}
+
+	// 状態遷移（状態を変えたスレッドから呼ばれる。待たない）
+	@Override
+	public void onStateChange( BluetoothService service, int state )
+	{
+		enqueue( new Record( Record.TYPE_STATE, System.currentTimeMillis(), state, null ) );
+	}
+
+	// 受信データ（受信処理のスレッドから呼ばれる。待たない）
+	@Override
+	public void onReceive( byte[] buf, int offset, int length )
+	{
+		byte[] data = new byte[length];
+		System.arraycopy( buf, offset, data, 0, length );
+		enqueue( new Record( Record.TYPE_RECEIVED, System.currentTimeMillis(), 0, data ) );
+	}
+
+	private void enqueue( Record record )
+	{
+		if( !mQueue.offer( record ) )
+		{    // 一杯なら待たずに捨てる
+			mDroppedRecords.incrementAndGet();
+		}
+	}
+
+	// 書き出し（書き出し用のスレッド）
+	private void export()
+	{
+		ArrayList<Record> batch        = new ArrayList<Record>( BATCHSIZE );
+		long              nextSnapshot = System.currentTimeMillis();
+		boolean           finished     = false;
+		writeStart();
+		while( !finished )
+		{
+			long now = System.currentTimeMillis();
+			if( now >= nextSnapshot )
+			{
+				writeSnapshot( now );
+				nextSnapshot = now + mSnapshotIntervalMillis;
+			}
+			try
+			{
+				Record record = mQueue.poll( Math.max( 1, nextSnapshot - now ), TimeUnit.MILLISECONDS );
+				if( null != record )
+				{
+					batch.add( record );
+					mQueue.drainTo( batch, BATCHSIZE - 1 );
+				}
+			}
+			catch( InterruptedException e )
+			{
+				mClosing = true;
+			}
+			for( Record record : batch )
+			{
+				writeRecord( record );
+				if( Record.TYPE_STATE == record.type && BluetoothService.STATE_DISCONNECTED == record.state )
+				{
+					finished = true;
+				}
+			}
+			batch.clear();
+			if( ( mClosing || BluetoothService.STATE_DISCONNECTED == mService.getState() ) && mQueue.isEmpty() )
+			{    // 切断完了のレコードを、キューが一杯で捨てた場合も終了する
+				finished = true;
+			}
+			flush();    // まとめて書いた分を、１回で書き出す
+		}
+		writeSnapshot( System.currentTimeMillis() );
+		closeFile();
+		mService.removeStateListener( this );
+		mService.removeReceiveListener( this );
+	}
+
+	private void writeStart()
+	{
+		mLine.setLength( 0 );
+		mLine.append( "{\"t\":" ).append( System.currentTimeMillis() )
+			 .append( ",\"type\":\"start\",\"name\":\"" ).append( mName ).append( "\"}" );
+		writeLine();
+	}
+
+	private void writeSnapshot( long now )
+	{
+		mLine.setLength( 0 );
+		mLine.append( "{\"t\":" ).append( now )
+			 .append( ",\"type\":\"metrics\",\"rx\":" ).append( mService.getBytesReceived() )
+			 .append( ",\"tx\":" ).append( mService.getBytesSent() )
+			 .append( ",\"txFrames\":" ).append( mService.getFramesSent() )
+			 .append( ",\"queued\":[" );
+		OutboundQueue outboundQueue = mService.getOutboundQueue();
+		for( int lane = 0; lane < OutboundQueue.LANE_COUNT; lane++ )
+		{
+			mLine.append( ( 0 < lane ) ? "," : "" ).append( outboundQueue.getQueuedBytes( lane ) );
+		}
+		mLine.append( "],\"dropped\":" ).append( mDroppedRecords.get() ).append( '}' );
+		writeLine();
+	}
+
+	private void writeRecord( Record record )
+	{
+		mLine.setLength( 0 );
+		mLine.append( "{\"t\":" ).append( record.timeMillis );
+		if( Record.TYPE_STATE == record.type )
+		{
+			mLine.append( ",\"type\":\"state\",\"state\":" ).append( record.state ).append( '}' );
+		}
+		else
+		{
+			mLine.append( ",\"type\":\"rx\",\"hex\":\"" );
+			for( byte b : record.data )
+			{
+				mLine.append( HEX[( b >> 4 ) & 0x0f] ).append( HEX[b & 0x0f] );
+			}
+			mLine.append( "\"}" );
+		}
+		writeLine();
+	}
+
+	// mLineを１行として書く（バッファーに溜めるだけで、書き出しはflush()で行う）
+	private void writeLine()
+	{
+		if( mFailed )
+		{
+			return;
+		}
+		mLine.append( '\n' );
+		try
+		{
+			long now = System.currentTimeMillis();
+			if( null != mWriter && ( mFileBytes >= mMaxFileBytes || now - mFileOpenedMillis >= mMaxFileAgeMillis ) )
+			{    // ファイルの切り替え
+				mWriter.close();
+				mWriter = null;
+			}
+			if( null == mWriter )
+			{
+				String fileName = mName + "-" + now + "-" + ( mFileIndex++ ) + ".ndjson";
+				mWriter = new BufferedWriter( new OutputStreamWriter( mSink.open( fileName ), "UTF-8" ), WRITERBUFFERSIZE );
+				mFileBytes = 0;
+				mFileOpenedMillis = now;
+			}
+			mWriter.append( mLine );
+			mFileBytes += mLine.length();    // ASCIIのみなので、文字数＝バイト数
+		}
+		catch( IOException e )
+		{
+			fail( e );
+		}
+	}
+
+	private void flush()
+	{
+		if( mFailed || null == mWriter )
+		{
+			return;
+		}
+		try
+		{
+			mWriter.flush();
+		}
+		catch( IOException e )
+		{
+			fail( e );
+		}
+	}
+
+	private void closeFile()
+	{
+		if( null == mWriter )
+		{
+			return;
+		}
+		try
+		{
+			mWriter.close();
+		}
+		catch( IOException e )
+		{
+			Log.e( "ConnectionExporter", "Failed : mWriter.close()", e );
+		}
+		mWriter = null;
+	}
+
+	private void fail( IOException e )
+	{
+		Log.e( "ConnectionExporter", "Failed : export", e );
+		mFailed = true;    // 以降のレコードは、キューから取り出して捨てる（通信側は待たせない）
+		closeFile();
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 接続処理（BluetoothServiceの接続時処理）を、どのスレッドで実行するかを決めるスケジューラ
+public interface ConnectionScheduler
+{
+	// 接続時処理の実行開始
+	// （接続時処理は、切断されるまで戻らない長時間の処理）
+	// すぐに実行を開始できない場合（上限に達している、終了済み）は、待たせずにRejectedExecutionExceptionを投げる。
+	void execute( Runnable task );
+
+	// スケジューラの終了（実行中の接続時処理は、そのまま最後まで実行される）
+	void shutdown();
+
+	// 接続ごとに専用のスレッドを作成するスケジューラ（従来の動作）
+	class ThreadPerConnection implements ConnectionScheduler
+	{
+		private final AtomicInteger mThreadCount = new AtomicInteger();
+
+		@Override
+		public void execute( Runnable task )
+		{
+			Thread thread = new Thread( task, "BluetoothService-Connection-" + mThreadCount.incrementAndGet() );
+			thread.start();
+		}
+
+		@Override
+		public void shutdown()
+		{
+			;    // 何もしない（スレッドは接続ごとに終了する）
+		}
+	}
+
+	// 複数の接続で、上限付きのスレッドプールを共有するスケジューラ
+	// 接続時処理は切断されるまでスレッドを占有するので、キューで待たせると、前の接続が切断されるまで開始されない。
+	// そのため、同時に実行する処理の数が上限に達していたら、execute()はRejectedExecutionExceptionを投げる
+	// （BluetoothServiceは、接続失敗にする）。
+	// １つの接続で、接続時処理と送信処理の２つを実行する（ConnectionExporter、ChannelMultiplexerを使う場合は、それぞれ１つ増える）。
+	class SharedExecutor implements ConnectionScheduler
+	{
+		private final ExecutorService mExecutorService;
+		private final int             mMaxTasks;
+		private final AtomicInteger   mRunningTasks = new AtomicInteger();
+
+		// コンストラクタ（maxThreadsは、同時に実行する処理の数の上限）
+		public SharedExecutor( int maxThreads )
+		{
+			final AtomicInteger threadCount = new AtomicInteger();
+			ThreadFactory threadFactory = new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( Runnable runnable )
+				{
+					return new Thread( runnable, "BluetoothService-Executor-" + threadCount.incrementAndGet() );
+				}
+			};
+			// 上限はmRunningTasksで数えるので、プール自体は、空いているスレッドがなければ作成する
+			// （終わった直後のスレッドが、次の処理を受け取れる状態になる前でも、拒否しないため）
+			mExecutorService = new ThreadPoolExecutor( 0, Integer.MAX_VALUE,
+													   60L, TimeUnit.SECONDS,    // 接続がないときはスレッドを残さない
+													   new SynchronousQueue<Runnable>(),
+													   threadFactory );
+			mMaxTasks = maxThreads;
+		}
+
+		@Override
+		public void execute( final Runnable task )
+		{
+			if( mMaxTasks < mRunningTasks.incrementAndGet() )
+			{
+				mRunningTasks.decrementAndGet();
+				throw new RejectedExecutionException( "all " + mMaxTasks + " threads are in use" );
+			}
+			try
+			{
+				mExecutorService.execute( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							task.run();
+						}
+						finally
+						{
+							mRunningTasks.decrementAndGet();
+						}
+					}
+				} );
+			}
+			catch( RejectedExecutionException e )
+			{    // 終了済み
+				mRunningTasks.decrementAndGet();
+				throw e;
+			}
+		}
+
+		@Override
+		public void shutdown()
+		{
+			mExecutorService.shutdown();
+		}
+
+		// 実行中の処理の数
+		public int getRunningTasks()
+		{
+			return mRunningTasks.get();
+		}
+	}
+
+	// 仮想スレッドで実行するスケジューラ
+	// （仮想スレッドをサポートしないランタイム（Androidを含む）では、接続ごとの専用スレッドで実行する）
+	class VirtualThread implements ConnectionScheduler
+	{
+		private final Method              mStartVirtualThread;
+		private final ConnectionScheduler mFallback = new ThreadPerConnection();
+
+		// コンストラクタ
+		public VirtualThread()
+		{
+			Method method;
+			try
+			{
+				method = Thread.class.getMethod( "startVirtualThread", Runnable.class );
+			}
+			catch( NoSuchMethodException e )
+			{    // 仮想スレッド非サポート
+				method = null;
+			}
+			mStartVirtualThread = method;
+		}
+
+		// 仮想スレッドをサポートしているかどうか
+		public boolean isSupported()
+		{
+			return null != mStartVirtualThread;
+		}
+
+		@Override
+		public void execute( Runnable task )
+		{
+			if( null == mStartVirtualThread )
+			{
+				mFallback.execute( task );
+				return;
+			}
+			try
+			{
+				mStartVirtualThread.invoke( null, task );
+			}
+			catch( Exception e )
+			{    // 呼び出せなかった場合は、専用スレッドで実行
+				mFallback.execute( task );
+			}
+		}
+
+		@Override
+		public void shutdown()
+		{
+			;    // 何もしない（スレッドは接続ごとに終了する）
+		}
+	}
+}
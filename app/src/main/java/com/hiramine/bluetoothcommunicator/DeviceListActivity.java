@@ -17,12 +17,9 @@ package com.hiramine.bluetoothcommunicator;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -42,18 +39,18 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
 {
 	static class DeviceListAdapter extends BaseAdapter
 	{
-		private ArrayList<BluetoothDevice> mDeviceList;
-		private LayoutInflater             mInflator;
+		private ArrayList<DiscoveryScheduler.Device> mDeviceList;
+		private LayoutInflater                       mInflator;
 
 		public DeviceListAdapter( Activity activity )
 		{
 			super();
-			mDeviceList = new ArrayList<BluetoothDevice>();
+			mDeviceList = new ArrayList<DiscoveryScheduler.Device>();
 			mInflator = activity.getLayoutInflater();
 		}
 
 		// リストへの追加
-		public void addDevice( BluetoothDevice device )
+		public void addDevice( DiscoveryScheduler.Device device )
 		{
 			if( !mDeviceList.contains( device ) )
 			{    // 加えられていなければ加える
@@ -62,6 +59,15 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
 			}
 		}
 
+		// リストからの削除
+		public void removeDevice( DiscoveryScheduler.Device device )
+		{
+			if( mDeviceList.remove( device ) )
+			{
+				notifyDataSetChanged();    // ListViewの更新
+			}
+		}
+
 		// リストのクリア
 		public void clear()
 		{
@@ -111,8 +117,8 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
 				viewHolder = (ViewHolder)convertView.getTag();
 			}
 
-			BluetoothDevice device     = mDeviceList.get( position );
-			String          deviceName = device.getName();
+			DiscoveryScheduler.Device device = mDeviceList.get( position );
+			String deviceName = device.getName();
 			if( null != deviceName && 0 < deviceName.length() )
 			{
 				viewHolder.deviceName.setText( deviceName );
@@ -133,48 +139,39 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
 	public static final  String EXTRAS_DEVICE_ADDRESS   = "DEVICE_ADDRESS";
 
 	// メンバー変数
-	private BluetoothAdapter  mBluetoothAdapter;        // BluetoothAdapter : Bluetooth処理で必要
-	private DeviceListAdapter mDeviceListAdapter;    // リストビューの内容
+	private BluetoothAdapter   mBluetoothAdapter;        // BluetoothAdapter : Bluetooth処理で必要
+	private BluetoothDiscovery mBluetoothDiscovery;    // バックグラウンドでのデバイス検索
+	private DeviceListAdapter  mDeviceListAdapter;    // リストビューの内容
 	private boolean mScanning = false;                // スキャン中かどうかのフラグ
 
-	// ブロードキャストレシーバー
-	private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver()
+	// デバイス検索結果のリスナー（メインスレッドで呼ばれる）
+	// 前回の検索結果も含めて逐次通知されるので、リストは空にせず、追加と削除だけ行う。
+	private DiscoveryScheduler.DiscoveryListener mDiscoveryListener = new DiscoveryScheduler.DiscoveryListener()
 	{
 		@Override
-		public void onReceive( Context context, Intent intent )
+		public void onDeviceEvent( int event, DiscoveryScheduler.Device device )
 		{
-			String action = intent.getAction();
-
-			// Bluetooth端末発見
-			if( BluetoothDevice.ACTION_FOUND.equals( action ) )
-			{
-				final BluetoothDevice device = intent.getParcelableExtra( BluetoothDevice.EXTRA_DEVICE );
-				runOnUiThread( new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						mDeviceListAdapter.addDevice( device );
-					}
-				} );
-				return;
-			}
-			// Bluetooth端末検索終了
-			if( BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals( action ) )
+			switch( event )
 			{
-				runOnUiThread( new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						mScanning = false;
-						// メニューの更新
-						invalidateOptionsMenu();
-					}
-				} );
-				return;
+				case DiscoveryScheduler.EVENT_ADDED:
+					mDeviceListAdapter.addDevice( device );
+					break;
+				case DiscoveryScheduler.EVENT_UPDATED:
+					mDeviceListAdapter.notifyDataSetChanged();    // 名前の変化をListViewに反映
+					break;
+				case DiscoveryScheduler.EVENT_EXPIRED:
+					mDeviceListAdapter.removeDevice( device );
+					break;
 			}
 		}
+
+		@Override
+		public void onInquiryStateChange( boolean inquiring )
+		{
+			mScanning = inquiring;
+			// メニューの更新
+			invalidateOptionsMenu();
+		}
 	};
 
 	@Override
@@ -201,36 +198,50 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
 			finish();    // アプリ終了宣言
 			return;
 		}
+
+		mBluetoothDiscovery = BluetoothDiscovery.getInstance( this );
 	}
 
-	// 初回表示時、および、ポーズからの復帰時
+	// 表示開始時
+	// 周期的な検索の範囲は、このデバイスの選択画面が見えている間（画面を開いたまま他のアプリに切り替えたら、検索も止める）。
+	// ポーズ中（ダイアログの表示中など）は、検索を続け、結果はリストに反映し続ける。
 	@Override
-	protected void onResume()
+	protected void onStart()
 	{
-		super.onResume();
+		super.onStart();
 
-		// デバイスのBluetooth機能の有効化要求
-		requestBluetoothFeature();
+		// デバイス検索結果の購読開始（検索済みのデバイスは、購読開始時に通知される）
+		if( null != mBluetoothDiscovery )
+		{
+			mBluetoothDiscovery.subscribe( mDiscoveryListener );
+		}
+	}
 
-		// ブロードキャストレシーバーの登録
-		registerReceiver( mBroadcastReceiver, new IntentFilter( BluetoothDevice.ACTION_FOUND ) );
-		registerReceiver( mBroadcastReceiver, new IntentFilter( BluetoothAdapter.ACTION_DISCOVERY_FINISHED ) );
+	// 表示終了時
+	@Override
+	protected void onStop()
+	{
+		super.onStop();
 
-		// スキャン開始
-		startScan();
+		// デバイス検索結果の購読解除（購読者がいなくなれば、検索は停止する）
+		if( null != mBluetoothDiscovery )
+		{
+			mBluetoothDiscovery.unsubscribe( mDiscoveryListener );
+		}
+		// 購読していない間に消えたデバイスの通知は届かないので、リストを空にする（次の購読開始時に、検索済みのデバイスが通知される）
+		mDeviceListAdapter.clear();
 	}
 
-	// 別のアクティビティ（か別のアプリ）に移行したことで、バックグラウンドに追いやられた時
+	// 初回表示時、および、ポーズからの復帰時
 	@Override
-	protected void onPause()
+	protected void onResume()
 	{
-		super.onPause();
+		super.onResume();
 
-		// スキャンの停止
-		stopScan();
+		// デバイスのBluetooth機能の有効化要求
+		requestBluetoothFeature();
 
-		// ブロードキャストレシーバーの登録解除
-		unregisterReceiver( mBroadcastReceiver );
+		// 周期的な検索は、onStart()での購読開始から続いているので、ここでは開始しない。
 	}
 
 	// デバイスのBluetooth機能の有効化要求
@@ -258,30 +269,23 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
 					finish();    // アプリ終了宣言
 					return;
 				}
+				// 有効になったので、次の周期を待たずに検索する
+				startScan();
 				break;
 		}
 		super.onActivityResult( requestCode, resultCode, data );
 	}
 
-	// スキャンの開始
+	// スキャンの開始（次の周期を待たずに検索する。リストは空にせず、見つからなくなったデバイスはTTL経過で消える）
 	private void startScan()
 	{
-		// リストビューの内容を空にする。
-		mDeviceListAdapter.clear();
-
-		// スキャンの開始
-		mScanning = true;
-		mBluetoothAdapter.startDiscovery();    // 約 12 秒間の問い合わせのスキャンが行われる
-
-		// メニューの更新
-		invalidateOptionsMenu();
+		mBluetoothDiscovery.scanNow();    // メニューの更新は、検索状態の変化の通知で行う
 	}
 
-	// スキャンの停止
+	// スキャンの停止（今回の検索のみ。次の周期には、また検索する）
 	private void stopScan()
 	{
-		// スキャンの停止
-		mBluetoothAdapter.cancelDiscovery();
+		mBluetoothDiscovery.cancelScan();
 	}
 
 	// リストビューのアイテムクリック時の処理
@@ -289,7 +293,7 @@ public class DeviceListActivity extends AppCompatActivity implements AdapterView
 	public void onItemClick( AdapterView<?> parent, View view, int position, long id )
 	{
 		// クリックされたアイテムの取得
-		BluetoothDevice device = (BluetoothDevice)mDeviceListAdapter.getItem( position );
+		DiscoveryScheduler.Device device = (DiscoveryScheduler.Device)mDeviceListAdapter.getItem( position );
 		if( null == device )
 		{
 			return;
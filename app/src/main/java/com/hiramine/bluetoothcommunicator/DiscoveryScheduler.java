@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// デバイス検索の周期実行と、見つかったデバイスの管理
+// ・周期（period）ごとに、検索時間（window）だけ検索し、それ以外の時間は何もしない（無線とCPUを休ませる）。
+// ・見つかったデバイスの追加、更新、消失（TTLの間見つからなかった）を、購読者に逐次通知する。
+// ・Androidには依存しない（時計と検索の開始、停止を差し替えられる）ので、JVM上で、偽の時計と合成した検索結果で確認できる。
+// ・自分ではスレッドもタイマーも持たない。poll()が返す時間の後に、またpoll()を呼ぶこと（BluetoothDiscoveryが行う）。
+// ・すべてのメソッドは、同じスレッド（Androidではメインスレッド）から呼ぶこと。リスナーもそのスレッドで呼ばれる。
+public class DiscoveryScheduler
+{
+	// 時計
+	public interface Clock
+	{
+		long nowMillis();
+	}
+
+	// 検索の開始、停止（Androidでは、BluetoothAdapterのstartDiscovery()、cancelDiscovery()）
+	public interface Radio
+	{
+		// 戻り値は、開始できたかどうか。
+		boolean startInquiry();
+
+		void cancelInquiry();
+	}
+
+	// 検索結果のリスナー
+	public interface DiscoveryListener
+	{
+		// デバイスの追加、更新、消失（eventは EVENT_ADDED、EVENT_UPDATED、EVENT_EXPIRED のいずれか）
+		void onDeviceEvent( int event, Device device );
+
+		// 検索中かどうかの変化
+		void onInquiryStateChange( boolean inquiring );
+	}
+
+	// 見つかったデバイス
+	public static final class Device
+	{
+		private final String mAddress;
+		private       String mName;
+		private       int    mRssi;
+		private final long   mFirstSeenMillis;
+		private       long   mLastSeenMillis;
+
+		Device( String address, String name, int rssi, long nowMillis )
+		{
+			mAddress = address;
+			mName = name;
+			mRssi = rssi;
+			mFirstSeenMillis = nowMillis;
+			mLastSeenMillis = nowMillis;
+		}
+
+		public String getAddress()
+		{
+			return mAddress;
+		}
+
+		// 名前（不明の場合は、null）
+		public String getName()
+		{
+			return mName;
+		}
+
+		// 受信信号強度[dBm]（不明の場合は、RSSI_UNKNOWN）
+		public int getRssi()
+		{
+			return mRssi;
+		}
+
+		public long getFirstSeenMillis()
+		{
+			return mFirstSeenMillis;
+		}
+
+		public long getLastSeenMillis()
+		{
+			return mLastSeenMillis;
+		}
+	}
+
+	// 定数
+	public static final int EVENT_ADDED   = 0;
+	public static final int EVENT_UPDATED = 1;    // 名前か受信信号強度が変わった
+	public static final int EVENT_EXPIRED = 2;    // TTLの間、見つからなかった
+
+	public static final int  RSSI_UNKNOWN         = Short.MIN_VALUE;
+	public static final long NO_DEADLINE          = -1;    // poll()の戻り値（次に呼ぶ必要がない）
+	public static final long DEFAULT_WINDOWMILLIS = 12000;    // 検索時間（Androidの検索１回分は約12秒）
+	public static final long DEFAULT_PERIODMILLIS = 60000;
+	public static final long DEFAULT_TTLMILLIS    = 3 * DEFAULT_PERIODMILLIS;
+
+	// 単調増加の時計（端末の時刻設定の変更の影響を受けない）
+	public static final Clock SYSTEM_CLOCK = new Clock()
+	{
+		@Override
+		public long nowMillis()
+		{
+			return System.nanoTime() / 1000000;
+		}
+	};
+
+	// メンバー変数
+	private final Clock mClock;
+	private final Radio mRadio;
+	private final LinkedHashMap<String, Device> mDevices = new LinkedHashMap<String, Device>();    // 見つかった順
+	private final CopyOnWriteArrayList<DiscoveryListener> mListeners = new CopyOnWriteArrayList<DiscoveryListener>();
+	private long    mWindowMillis = DEFAULT_WINDOWMILLIS;
+	private long    mPeriodMillis = DEFAULT_PERIODMILLIS;
+	private long    mTtlMillis    = DEFAULT_TTLMILLIS;
+	private boolean mRunning      = false;
+	private boolean mInquiring    = false;
+	private long    mWindowStartMillis;    // 検索を開始した時刻
+	private long    mNextWindowMillis;    // 次に検索を開始する時刻
+
+	// コンストラクタ
+	public DiscoveryScheduler( Clock clock, Radio radio )
+	{
+		mClock = clock;
+		mRadio = radio;
+	}
+
+	// 検索時間と周期の設定
+	public void setDutyCycle( long windowMillis, long periodMillis )
+	{
+		mWindowMillis = windowMillis;
+		mPeriodMillis = Math.max( windowMillis, periodMillis );
+	}
+
+	// 見つからなくなったデバイスを消失とみなすまでの時間の設定
+	// （周期より短いと、検索していない間に消失してしまうので、周期の数倍にすること）
+	public void setTtlMillis( long ttlMillis )
+	{
+		mTtlMillis = ttlMillis;
+	}
+
+	// リスナーの追加（見つかっているデバイスは、EVENT_ADDEDとして、すぐに通知する）
+	public void addListener( DiscoveryListener listener )
+	{
+		mListeners.add( listener );
+		for( Device device : mDevices.values() )
+		{
+			listener.onDeviceEvent( EVENT_ADDED, device );
+		}
+		listener.onInquiryStateChange( mInquiring );
+	}
+
+	public void removeListener( DiscoveryListener listener )
+	{
+		mListeners.remove( listener );
+	}
+
+	public boolean hasListeners()
+	{
+		return !mListeners.isEmpty();
+	}
+
+	// 周期実行の開始（最初の検索は、次のpoll()で開始する）
+	public void start()
+	{
+		if( mRunning )
+		{
+			return;
+		}
+		mRunning = true;
+		mNextWindowMillis = mClock.nowMillis();
+	}
+
+	// 周期実行の停止（検索中なら、検索も停止する。見つかったデバイスは残す）
+	public void stop()
+	{
+		mRunning = false;
+		cancelWindow();
+	}
+
+	// すぐに検索を開始させる（次のpoll()で開始する。検索中なら何もしない）
+	public void scanNow()
+	{
+		if( !mInquiring )
+		{
+			mNextWindowMillis = mClock.nowMillis();
+		}
+	}
+
+	// 今回の検索の停止（周期実行は続ける。次の検索は、次の周期）
+	public void cancelWindow()
+	{
+		if( !mInquiring )
+		{
+			return;
+		}
+		mRadio.cancelInquiry();
+		finishWindow();
+	}
+
+	public boolean isRunning()
+	{
+		return mRunning;
+	}
+
+	public boolean isInquiring()
+	{
+		return mInquiring;
+	}
+
+	// 見つかっているデバイスの数
+	public int getDeviceCount()
+	{
+		return mDevices.size();
+	}
+
+	// 時間になった処理（消失の判定、検索の終了、検索の開始）を行う。
+	// 戻り値は、次にpoll()を呼ぶまでの時間[ms]（呼ぶ必要がなければ、NO_DEADLINE）。
+	public long poll()
+	{
+		long now = mClock.nowMillis();
+
+		// 消失の判定
+		expireDevices( now );
+
+		// 検索時間の終了
+		if( mInquiring && now >= mWindowStartMillis + mWindowMillis )
+		{
+			cancelWindow();
+		}
+
+		// 検索の開始
+		if( mRunning && !mInquiring && now >= mNextWindowMillis )
+		{
+			mWindowStartMillis = now;
+			if( mRadio.startInquiry() )
+			{
+				setInquiring( true );
+			}
+			else
+			{    // 開始できなかった（Bluetoothが無効など）。次の周期にもう一度試す。
+				mNextWindowMillis = now + mPeriodMillis;
+			}
+		}
+
+		// 次の期限（検索の終了か開始と、最も早い消失のうち、早いほう）
+		long deadline = NO_DEADLINE;
+		if( mInquiring )
+		{
+			deadline = mWindowStartMillis + mWindowMillis;
+		}
+		else if( mRunning )
+		{
+			deadline = mNextWindowMillis;
+		}
+		for( Device device : mDevices.values() )
+		{
+			long expiry = device.mLastSeenMillis + mTtlMillis;
+			if( NO_DEADLINE == deadline || expiry < deadline )
+			{
+				deadline = expiry;
+			}
+		}
+		return ( NO_DEADLINE == deadline ) ? NO_DEADLINE : Math.max( 0, deadline - now );
+	}
+
+	// デバイスが見つかった（nameとrssiは、不明なら null と RSSI_UNKNOWN）
+	// 他のアプリが開始した検索の結果も受け付ける。
+	public void onDeviceFound( String address, String name, int rssi )
+	{
+		long   now    = mClock.nowMillis();
+		Device device = mDevices.get( address );
+		if( null == device )
+		{
+			device = new Device( address, name, rssi, now );
+			mDevices.put( address, device );
+			notifyDeviceEvent( EVENT_ADDED, device );
+			return;
+		}
+		device.mLastSeenMillis = now;
+		boolean changed = false;
+		if( null != name && !name.equals( device.mName ) )
+		{    // 名前は、不明になった場合は前の名前のままにする
+			device.mName = name;
+			changed = true;
+		}
+		if( RSSI_UNKNOWN != rssi && rssi != device.mRssi )
+		{
+			device.mRssi = rssi;
+			changed = true;
+		}
+		if( changed )
+		{
+			notifyDeviceEvent( EVENT_UPDATED, device );
+		}
+	}
+
+	// 検索が終わった（検索時間の前に、Bluetooth側で終わった場合や、他のアプリに停止された場合）
+	public void onInquiryFinished()
+	{
+		if( mInquiring )
+		{
+			finishWindow();
+		}
+	}
+
+	private void finishWindow()
+	{
+		mNextWindowMillis = mWindowStartMillis + mPeriodMillis;
+		setInquiring( false );
+	}
+
+	private void setInquiring( boolean inquiring )
+	{
+		mInquiring = inquiring;
+		for( DiscoveryListener listener : mListeners )
+		{
+			listener.onInquiryStateChange( inquiring );
+		}
+	}
+
+	private void expireDevices( long now )
+	{
+		ArrayList<Device> expired = null;
+		Iterator<Device>  iterator = mDevices.values().iterator();
+		while( iterator.hasNext() )
+		{
+			Device device = iterator.next();
+			if( now >= device.mLastSeenMillis + mTtlMillis )
+			{
+				iterator.remove();
+				if( null == expired )
+				{
+					expired = new ArrayList<Device>();
+				}
+				expired.add( device );
+			}
+		}
+		if( null != expired )
+		{    // リスナーからの呼び出しでmDevicesが変わっても大丈夫なように、取り除いてから通知する
+			for( Device device : expired )
+			{
+				notifyDeviceEvent( EVENT_EXPIRED, device );
+			}
+		}
+	}
+
+	private void notifyDeviceEvent( int event, Device device )
+	{
+		for( DiscoveryListener listener : mListeners )
+		{
+			listener.onDeviceEvent( event, device );
+		}
+	}
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+// 送信のフロー制御（相手側の受信バッファーが溢れないように、送信を待たせる）
+// 相手側からの制御バイトは、受信データから取り除いて処理し、受信データのリスナーには渡さない。
+// 送信処理は、送信を許されるまで待つ（送信データは破棄しない）。
+// 受信データのリングバッファーを使う場合は、こちらの受信側の溜まり具合と読み進み具合に応じて、相手側へ制御バイトを送信する。
+// １つの接続につき１つ使う（状態を持つので、接続間で共有しないこと）。
+public interface FlowControl
+{
+	// 定数
+	int WAKEUP = -1;    // acquire()で、wakeup()で起こされた
+
+	// 受信データの処理（受信処理のスレッドから呼ばれる）
+	// 制御バイトを取り除いて、残りのデータを buf の offset から詰め直す。戻り値は、残ったバイト数。
+	int filterReceived( byte[] buf, int offset, int length );
+
+	// 送信できるようになるまで待つ（送信処理のスレッドから呼ばれる）
+	// laneは、送信データのレーン（OutboundQueue.LANE_CONTROL など）。
+	// 戻り値は、送信してよいバイト数（1 ～ length）。閉じられたら、0。
+	// 待っている間にwakeup()が呼ばれたら、WAKEUP（送信処理は、制御レーンのデータを先に送信してから、もう一度呼ぶ）。
+	int acquire( int lane, int length ) throws InterruptedException;
+
+	// 待っている送信処理を起こす（制御レーンに送信データが追加されたときに、BluetoothServiceが呼ぶ）
+	// 送信処理は１つなので、止められている送信データを持ったまま待つと、制御レーン（XON、付与など）も送信できなくなる。
+	void wakeup();
+
+	// こちらの受信側の溜まり具合の通知（受信データのリングバッファーを使う場合）
+	// backlogは読まれていないバイト数、capacityは容量、consumedは接続してから読み込み側が読んだバイト数の合計。
+	// 受信処理のスレッドと、リングバッファーの読み込み側のスレッドから、BluetoothServiceがロックして呼ぶ（同時には呼ばれない）。
+	// 戻り値は、相手側に送信する制御バイト列（制御レーンで送信する）。なければ、null。
+	byte[] onReceiveBacklog( int backlog, int capacity, long consumed );
+
+	// こちらの受信側の溜まり具合を使うかどうか
+	// falseなら、BluetoothServiceはonReceiveBacklog()を呼ばない（受信のたび、読み込み側が読み進めるたびのロックをしない）。
+	boolean usesReceiveBacklog();
+
+	// 終了（待っている送信処理を起こす）
+	void close();
+
+	// 送受信データに制御バイトを混ぜないかどうか（バイナリのデータを、そのまま送受信できるかどうか）
+	boolean isTransparent();
+
+	// フロー制御なし（従来の動作）
+	class None implements FlowControl
+	{
+		@Override
+		public int filterReceived( byte[] buf, int offset, int length )
+		{
+			return length;
+		}
+
+		@Override
+		public int acquire( int lane, int length )
+		{
+			return length;
+		}
+
+		@Override
+		public void wakeup()
+		{
+			;    // 何もしない（待たない）
+		}
+
+		@Override
+		public byte[] onReceiveBacklog( int backlog, int capacity, long consumed )
+		{
+			return null;
+		}
+
+		@Override
+		public boolean usesReceiveBacklog()
+		{
+			return false;
+		}
+
+		@Override
+		public void close()
+		{
+			;    // 何もしない
+		}
+
+		@Override
+		public boolean isTransparent()
+		{
+			return true;
+		}
+	}
+
+	// ソフトウェアフロー制御（XON/XOFF）
+	// 相手側からXOFFを受信したら送信を止め、XONを受信したら再開する。
+	// 制御レーンの送信データは、止められていても送信する（こちらからのXON、XOFFや、緊急停止などを遅らせない）。
+	// こちらの受信側の溜まっているバイト数が容量の3/4以上になったらXOFFを、1/4以下に戻ったらXONを送信する。
+	// 送信データ、受信データにXON、XOFFと同じ値のバイトを含むと誤動作するので、テキストの通信で使うこと。
+	class XonXoff implements FlowControl
+	{
+		// 定数
+		public static final byte XON  = 0x11;
+		public static final byte XOFF = 0x13;
+
+		// メンバー変数
+		private boolean mPaused = false;
+		private boolean mClosed = false;
+		private boolean mWakeup = false;    // wakeup()が呼ばれた
+		private long    mPauseCount = 0;
+		private boolean mReceivePaused = false;    // こちらからXOFFを送信して、相手側を止めているかどうか
+		private long    mXoffSentCount = 0;
+
+		@Override
+		public int filterReceived( byte[] buf, int offset, int length )
+		{
+			int end = offset + length;
+			int out = offset;
+			for( int i = offset; i < end; i++ )
+			{
+				byte b = buf[i];
+				if( XON == b )
+				{
+					setPaused( false );
+				}
+				else if( XOFF == b )
+				{
+					setPaused( true );
+				}
+				else
+				{
+					buf[out++] = b;
+				}
+			}
+			return out - offset;
+		}
+
+		@Override
+		public synchronized int acquire( int lane, int length ) throws InterruptedException
+		{
+			while( !mClosed && mPaused && OutboundQueue.LANE_CONTROL != lane )
+			{
+				if( mWakeup )
+				{
+					mWakeup = false;
+					return WAKEUP;
+				}
+				wait();
+			}
+			mWakeup = false;    // 止められていなければ、制御レーンは次に取り出される
+			return mClosed ? 0 : length;
+		}
+
+		@Override
+		public synchronized void wakeup()
+		{
+			mWakeup = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized byte[] onReceiveBacklog( int backlog, int capacity, long consumed )
+		{
+			if( !mReceivePaused && backlog >= capacity - capacity / 4 )
+			{
+				mReceivePaused = true;
+				mXoffSentCount++;
+				return new byte[]{ XOFF };
+			}
+			if( mReceivePaused && backlog <= capacity / 4 )
+			{
+				mReceivePaused = false;
+				return new byte[]{ XON };
+			}
+			return null;
+		}
+
+		@Override
+		public boolean usesReceiveBacklog()
+		{
+			return true;
+		}
+
+		@Override
+		public synchronized void close()
+		{
+			mClosed = true;
+			notifyAll();
+		}
+
+		@Override
+		public boolean isTransparent()
+		{
+			return false;    // XON、XOFFを、送受信データに混ぜる
+		}
+
+		// 送信を止められているかどうか
+		public synchronized boolean isPaused()
+		{
+			return mPaused;
+		}
+
+		// XOFFで送信を止められた回数
+		public synchronized long getPauseCount()
+		{
+			return mPauseCount;
+		}
+
+		// こちらの受信側が溢れそうになって、XOFFを送信した回数
+		public synchronized long getXoffSentCount()
+		{
+			return mXoffSentCount;
+		}
+
+		private synchronized void setPaused( boolean paused )
+		{
+			if( paused && !mPaused )
+			{
+				mPauseCount++;
+			}
+			mPaused = paused;
+			notifyAll();
+		}
+	}
+
+	// クレジット方式のフロー制御（自社ファームウェア用）
+	// 送信できるバイト数（クレジット）を、相手側が受信バッファーの空きに応じて付与する。
+	// 付与は、GRANTの後に、付与するバイト数を２バイト（ビッグエンディアン）で送信してくる。
+	// 接続直後のクレジットは、相手側の受信バッファーのサイズを指定する。
+	// 制御レーンの送信データは、クレジットを使わない（付与を待たずに送信する。双方が付与を待って止まらないように）。
+	// 制御レーンの分は相手側の受信バッファーの空きを当てにするので、少量（制御バイト、緊急停止など）にすること。
+	// 受信ウィンドウを指定すると、こちらからも相手側へクレジットを付与する（受信データのリングバッファーが必要）。
+	// 相手側は、接続直後に受信ウィンドウの分だけ送信でき、その後は、こちらの読み込み側が読んで空いた分を付与する。
+	// 受信処理で取り除いた分や、リングバッファーに書き込んだだけの分は付与しないので、相手側がリングバッファーを溢れさせることはない。
+	// 受信ウィンドウは、リングバッファーの容量以下にすること。受信ウィンドウが0（既定）なら、付与しない（相手側は、こちらを待たずに送信してくる）。
+	// 送受信データにGRANTと同じ値のバイトを含むと誤動作するので、データ中にGRANTを含めないこと。
+	class Credit implements FlowControl
+	{
+		// 定数
+		public static final byte GRANT = 0x1D;
+		public static final int  DEFAULT_INITIALCREDIT = 64;
+		public static final int  MAX_GRANT = 0xffff;    // １回の付与で送信できるバイト数の上限（２バイト）
+
+		// メンバー変数
+		private       int     mCredit;    // 送信できるバイト数
+		private       boolean mClosed = false;
+		private       boolean mWakeup = false;    // wakeup()が呼ばれた
+		private       int     mGrantBytesLeft = 0;    // 受信途中の付与バイト数の、残りのバイト数（受信処理のスレッドのみ）
+		private       int     mGrantValue     = 0;    // 受信途中の付与バイト数（受信処理のスレッドのみ）
+		private final int     mReceiveWindow;    // 相手側の接続直後のクレジット（0なら、こちらからは付与しない）
+		private       long    mGranted    = 0;    // こちらから付与したバイト数の合計（接続直後の分は含まない）
+		private       long    mGrantCount = 0;
+
+		// コンストラクタ
+		public Credit()
+		{
+			this( DEFAULT_INITIALCREDIT );
+		}
+
+		// コンストラクタ（接続直後のクレジットの指定あり）
+		public Credit( int initialCredit )
+		{
+			this( initialCredit, 0 );
+		}
+
+		// コンストラクタ（接続直後のクレジットと、こちらの受信ウィンドウの指定あり）
+		public Credit( int initialCredit, int receiveWindow )
+		{
+			if( 0 > receiveWindow )
+			{
+				throw new IllegalArgumentException( "receiveWindow must not be negative : " + receiveWindow );
+			}
+			mCredit = initialCredit;
+			mReceiveWindow = receiveWindow;
+		}
+
+		@Override
+		public int filterReceived( byte[] buf, int offset, int length )
+		{
+			int end = offset + length;
+			int out = offset;
+			for( int i = offset; i < end; i++ )
+			{
+				byte b = buf[i];
+				if( 0 < mGrantBytesLeft )
+				{    // 付与バイト数（受信の区切りをまたぐことがある）
+					mGrantValue = ( mGrantValue << 8 ) | ( b & 0xff );
+					if( 0 == --mGrantBytesLeft )
+					{
+						grant( mGrantValue );
+					}
+				}
+				else if( GRANT == b )
+				{
+					mGrantBytesLeft = 2;
+					mGrantValue = 0;
+				}
+				else
+				{
+					buf[out++] = b;
+				}
+			}
+			return out - offset;
+		}
+
+		@Override
+		public synchronized int acquire( int lane, int length ) throws InterruptedException
+		{
+			if( OutboundQueue.LANE_CONTROL == lane )
+			{    // 制御レーン（こちらからの付与など）は、クレジットを使わない
+				return mClosed ? 0 : length;
+			}
+			while( !mClosed && 0 >= mCredit )
+			{
+				if( mWakeup )
+				{
+					mWakeup = false;
+					return WAKEUP;
+				}
+				wait();
+			}
+			mWakeup = false;    // 待たずに送信できるなら、制御レーンは次に取り出される
+			if( mClosed )
+			{
+				return 0;
+			}
+			int count = Math.min( length, mCredit );
+			mCredit -= count;
+			return count;
+		}
+
+		// 読み込み側が読んで空いた分の付与（まとめて送信するため、受信ウィンドウの1/4以上溜まってから付与する）
+		@Override
+		public synchronized byte[] onReceiveBacklog( int backlog, int capacity, long consumed )
+		{
+			long pending = consumed - mGranted;
+			if( 0 == mReceiveWindow || pending < Math.max( 1, mReceiveWindow / 4 ) )
+			{
+				return null;
+			}
+			int    grants = (int)( ( pending + MAX_GRANT - 1 ) / MAX_GRANT );
+			byte[] bytes  = new byte[grants * 3];
+			for( int i = 0; i < grants; i++ )
+			{
+				int credit = (int)Math.min( pending, MAX_GRANT );
+				bytes[i * 3] = GRANT;
+				bytes[i * 3 + 1] = (byte)( credit >> 8 );
+				bytes[i * 3 + 2] = (byte)credit;
+				pending -= credit;
+			}
+			mGranted = consumed;
+			mGrantCount += grants;
+			return bytes;
+		}
+
+		@Override
+		public boolean usesReceiveBacklog()
+		{
+			return 0 < mReceiveWindow;    // 受信ウィンドウがなければ、付与しない
+		}
+
+		@Override
+		public synchronized void wakeup()
+		{
+			mWakeup = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void close()
+		{
+			mClosed = true;
+			notifyAll();
+		}
+
+		@Override
+		public boolean isTransparent()
+		{
+			return false;    // GRANTを、受信データから取り除く
+		}
+
+		// 現在のクレジット
+		public synchronized int getCredit()
+		{
+			return mCredit;
+		}
+
+		// こちらから相手側へ付与した回数
+		public synchronized long getGrantCount()
+		{
+			return mGrantCount;
+		}
+
+		private synchronized void grant( int credit )
+		{
+			mCredit += credit;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.util.Arrays;
+
+// 受信データを行単位に組み立てるデコーダー
+// 「\r」で行の終端、「\n」は無視。（MainActivityの受信処理と同じ規則）
+public class LineDecoder implements ReceiveListener
+{
+	// 行のリスナー
+	// 受信処理のスレッドから呼ばれる。lineの内容は次の行で上書きされるので、保持する場合はコピーすること。
+	public interface LineListener
+	{
+		void onLine( byte[] line, int length );
+	}
+
+	// 定数
+	public static final int DEFAULT_LINEBUFFERSIZE = 1024;    // 行バッファーのサイズ
+
+	// メンバー変数
+	private final byte[] mLineBuffer;
+	private       int    mLineBufferCounter = 0;
+	private volatile LineListener[] mLineListeners = new LineListener[0];    // 変更時は配列ごと差し替える（行ごとにオブジェクトを生成しないため）
+
+	// コンストラクタ
+	public LineDecoder()
+	{
+		this( DEFAULT_LINEBUFFERSIZE );
+	}
+
+	// コンストラクタ（行バッファーのサイズの指定あり）
+	public LineDecoder( int lineBufferSize )
+	{
+		mLineBuffer = new byte[lineBufferSize];
+	}
+
+	// 行のリスナーの追加
+	public synchronized void addLineListener( LineListener listener )
+	{
+		for( LineListener registered : mLineListeners )
+		{
+			if( registered == listener )
+			{
+				return;
+			}
+		}
+		LineListener[] listeners = Arrays.copyOf( mLineListeners, mLineListeners.length + 1 );
+		listeners[listeners.length - 1] = listener;
+		mLineListeners = listeners;
+	}
+
+	// 行のリスナーの削除
+	public synchronized void removeLineListener( LineListener listener )
+	{
+		LineListener[] listeners = new LineListener[mLineListeners.length];
+		int            count     = 0;
+		for( LineListener registered : mLineListeners )
+		{
+			if( registered != listener )
+			{
+				listeners[count++] = registered;
+			}
+		}
+		mLineListeners = Arrays.copyOf( listeners, count );
+	}
+
+	// データ受信時の処理（受信処理のスレッドから呼ばれる）
+	@Override
+	public void onReceive( byte[] buf, int offset, int length )
+	{
+		for( int i = offset; i < offset + length; i++ )
+		{
+			byte c = buf[i];
+			if( '\r' == c )
+			{    // 終端
+				for( LineListener listener : mLineListeners )
+				{
+					listener.onLine( mLineBuffer, mLineBufferCounter );
+				}
+				mLineBufferCounter = 0;
+			}
+			else if( '\n' == c )
+			{
+				;    // 何もしない
+			}
+			else
+			{    // 途中
+				if( mLineBuffer.length > mLineBufferCounter )
+				{
+					mLineBuffer[mLineBufferCounter] = c;
+					mLineBufferCounter++;
+				}
+				else
+				{    // バッファーあふれ。初期化
+					mLineBufferCounter = 0;
+				}
+			}
+		}
+	}
+
+	// 組み立て途中の行の破棄（再接続時など）
+	public void reset()
+	{
+		mLineBufferCounter = 0;
+	}
+}
@@ -19,35 +19,56 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.Message;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Gravity;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener
 {
 	static public class BluetoothService
 	{
-		// 定数（Bluetooth UUID）
-		private static final UUID UUID_SPP = UUID.fromString( "00001101-0000-1000-8000-00805f9b34fb" );
+		// 状態変化のリスナー
+		// 接続ごとの状態通知用のスレッドから、ロックを持たずに呼ばれる（状態を変えたスレッドや、受信処理のスレッドからは呼ばれない）。
+		// 通知は、遷移した順番に、１つずつ行われる（複数のスレッドから同時に呼ばれることはない）。
+		// 処理に時間がかかっても、受信処理や状態遷移は止まらないが、後の状態の通知が遅れる。
+		public interface StateListener
+		{
+			void onStateChange( BluetoothService service, int state );
+		}
 
 		// 定数
-		public static final int MESSAGE_STATECHANGE    = 1;
+		public static final int MESSAGE_STATECHANGE    = 1;    // arg1は状態、objは通知元のBluetoothService
 		public static final int MESSAGE_READ           = 2;
 		public static final int MESSAGE_WRITTEN        = 3;
 		public static final int STATE_NONE             = 0;
@@ -57,204 +78,775 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 		public static final int STATE_CONNECTION_LOST  = 4;
 		public static final int STATE_DISCONNECT_START = 5;
 		public static final int STATE_DISCONNECTED     = 6;
+		private static final int STATE_COUNT           = 7;
+		static final long NOTIFIER_KEEPALIVEMILLIS     = 1000;    // 状態通知用のスレッドが、通知がなくなってから終了するまでの時間
+
+		// 定数（許される状態遷移。[遷移元][遷移先]）
+		private static final boolean[][] TRANSITIONS = new boolean[STATE_COUNT][STATE_COUNT];
+
+		static
+		{
+			TRANSITIONS[STATE_NONE][STATE_CONNECT_START] = true;
+			TRANSITIONS[STATE_CONNECT_START][STATE_CONNECTED] = true;
+			TRANSITIONS[STATE_CONNECT_START][STATE_CONNECT_FAILED] = true;
+			TRANSITIONS[STATE_CONNECTED][STATE_CONNECTION_LOST] = true;
+			TRANSITIONS[STATE_CONNECTED][STATE_DISCONNECT_START] = true;
+			for( int state = STATE_NONE; state < STATE_DISCONNECTED; state++ )
+			{    // 切断完了へは、どの状態からでも遷移できる（ただし１回だけ）
+				TRANSITIONS[state][STATE_DISCONNECTED] = true;
+			}
+		}
 
 		// メンバー変数
-		private int              mState;
-		private ConnectionThread mConnectionThread;
-		private Handler          mHandler;
+		// 状態は、ロックを使わずに、compareAndSetで遷移させる。
+		// （受信処理は、ループのたびに状態を確認するので、ロック待ちにならないようにするため）
+		private final AtomicInteger mState = new AtomicInteger( STATE_NONE );
+		// 状態変化の通知は、状態通知用のスレッドで、遷移した順番に行う。
+		// （各状態に遷移するのは１回だけなので、遷移元を記録しておけば、通知済みの状態の次の状態がわかる）
+		private final AtomicIntegerArray mEnteredFrom   = new AtomicIntegerArray( STATE_COUNT );    // 状態ごとの、遷移元 + 1（0は未遷移）
+		private final ThreadPoolExecutor mNotifier      = newNotifier();    // 状態通知用（１スレッド。通知がなくなると、しばらくして終了する）
+		private       int                mNotifiedState = STATE_NONE;    // 最後に通知した状態（状態通知用のスレッドだけが読み書きする）
+		private final Runnable           mNotifyTask    = new Runnable()    // 通知していない状態変化の、遷移した順番での通知（状態通知用のスレッドで実行する）
+		{
+			@Override
+			public void run()
+			{
+				int state;
+				while( 0 <= ( state = nextUnnotifiedState() ) )
+				{
+					mNotifiedState = state;
+					notifyStateChange( state );
+				}
+			}
+		};
+		private final CountDownLatch mStartSignal = new CountDownLatch( 1 );    // connect()かrelease()で、接続時処理を開始させる
+		private volatile ConnectionThread mConnectionThread;
+		private Handler             mHandler;    // nullなら、メッセージは送らない（リスナーだけで使う場合）
+		private ConnectionScheduler mScheduler;
+		private Transport           mTransport;
+		private final ConnectTimings mConnectTimings = new ConnectTimings();    // 接続の各段階にかかった時間
+		private final CopyOnWriteArrayList<ReceiveListener> mReceiveListeners = new CopyOnWriteArrayList<ReceiveListener>();
+		private final CopyOnWriteArrayList<StateListener>   mStateListeners   = new CopyOnWriteArrayList<StateListener>();
+		private final OutboundQueue mOutboundQueue = new OutboundQueue();    // 送信データの優先度別キュー
+		private FlowControl mFlowControl = new FlowControl.None();    // 送信のフロー制御
+		private ReceiveRing mReceiveRing;    // 受信データのリングバッファー（nullなら、MESSAGE_READで渡す）
+		private final Object mReceiveBacklogLock = new Object();    // 受信側のフロー制御の判断と、制御バイトの送信の順番を揃える
+		// 計測値（診断用。それぞれ１つのスレッドだけが書き込むので、ロックは使わない）
+		private volatile long mBytesReceived = 0;    // 受信処理のスレッドが書き込む
+		private volatile long mBytesSent     = 0;    // 送信処理のスレッドが書き込む
+		private volatile long mFramesSent    = 0;    // 送信処理のスレッドが書き込む
 
 		// 接続時処理用のスレッド
-		private class ConnectionThread extends Thread
+		// （処理の実体。どのスレッドで実行するかは、ConnectionSchedulerが決める）
+		private class ConnectionThread implements Runnable
 		{
-			private BluetoothSocket mBluetoothSocket;
-			private InputStream     mInput;
-			private OutputStream    mOutput;
+			private InputStream  mInput;
+			private OutputStream mOutput;
+			private boolean      mFirstByteReceived = false;
 
 			// コンストラクタ
-			public ConnectionThread( BluetoothDevice bluetoothdevice )
+			// （ソケットの作成は、接続前に済ませておく。connect()が呼ばれてから作成するより、接続が速くなる）
+			public ConnectionThread()
 			{
 				try
 				{
-					mBluetoothSocket = bluetoothdevice.createRfcommSocketToServiceRecord( UUID_SPP );
-					mInput = mBluetoothSocket.getInputStream();
-					mOutput = mBluetoothSocket.getOutputStream();
+					mConnectTimings.start( ConnectTimings.PHASE_OPEN );
+					mTransport.open();
+					mInput = mTransport.getInputStream();
+					mOutput = mTransport.getOutputStream();
+					mConnectTimings.end( ConnectTimings.PHASE_OPEN );
 				}
 				catch( IOException e )
 				{
-					Log.e( "BluetoothService", "failed : bluetoothdevice.createRfcommSocketToServiceRecord( UUID_SPP )", e );
+					Log.e( "BluetoothService", "failed : mTransport.open()", e );
 				}
 			}
 
 			// 処理
+			@Override
 			public void run()
 			{
-				while( STATE_DISCONNECTED != mState )
+				// 接続開始待ち（connect()かrelease()が呼ばれるまで待つ）
+				try
+				{
+					mStartSignal.await();
+				}
+				catch( InterruptedException e )
+				{    // 割り込まれた場合は、接続せずに終了
+					cancel();
+				}
+
+				if( STATE_CONNECT_START == mState.get() )
+				{    // 接続開始
+					if( connectTransport() )
+					{    // 接続成功
+						receive();
+					}
+				}
+
+				// 親クラスが保持する自スレッドオブジェクトの解放（自分自身の解放）
+				mConnectionThread = null;
+			}
+
+			// 接続。戻り値は、接続できたかどうか。
+			private boolean connectTransport()
+			{
+				try
 				{
-					switch( mState )
+					// デバイス検索の停止など（接続が遅くならないように）
+					mConnectTimings.start( ConnectTimings.PHASE_PREPARECONNECT );
+					mTransport.prepareConnect();
+					mConnectTimings.end( ConnectTimings.PHASE_PREPARECONNECT );
+
+					// 通信路を用いて、Bluetoothデバイスに接続を試みる。
+					mConnectTimings.start( ConnectTimings.PHASE_CONNECT );
+					mTransport.connect();
+					mConnectTimings.end( ConnectTimings.PHASE_CONNECT );
+					mConnectTimings.start( ConnectTimings.PHASE_FIRSTBYTE );
+				}
+				catch( IOException e )
+				{    // 接続失敗
+					Log.d( "BluetoothService", "Failed : mTransport.connect()" );
+					if( transition( STATE_CONNECT_START, STATE_CONNECT_FAILED ) )
+					{
+						cancel();
+					}
+					return false;
+				}
+				// 送信処理の開始（接続完了を通知する前に開始しておき、接続完了後のwrite()が待たされないようにする）
+				// スケジューラに空きがなく、開始できなかった場合は、接続失敗にする。
+				try
+				{
+					mScheduler.execute( new Writer() );
+				}
+				catch( RejectedExecutionException e )
+				{
+					Log.e( "BluetoothService", "Rejected : mScheduler.execute()", e );
+					if( transition( STATE_CONNECT_START, STATE_CONNECT_FAILED ) )
+					{
+						cancel();
+					}
+					return false;
+				}
+				if( !transition( STATE_CONNECT_START, STATE_CONNECTED ) )
+				{    // 接続中に、終了させられた（送信処理は、送信キューが閉じられて終わる）
+					return false;
+				}
+				return true;
+			}
+
+			// 受信（Bluetoothデバイスから送信されるデータ受信。接続済みの間、繰り返す）
+			private void receive()
+			{
+				final ReceiveRing ring    = mReceiveRing;
+				byte[]            copyBuf = ( null != ring && ring.isDirect() ) ? new byte[1024] : null;    // ダイレクトバッファーへの受信用
+				boolean           backlog = ( null != ring && mFlowControl.usesReceiveBacklog() );    // 溜まり具合に応じて、相手側に制御バイトを送信するかどうか
+				if( backlog )
+				{    // 読み込み側が読み進めたら、溜まり具合を確認する（相手側を止めていればXONを、クレジット方式なら空いた分の付与を送信する）
+					ring.setDrainListener( new Runnable()
 					{
-						case STATE_NONE:
+						@Override
+						public void run()
+						{
+							checkReceiveBacklog( ring );
+						}
+					} );
+				}
+				while( STATE_CONNECTED == mState.get() )
+				{
+					byte[] buf;
+					int    offset = 0;
+					int    length;
+					if( null == ring )
+					{    // 受信ごとに配列を作成して、メッセージで渡す
+						buf = new byte[1024];
+						length = buf.length;
+					}
+					else
+					{    // リングバッファーの空き領域に、直接受信する
+						length = ring.awaitWritable();
+						if( 0 == length )
+						{    // リングバッファーが閉じられた（切断処理中）
 							break;
-						case STATE_CONNECT_START:    // 接続開始
-							try
+						}
+						if( ring.isDirect() )
+						{
+							buf = copyBuf;
+							length = Math.min( length, copyBuf.length );
+						}
+						else
+						{
+							buf = ring.getWriteArray();
+							offset = ring.getWriteOffset();
+						}
+					}
+					int bytes;
+					try
+					{
+						bytes = mInput.read( buf, offset, length );
+					}
+					catch( IOException e )
+					{
+						// 接続ロスト
+						// （disconnect()で切断開始済みの場合は、遷移に失敗する。その場合の切断処理は、disconnect()側で行う）
+						if( transition( STATE_CONNECTED, STATE_CONNECTION_LOST ) )
+						{
+							cancel();
+						}
+						break;
+					}
+					if( 0 > bytes )
+					{    // 相手側が閉じた（ストリームの終わり）。読み続けても-1が返り続けるので、接続ロストとして扱う
+						if( transition( STATE_CONNECTED, STATE_CONNECTION_LOST ) )
+						{
+							cancel();
+						}
+						break;
+					}
+					if( 0 < bytes && !mFirstByteReceived )
+					{    // 最初の受信
+						mFirstByteReceived = true;
+						mConnectTimings.end( ConnectTimings.PHASE_FIRSTBYTE );
+						Log.d( "BluetoothService", "Connect timings : " + mConnectTimings );
+					}
+					if( 0 < bytes )
+					{    // フロー制御の制御バイトを取り除く
+						bytes = mFlowControl.filterReceived( buf, offset, bytes );
+						if( 0 == bytes )
+						{    // 制御バイトだけだった
+							continue;
+						}
+					}
+					if( 0 < bytes )
+					{    // 受信データのリスナーへの通知（受信処理のスレッドのまま）
+						mBytesReceived += bytes;
+						for( ReceiveListener listener : mReceiveListeners )
+						{
+							listener.onReceive( buf, offset, bytes );
+						}
+					}
+					if( null == ring )
+					{
+						sendMessage( MESSAGE_READ, bytes, buf );
+					}
+					else if( 0 < bytes )
+					{    // 読み込み側から見えるようにする（MESSAGE_READは送らない）
+						if( ring.isDirect() )
+						{
+							ring.put( buf, 0, bytes );
+						}
+						ring.publish( bytes );
+						if( backlog )
+						{
+							checkReceiveBacklog( ring );    // 溢れそうなら、相手側にXOFFを送信する
+						}
+					}
+				}
+			}
+
+			// 送信処理（送信キューから優先度順に取り出して送信する）
+			private class Writer implements Runnable
+			{
+				private final OutboundQueue.Chunk mControlChunk   = new OutboundQueue.Chunk();    // フロー制御で止められている間に送信する、制御レーンの範囲
+				private       byte[]              mCopyBuf        = null;    // 配列を持たないByteBuffer（ダイレクトバッファー）用
+				private       byte[]              mControlCopyBuf = null;    // 同上（制御レーン用）
+
+				@Override
+				public void run()
+				{
+					OutboundQueue.Chunk chunk = new OutboundQueue.Chunk();
+					try
+					{
+						while( mOutboundQueue.take( chunk ) )
+						{
+							if( !send( chunk ) )
 							{
-								// BluetoothSocketオブジェクトを用いて、Bluetoothデバイスに接続を試みる。
-								mBluetoothSocket.connect();
+								break;
 							}
-							catch( IOException e )
-							{    // 接続失敗
-								Log.d( "BluetoothService", "Failed : mBluetoothSocket.connect()" );
-								setState( STATE_CONNECT_FAILED );
-								cancel();    // スレッド終了。
-								return;
+						}
+					}
+					catch( InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+					catch( IOException e )
+					{
+						Log.e( "BluetoothService", "Failed : mOutput.write()", e );
+						mOutboundQueue.close();    // 以降の送信データは受け付けない（接続ロストは受信処理で検知する）
+					}
+				}
+
+				// 取り出した範囲の送信。戻り値は、最後まで送信できたかどうか（フロー制御が閉じられたら、false）。
+				private boolean send( OutboundQueue.Chunk chunk ) throws IOException, InterruptedException
+				{
+					if( 0 == chunk.length )
+					{
+						;    // 空の送信データ
+					}
+					else if( chunk.buffer.hasArray() )
+					{    // コピーせずに、ByteBufferの配列から直接送信する
+						if( !writeRange( chunk.lane, chunk.buffer.array(), chunk.buffer.arrayOffset() + chunk.position, chunk.length ) )
+						{
+							return false;
+						}
+					}
+					else
+					{    // OutputStreamは配列しか受け付けないので、作業用の配列を経由する（制御レーンは、止められている送信データの配列とは別に）
+						byte[] copyBuf = ( OutboundQueue.LANE_CONTROL == chunk.lane ) ? mControlCopyBuf : mCopyBuf;
+						if( null == copyBuf || copyBuf.length < chunk.length )
+						{
+							copyBuf = new byte[Math.max( chunk.length, OutboundQueue.DEFAULT_CHUNKSIZE )];
+							if( OutboundQueue.LANE_CONTROL == chunk.lane )
+							{
+								mControlCopyBuf = copyBuf;
 							}
-							// 接続成功
-							setState( STATE_CONNECTED );
-							break;
-						case STATE_CONNECT_FAILED:        // 接続失敗
-							// 接続失敗時の処理の実体は、cancel()。
-							break;
-						case STATE_CONNECTED:        // 接続済み（Bluetoothデバイスから送信されるデータ受信）
-							byte[] buf = new byte[1024];
-							int bytes;
-							try
+							else
 							{
-								bytes = mInput.read( buf );
-								mHandler.obtainMessage( MESSAGE_READ, bytes, -1, buf ).sendToTarget();
+								mCopyBuf = copyBuf;
 							}
-							catch( IOException e )
+						}
+						ByteBuffer source = chunk.buffer.duplicate();    // 呼び出し元のposition、limitは変更しない
+						source.limit( chunk.position + chunk.length ).position( chunk.position );
+						source.get( copyBuf, 0, chunk.length );
+						if( !writeRange( chunk.lane, copyBuf, 0, chunk.length ) )
+						{
+							return false;
+						}
+					}
+					if( chunk.last )
+					{    // 送信データの最後まで送信した
+						mFramesSent++;
+						sendMessage( MESSAGE_WRITTEN, 0, null );
+					}
+					return true;
+				}
+
+				// フロー制御で許された分ずつ送信する。戻り値は、最後まで送信できたかどうか（フロー制御が閉じられたら、false）。
+				// 止められている間に制御レーンに追加された送信データ（XON、付与など）は、先に送信する（双方が止め合って動かなくならないように）。
+				private boolean writeRange( int lane, byte[] buf, int offset, int length ) throws IOException, InterruptedException
+				{
+					while( 0 < length )
+					{
+						int count = mFlowControl.acquire( lane, length );
+						if( FlowControl.WAKEUP == count )
+						{
+							while( mOutboundQueue.pollControl( mControlChunk ) )
 							{
-								setState( STATE_CONNECTION_LOST );
-								cancel();    // スレッド終了。
-								break;
+								if( !send( mControlChunk ) )
+								{
+									return false;
+								}
 							}
-							break;
-						case STATE_CONNECTION_LOST:    // 接続ロスト
-							// 接続ロスト時の処理の実体は、cancel()。
-							break;
-						case STATE_DISCONNECT_START:    // 切断開始
-							// 切断開始時の処理の実体は、cancel()。
-							break;
-						case STATE_DISCONNECTED:    // 切断完了
-							// whileの条件式により、STATE_DISCONNECTEDの場合は、whileを抜けるので、このケース分岐は無意味。
-							break;
+							continue;
+						}
+						if( 0 == count )
+						{
+							return false;
+						}
+						mOutput.write( buf, offset, count );
+						mBytesSent += count;
+						offset += count;
+						length -= count;
 					}
+					return true;
+				}
+			}
+		}
+
+		// コンストラクタ
+		public BluetoothService( Context context, Handler handler, BluetoothDevice device )
+		{
+			this( context, handler, device, new ConnectionScheduler.ThreadPerConnection() );
+		}
+
+		// コンストラクタ（接続時処理を実行するスケジューラの指定あり）
+		public BluetoothService( Context context, Handler handler, BluetoothDevice device, ConnectionScheduler scheduler )
+		{
+			this( context, handler, new RfcommTransport( device ), scheduler );
+		}
+
+		// コンストラクタ（通信路の指定あり）
+		// ソケットの作成と、接続時処理の開始までを行う。接続は、connect()が呼ばれてから。
+		// （接続前に作成しておけば、connect()から接続完了までが速くなる）
+		// handlerはnullでもよい（状態変化と受信データは、StateListener、ReceiveListenerで受け取る）。
+		// スケジューラに空きがなく、接続時処理を開始できなかった場合は、connect()で接続失敗になる。
+		public BluetoothService( Context context, Handler handler, Transport transport, ConnectionScheduler scheduler )
+		{
+			mHandler = handler;
+			mScheduler = scheduler;
+			mTransport = transport;
+
+			// 接続時処理用スレッドの作成と開始
+			mConnectionThread = new ConnectionThread();
+			try
+			{
+				mScheduler.execute( mConnectionThread );
+			}
+			catch( RejectedExecutionException e )
+			{
+				Log.e( "BluetoothService", "Rejected : mScheduler.execute()", e );
+				mConnectionThread = null;
+			}
+		}
+
+		// 受信データのリスナーの追加
+		public void addReceiveListener( ReceiveListener listener )
+		{
+			mReceiveListeners.addIfAbsent( listener );
+		}
+
+		// 受信データのリスナーの削除
+		public void removeReceiveListener( ReceiveListener listener )
+		{
+			mReceiveListeners.remove( listener );
+		}
+
+		// 状態変化のリスナーの追加
+		public void addStateListener( StateListener listener )
+		{
+			mStateListeners.addIfAbsent( listener );
+		}
+
+		// 状態変化のリスナーの削除
+		public void removeStateListener( StateListener listener )
+		{
+			mStateListeners.remove( listener );
+		}
+
+		// 現在の状態
+		public int getState()
+		{
+			return mState.get();
+		}
+
+		// 状態遷移
+		// 遷移元がfromのときだけ、toに遷移させる。戻り値は、遷移させたかどうか。
+		// 状態変化は、遷移した順番に１回ずつ、状態通知用のスレッドから通知する（通知の終わりは待たない）。
+		private boolean transition( int from, int to )
+		{
+			if( !TRANSITIONS[from][to] || !mState.compareAndSet( from, to ) )
+			{
+				return false;
+			}
+			mEnteredFrom.set( to, from + 1 );
+			notifyStateChanges();
+			return true;
+		}
+
+		// 切断完了への遷移（どの状態からでも遷移させる）。戻り値は、遷移させたかどうか。
+		private boolean transitionToDisconnected()
+		{
+			while( true )
+			{
+				int state = mState.get();
+				if( STATE_DISCONNECTED == state )
+				{    // 切断完了済み
+					return false;
 				}
-				synchronized( BluetoothService.this )
-				{    // 親クラスが保持する自スレッドオブジェクトの解放（自分自身の解放）
-					mConnectionThread = null;
+				if( transition( state, STATE_DISCONNECTED ) )
+				{
+					return true;
 				}
 			}
+		}
 
-			// キャンセル（接続を終了する。ステータスをSTATE_DISCONNECTEDにすることによってスレッドも終了する）
-			public void cancel()
+		// 通知していない状態変化の通知を、状態通知用のスレッドに依頼する（待たずに戻る）
+		// 通知用のスレッドは１つなので、前の依頼の通知中なら、その後に、こちらの遷移の分を通知する。
+		private void notifyStateChanges()
+		{
+			mNotifier.execute( mNotifyTask );
+		}
+
+		// 状態通知用のスレッドの作成（接続ごとに１つ。通知がなくなると、スレッドは終了する）
+		private static ThreadPoolExecutor newNotifier()
+		{
+			ThreadFactory threadFactory = new ThreadFactory()
 			{
-				try
+				@Override
+				public Thread newThread( Runnable runnable )
 				{
-					mBluetoothSocket.close();
+					return new Thread( runnable, "BluetoothService-Notifier" );
 				}
-				catch( IOException e )
+			};
+			ThreadPoolExecutor notifier = new ThreadPoolExecutor( 1, 1,
+																  NOTIFIER_KEEPALIVEMILLIS, TimeUnit.MILLISECONDS,
+																  new LinkedBlockingQueue<Runnable>(),
+																  threadFactory );
+			notifier.allowCoreThreadTimeOut( true );    // 切断完了の通知の後に、スレッドを残さない
+			return notifier;
+		}
+
+		// 最後に通知した状態から遷移した状態（なければ、-1）
+		private int nextUnnotifiedState()
+		{
+			int notified = mNotifiedState;
+			for( int state = 0; state < STATE_COUNT; state++ )
+			{
+				if( notified + 1 == mEnteredFrom.get( state ) )
 				{
-					Log.e( "BluetoothService", "Failed : mBluetoothSocket.close()", e );
+					return state;
 				}
-				setState( STATE_DISCONNECTED );
 			}
+			return -1;
+		}
+
+		// 状態変化の通知
+		private void notifyStateChange( int state )
+		{
+			for( StateListener listener : mStateListeners )
+			{
+				listener.onStateChange( this, state );
+			}
+			sendMessage( MESSAGE_STATECHANGE, state, this );
+		}
 
-			// バイト列送信
-			public void write( byte[] buf )
+		// UIスレッドへのメッセージの送信（Handlerがなければ、何もしない）
+		private void sendMessage( int what, int arg1, Object obj )
+		{
+			if( null != mHandler )
 			{
-				try
+				mHandler.obtainMessage( what, arg1, -1, obj ).sendToTarget();
+			}
+		}
+
+		// 受信データの溜まり具合と読み進み具合に応じた、相手側への制御バイトの送信
+		// 受信処理のスレッド（受信データの公開後）と、リングバッファーの読み込み側のスレッド（読み進めた後）から呼ばれる。
+		// 判断と送信キューへの追加をロックして行い、XOFFとXONが判断と逆の順番で送信されないようにする。
+		private void checkReceiveBacklog( ReceiveRing ring )
+		{
+			synchronized( mReceiveBacklogLock )
+			{
+				byte[] control = mFlowControl.onReceiveBacklog( ring.available(), ring.getCapacity(), ring.getConsumed() );
+				if( null == control )
 				{
-					synchronized( BluetoothService.this )
-					{
-						mOutput.write( buf );
-					}
-					mHandler.obtainMessage( MESSAGE_WRITTEN ).sendToTarget();
+					return;
 				}
-				catch( IOException e )
+				try
+				{    // 制御レーンは、溜まっているデータがあっても待たされない（フロー制御で止められている送信処理も起こす）
+					mOutboundQueue.offer( OutboundQueue.LANE_CONTROL, control, 0, control.length );
+					mFlowControl.wakeup();
+				}
+				catch( InterruptedException e )
 				{
-					Log.e( "BluetoothService", "Failed : mBluetoothSocket.close()", e );
+					Thread.currentThread().interrupt();
 				}
 			}
 		}
 
-		// コンストラクタ
-		public BluetoothService( Context context, Handler handler, BluetoothDevice device )
+		// キャンセル（接続を終了する。ステータスをSTATE_DISCONNECTEDにする。受信処理は、通信路を閉じることで終わる）
+		private void cancel()
 		{
-			mHandler = handler;
-			mState = STATE_NONE;
+			try
+			{
+				mTransport.close();
+			}
+			catch( IOException e )
+			{
+				Log.e( "BluetoothService", "Failed : mTransport.close()", e );
+			}
+			mOutboundQueue.close();    // 送信処理の終了
+			mFlowControl.close();    // フロー制御で待っている送信処理を起こす
+			if( null != mReceiveRing )
+			{    // 読み込み側に終わりを知らせ、空きを待っている受信処理を起こす
+				mReceiveRing.close();
+			}
+			transitionToDisconnected();
+		}
 
-			// 接続時処理用スレッドの作成と開始
-			mConnectionThread = new ConnectionThread( device );
-			mConnectionThread.start();
+		// 送信のフロー制御の設定（connect()の前に呼ぶこと。接続ごとに新しいものを使う）
+		// FlowControl.None（なし。既定）、FlowControl.XonXoff、FlowControl.Credit のいずれか。
+		public void setFlowControl( FlowControl flowControl )
+		{
+			mFlowControl = flowControl;
+		}
+
+		public FlowControl getFlowControl()
+		{
+			return mFlowControl;
+		}
+
+		// 受信データのリングバッファーの設定（connect()の前に呼ぶこと。接続ごとに新しいものを使う）
+		// 設定すると、受信データはリングバッファーに直接受信し、MESSAGE_READは送らない。
+		// 読み込み側は、別のスレッドでReceiveRingのawait()、peek()、advance()を使って読む。
+		// ReceiveListenerへの通知は、リングバッファー上の範囲のまま行う（公開前なので、読み込み側とは競合しない）。
+		// フロー制御がXON/XOFFなら、リングバッファーの溜まり具合に応じて、相手側にXOFF、XONを送信する。
+		// クレジット方式で受信ウィンドウを指定していれば、読み込み側が読んで空いた分のクレジットを、相手側に付与する。
+		public void setReceiveRing( ReceiveRing receiveRing )
+		{
+			mReceiveRing = receiveRing;
+		}
+
+		// 受信したバイト数（フロー制御の制御バイトは含まない）
+		public long getBytesReceived()
+		{
+			return mBytesReceived;
+		}
+
+		// 送信したバイト数
+		public long getBytesSent()
+		{
+			return mBytesSent;
+		}
+
+		// 最後まで送信した送信データの数
+		public long getFramesSent()
+		{
+			return mFramesSent;
+		}
+
+		// 接続時処理が終わっていないかどうか（耐久試験でのリークの確認用）
+		boolean isRunning()
+		{
+			return null != mConnectionThread;
 		}
 
-		// ステータス設定
-		private synchronized void setState( int state )
+		// 接続の各段階にかかった時間の取得
+		public ConnectTimings getConnectTimings()
 		{
-			mState = state;
-			mHandler.obtainMessage( MESSAGE_STATECHANGE, state, -1 ).sendToTarget();
+			return mConnectTimings;
 		}
 
 		// 接続開始時の処理
-		public synchronized void connect()
+		public void connect()
+		{
+			// １つのBluetoothServiceオブジェクトに対して、connect()は１回だけ呼べる。
+			// ２回目以降の呼び出しは、遷移に失敗するので、処理しない。
+			if( transition( STATE_NONE, STATE_CONNECT_START ) )
+			{
+				if( null == mConnectionThread )
+				{    // 接続時処理を開始できなかった（スケジューラに空きがない）ので、待たせずに接続失敗にする
+					if( transition( STATE_CONNECT_START, STATE_CONNECT_FAILED ) )
+					{
+						cancel();
+					}
+					return;
+				}
+				mStartSignal.countDown();    // 接続時処理の開始
+			}
+		}
+
+		// 接続前のBluetoothServiceの破棄（接続せずに接続時処理を終了する。状態変化は通知しない）
+		public void release()
 		{
-			if( STATE_NONE != mState )
-			{    // １つのBluetoothServiceオブジェクトに対して、connect()は１回だけ呼べる。
-				// ２回目以降の呼び出しは、処理しない。
+			if( !mState.compareAndSet( STATE_NONE, STATE_DISCONNECTED ) )
+			{    // 接続開始後は、disconnect()で切断する。
 				return;
 			}
 
-			// ステータス設定
-			setState( STATE_CONNECT_START );
+			mStartSignal.countDown();    // 接続開始待ちの接続時処理を終了させる
+			mOutboundQueue.close();
+			try
+			{
+				mTransport.close();
+			}
+			catch( IOException e )
+			{
+				Log.e( "BluetoothService", "Failed : mTransport.close()", e );
+			}
 		}
 
 		// 接続切断時の処理
-		public synchronized void disconnect()
+		public void disconnect()
 		{
-			if( STATE_CONNECTED != mState )
-			{    // 接続中以外は、処理しない。
-				return;
+			// 接続中以外は、遷移に失敗するので、処理しない。
+			if( transition( STATE_CONNECTED, STATE_DISCONNECT_START ) )
+			{
+				cancel();
 			}
+		}
+
+		// バイト列送信（非同期。対話レーン）
+		public boolean write( byte[] out )
+		{
+			return write( out, OutboundQueue.LANE_INTERACTIVE );
+		}
 
-			// ステータス設定
-			setState( STATE_DISCONNECT_START );
+		// バイト列送信（非同期。レーンの指定あり）
+		// laneは OutboundQueue.LANE_CONTROL、LANE_INTERACTIVE、LANE_BULK のいずれか。
+		// 大量データレーンは、溜まっている送信データが多い間、呼び出し元を待たせる。
+		// 戻り値は、送信キューに入れられたかどうか（接続済みでなければ、false）。
+		public boolean write( byte[] out, int lane )
+		{
+			return write( new ByteBuffer[]{ ByteBuffer.wrap( out ) }, lane );
+		}
 
-			mConnectionThread.cancel();
+		// 複数のByteBufferの送信（非同期。対話レーン）
+		public boolean write( ByteBuffer[] buffers )
+		{
+			return write( buffers, OutboundQueue.LANE_INTERACTIVE );
 		}
 
-		// バイト列送信（非同期）
-		public void write( byte[] out )
+		// 複数のByteBufferの送信（非同期。レーンの指定あり）
+		// 各ByteBufferのposition ～ limit を、連結のコピーをせずに、順番に続けて送信する（ヘッダー、ペイロード、トレーラーなど）。
+		// ByteBufferのposition、limitは変更しない。送信が終わるまで（MESSAGE_WRITTENまで）、内容を変更しないこと。
+		// 戻り値は、送信キューに入れられたかどうか（接続済みでない、送信キューが閉じられた、割り込まれた場合は、false。送信データは捨てられる）。
+		public boolean write( ByteBuffer[] buffers, int lane )
 		{
-			ConnectionThread connectionThread;
-			synchronized( this )
+			if( STATE_CONNECTED != mState.get() )
 			{
-				if( STATE_CONNECTED != mState )
-				{
-					return;
-				}
-				connectionThread = mConnectionThread;
+				return false;
 			}
 			// 非同期送信
 			// （送受信で同期（送信と受信を排他処理（≒同期処理））させる実装も可能だが、
 			// 　そうすると、mInput.read( buf ) が完了するまで、mOutput.write( buf ) が実施されなくなる。
 			// 　mInput.read( buf ) は文字列を受信すると完了するので、文字列を受信しなければいつまでたっても完了しない。
 			// 　文字列が頻繁に送信されてくる場合はよいが、文字列がぜんぜん送信されてこない場合は、
-			// 　こちらからの送信がいつまでたっても実施されないことになる。なので、受信と送信は非同期。）
-			connectionThread.write( out );
+			// 　こちらからの送信がいつまでたっても実施されないことになる。なので、受信と送信は非同期。
+			// 　送信は、送信キューから送信処理が優先度順に取り出して行う。）
+			try
+			{
+				if( !mOutboundQueue.offer( lane, buffers ) )
+				{
+					return false;
+				}
+				if( OutboundQueue.LANE_CONTROL == lane )
+				{    // フロー制御で止められている送信処理に、制御レーンを先に送信させる
+					mFlowControl.wakeup();
+				}
+				return true;
+			}
+			catch( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		// 送信キューの取得（スケジューリング方式やチャンクサイズの設定用）
+		public OutboundQueue getOutboundQueue()
+		{
+			return mOutboundQueue;
+		}
+
+		// 接続時処理を実行するスケジューラの取得（ConnectionExporterなど、接続に付随する処理も、これで実行する）
+		public ConnectionScheduler getScheduler()
+		{
+			return mScheduler;
 		}
 	}
 
 	// 定数
 	private static final int REQUEST_ENABLEBLUETOOTH = 1; // Bluetooth機能の有効化要求時の識別コード
 	private static final int REQUEST_CONNECTDEVICE   = 2; // デバイス接続要求時の識別コード
-	private static final int READBUFFERSIZE          = 1024;    // 受信バッファーのサイズ
+	private static final int READBUFFERSIZE          = 1024;    // 受信した行のバッファーのサイズ
+	private static final int MESSAGE_TRIGGER         = 101;    // トリガー発生時のメッセージ（BluetoothServiceのメッセージと重ならない値）
+	private static final int MESSAGE_TELEMETRY       = 102;    // テレメトリーの集計結果のメッセージ
+	private static final int MESSAGE_LINE            = 103;    // 表示する受信した行のメッセージ
+	private static final long TELEMETRY_WINDOWMILLIS = 1000;    // テレメトリーを集計する窓の長さ（この間隔で表示を更新する）
+	private static final int TELEMETRY_MAXFIELDS     = 8;    // テレメトリーの行あたりの最大フィールド数
+	private static final int TELEMETRY_HISTORYSIZE   = 60;    // テレメトリーの履歴として残す窓の数
+	private static final byte[] LINE_TERMINATOR      = { '\r', '\n' };    // 送信する文字列の終端の改行コード（送信のみで、変更しない）
+	private static final String PREFERENCE_TRIGGERRULES = "trigger_rules";    // トリガーのルールの保存名
 
 	// メンバー変数
 	private BluetoothAdapter mBluetoothAdapter;    // BluetoothAdapter : Bluetooth処理で必要
 	private String mDeviceAddress = "";    // デバイスアドレス
 	private BluetoothService mBluetoothService;    // BluetoothService : Bluetoothデバイスとの通信処理を担う
-	private byte[] mReadBuffer        = new byte[READBUFFERSIZE];
-	private int    mReadBufferCounter = 0;
+	private BluetoothService mPreparedBluetoothService;    // 接続前に作成しておいたBluetoothService（最後に使ったデバイス用）
+	private String mPreparedDeviceAddress = "";    // mPreparedBluetoothServiceのデバイスアドレス
+	private String        mTriggerRules = "";    // トリガーのルール（１行に１ルール。書式は、TriggerEngine.Rule.parse()を参照）
+	private TriggerEngine mTriggerEngine;    // 現在の接続のトリガーエンジン（接続ごとに作成する。評価は受信処理のスレッドで行う）
+	private TelemetryAggregator mTelemetryAggregator;    // 現在の接続のテレメトリーの集計（接続ごとに作成する。集計は受信処理のスレッドで行う）
 
 	// GUIアイテム
 	private Button mButton_Connect;    // 接続ボタン
@@ -273,6 +865,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 			switch( msg.what )
 			{
 				case BluetoothService.MESSAGE_STATECHANGE:
+					// 切断操作の後に次の接続を始めていれば、前の接続からの通知は、次の接続の表示やテレメトリーに反映しない
+					boolean stale = ( null != mBluetoothService && mBluetoothService != msg.obj );
 					switch( msg.arg1 )
 					{
 						case BluetoothService.STATE_NONE:            // 未接続
@@ -288,9 +882,16 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 							mButton_Disconnect.setEnabled( true );
 							mButton_WriteHello.setEnabled( true );
 							mButton_WriteWorld.setEnabled( true );
+							// データが来ない間も、テレメトリーの窓を閉じる
+							mHandler.removeCallbacks( mTelemetryTimer );
+							mHandler.postDelayed( mTelemetryTimer, TELEMETRY_WINDOWMILLIS );
 							break;
 						case BluetoothService.STATE_CONNECTION_LOST:            // 接続ロスト
 							//Toast.makeText( MainActivity.this, "Lost connection to the device.", Toast.LENGTH_SHORT ).show();
+							if( !stale )
+							{
+								stopTelemetry();
+							}
 							break;
 						case BluetoothService.STATE_DISCONNECT_START:
 							// GUIアイテムの有効無効の設定
@@ -298,46 +899,28 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 							mButton_Disconnect.setEnabled( false );
 							mButton_WriteHello.setEnabled( false );
 							mButton_WriteWorld.setEnabled( false );
+							if( !stale )
+							{
+								stopTelemetry();
+							}
 							break;
 						case BluetoothService.STATE_DISCONNECTED:            // 切断完了
+							if( stale )
+							{    // 次の接続を始めているので、そちらのBluetoothServiceを解放しない
+								break;
+							}
 							// GUIアイテムの有効無効の設定
 							// 接続ボタンを有効にする
 							mButton_Connect.setEnabled( true );
+							stopTelemetry();
 							mBluetoothService = null;    // BluetoothServiceオブジェクトの解放
+							prepareConnection();    // 次の接続の事前準備
 							break;
 					}
 					break;
-				case BluetoothService.MESSAGE_READ:
-					byte[] abyteRead = (byte[])msg.obj;
-					int iCountBuf = msg.arg1;
-					for( int i = 0; i < iCountBuf; i++ )
-					{
-						byte c = abyteRead[i];
-						if( '\r' == c )
-						{    // 終端
-							mReadBuffer[mReadBufferCounter] = '\0';
-							// GUIアイテムへの反映
-							( (TextView)findViewById( R.id.textview_read ) ).setText( new String( mReadBuffer, 0, mReadBufferCounter ) );
-							mReadBufferCounter = 0;
-						}
-						else if( '\n' == c )
-						{
-							;    // 何もしない
-						}
-						else
-						{    // 途中
-							if( ( READBUFFERSIZE - 1 ) > mReadBufferCounter )
-							{    // mReadBuffer[READBUFFERSIZE - 2] までOK。
-								// mReadBuffer[READBUFFERSIZE - 1] は、バッファー境界内だが、「\0」を入れられなくなるのでNG。
-								mReadBuffer[mReadBufferCounter] = c;
-								mReadBufferCounter++;
-							}
-							else
-							{    // バッファーあふれ。初期化
-								mReadBufferCounter = 0;
-							}
-						}
-					}
+				case MESSAGE_LINE:
+					// GUIアイテムへの反映（行の組み立ては、受信データの読み込み側のスレッドで済んでいる）
+					( (TextView)findViewById( R.id.textview_read ) ).setText( (String)msg.obj );
 					break;
 				case BluetoothService.MESSAGE_WRITTEN:
 					// GUIアイテムの有効無効の設定
@@ -345,10 +928,85 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 					mButton_WriteHello.setEnabled( true );
 					mButton_WriteWorld.setEnabled( true );
 					break;
+				case MESSAGE_TRIGGER:
+					Toast.makeText( MainActivity.this, "Trigger : " + msg.obj, Toast.LENGTH_SHORT ).show();
+					break;
+				case MESSAGE_TELEMETRY:
+					// フィールドごとに「平均 (最小 - 最大)」を表示する
+					double[][] window = (double[][])msg.obj;
+					StringBuilder sb = new StringBuilder();
+					for( int field = 0; field < window[TelemetryAggregator.SERIES_MEAN].length; field++ )
+					{
+						if( 0 < field )
+						{
+							sb.append( ", " );
+						}
+						sb.append( String.format( "%.2f (%.2f - %.2f)",
+												  window[TelemetryAggregator.SERIES_MEAN][field],
+												  window[TelemetryAggregator.SERIES_MIN][field],
+												  window[TelemetryAggregator.SERIES_MAX][field] ) );
+					}
+					( (TextView)findViewById( R.id.textview_telemetry ) ).setText( sb.toString() );
+					break;
+			}
+		}
+	};
+
+	// テレメトリーの窓ごとの集計結果を、UIスレッドに通知する（受信処理のスレッドか、UIスレッドのタイマーから呼ばれる）
+	// 配列は次の窓で上書きされるので、コピーして渡す（窓ごとに１回だけなので、オブジェクトの生成は問題にならない）
+	private final TelemetryAggregator.WindowListener mTelemetryListener = new TelemetryAggregator.WindowListener()
+	{
+		@Override
+		public void onWindow( long windowStartMillis, int fieldCount, double[] min, double[] max, double[] mean, double[] last )
+		{
+			double[][] window = new double[4][];
+			window[TelemetryAggregator.SERIES_MIN] = Arrays.copyOf( min, fieldCount );
+			window[TelemetryAggregator.SERIES_MAX] = Arrays.copyOf( max, fieldCount );
+			window[TelemetryAggregator.SERIES_MEAN] = Arrays.copyOf( mean, fieldCount );
+			window[TelemetryAggregator.SERIES_LAST] = Arrays.copyOf( last, fieldCount );
+			mHandler.obtainMessage( MESSAGE_TELEMETRY, window ).sendToTarget();
+		}
+	};
+
+	// 接続中に、テレメトリーの時刻を定期的に進めるタイマー（UIスレッド）
+	private final Runnable mTelemetryTimer = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			if( null == mTelemetryAggregator )
+			{
+				return;
+			}
+			mTelemetryAggregator.advance();
+			mHandler.postDelayed( this, TELEMETRY_WINDOWMILLIS );
+		}
+	};
+
+	// 表示する行は、文字列にしてUIスレッドに通知する（受信データの読み込み側のスレッドから呼ばれる）
+	// 数値のテレメトリーの行は、集計して別に表示するので、通知しない。
+	private final LineDecoder.LineListener mDisplayLineListener = new LineDecoder.LineListener()
+	{
+		@Override
+		public void onLine( byte[] line, int length )
+		{
+			if( !TelemetryAggregator.isTelemetryLine( line, length ) )
+			{
+				mHandler.obtainMessage( MESSAGE_LINE, new String( line, 0, length ) ).sendToTarget();
 			}
 		}
 	};
 
+	// トリガー発生時は、ルール名をUIスレッドに通知する（受信処理のスレッドから呼ばれる）
+	private final TriggerEngine.TriggerListener mTriggerListener = new TriggerEngine.TriggerListener()
+	{
+		@Override
+		public void onTrigger( TriggerEngine.Rule rule, byte[] line, int length )
+		{
+			mHandler.obtainMessage( MESSAGE_TRIGGER, rule.getName() ).sendToTarget();
+		}
+	};
+
 	@Override
 	protected void onCreate( Bundle savedInstanceState )
 	{
@@ -374,6 +1032,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 			finish();    // アプリ終了宣言
 			return;
 		}
+
+		// 保存しておいたトリガーのルールの読み込み
+		mTriggerRules = getPreferences( MODE_PRIVATE ).getString( PREFERENCE_TRIGGERRULES, "" );
 	}
 
 	// 初回表示時、および、ポーズからの復帰時
@@ -417,11 +1078,13 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 	{
 		super.onDestroy();
 
+		stopTelemetry();
 		if( null != mBluetoothService )
 		{
 			mBluetoothService.disconnect();
 			mBluetoothService = null;
 		}
+		releasePreparedConnection();
 	}
 
 	// Android端末のBluetooth機能の有効化要求
@@ -466,6 +1129,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 				( (TextView)findViewById( R.id.textview_devicename ) ).setText( strDeviceName );
 				( (TextView)findViewById( R.id.textview_deviceaddress ) ).setText( mDeviceAddress );
 				( (TextView)findViewById( R.id.textview_read ) ).setText( "" );
+				( (TextView)findViewById( R.id.textview_telemetry ) ).setText( "" );
+				prepareConnection();    // 接続の事前準備
 				break;
 		}
 		super.onActivityResult( requestCode, resultCode, data );
@@ -489,6 +1154,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 				Intent devicelistactivityIntent = new Intent( this, DeviceListActivity.class );
 				startActivityForResult( devicelistactivityIntent, REQUEST_CONNECTDEVICE );
 				return true;
+			case R.id.menuitem_triggers:
+				showTriggerRulesDialog();
+				return true;
 		}
 		return false;
 	}
@@ -538,11 +1206,141 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 		}
 
 		// 接続
-		BluetoothDevice device = mBluetoothAdapter.getRemoteDevice( mDeviceAddress );
-		mBluetoothService = new BluetoothService( this, mHandler, device );
+		if( null != mPreparedBluetoothService && mPreparedDeviceAddress.equals( mDeviceAddress ) )
+		{    // 事前準備済みのBluetoothServiceを使う（ソケットの作成と接続時処理の開始は済んでいる）
+			mBluetoothService = mPreparedBluetoothService;
+			mPreparedBluetoothService = null;
+			mPreparedDeviceAddress = "";
+		}
+		else
+		{
+			releasePreparedConnection();
+			BluetoothDevice device = mBluetoothAdapter.getRemoteDevice( mDeviceAddress );
+			mBluetoothService = new BluetoothService( this, mHandler, device );
+		}
+		// 受信データを行に組み立てて、トリガーを評価する（受信処理のスレッドで行う）
+		// トリガーエンジンは、接続ごとに作成する（受信処理のスレッドごとに１つ）
+		mTriggerEngine = new TriggerEngine();
+		mTriggerEngine.setRules( TriggerEngine.parseRules( mTriggerRules ) );
+		mTriggerEngine.addTriggerListener( mTriggerListener );
+		LineDecoder lineDecoder = new LineDecoder();
+		lineDecoder.addLineListener( mTriggerEngine );
+		// 数値のテレメトリーの行は、窓ごとに集計して表示する（受信処理のスレッドで集計する）
+		mTelemetryAggregator = new TelemetryAggregator( TELEMETRY_WINDOWMILLIS, TELEMETRY_MAXFIELDS, TELEMETRY_HISTORYSIZE );
+		mTelemetryAggregator.addWindowListener( mTelemetryListener );
+		lineDecoder.addLineListener( mTelemetryAggregator );
+		mBluetoothService.addReceiveListener( lineDecoder );
+		if( BuildConfig.DEBUG )
+		{    // 接続ごとの診断情報の書き出し（デバッグビルドのみ。切断完了で終了する）
+			File directory = getExternalFilesDir( "connections" );
+			if( null != directory )
+			{
+				ConnectionExporter exporter = new ConnectionExporter( new ConnectionExporter.DirectorySink( directory ), mDeviceAddress );
+				exporter.attach( mBluetoothService );
+			}
+		}
+		startLineReader( mBluetoothService );
 		mBluetoothService.connect();
 	}
 
+	// 表示する受信データの読み込み側の開始（connect()の前に呼ぶ）
+	// 受信データはリングバッファーに直接受信し、読み込み側のスレッドで行に組み立てて、行ごとにUIスレッドに通知する。
+	// （受信ごとの配列の作成とMESSAGE_READをやめ、UIスレッドには表示する行だけを渡す）
+	// 読み込み側は、接続時処理のスケジューラで実行し、切断でリングバッファーが閉じられたら、残りを読んでから終わる。
+	// 開始できなかった場合は、リングバッファーを使わずに、受信処理のスレッドで行に組み立てる。
+	private void startLineReader( BluetoothService bluetoothService )
+	{
+		final ReceiveRing ring        = new ReceiveRing( ReceiveRing.DEFAULT_CAPACITY, ReceiveRing.WAIT_BLOCKING );
+		final LineDecoder lineDecoder = new LineDecoder( READBUFFERSIZE );
+		lineDecoder.addLineListener( mDisplayLineListener );
+		try
+		{
+			bluetoothService.getScheduler().execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while( 0 < ring.await() )
+						{    // 連続している部分ずつ、リングバッファー上のまま組み立てる
+							ByteBuffer view  = ring.peek();
+							int        count = view.remaining();
+							lineDecoder.onReceive( view.array(), view.arrayOffset() + view.position(), count );
+							ring.advance( count );
+						}
+					}
+					catch( InterruptedException e )
+					{
+						;    // 終了
+					}
+				}
+			} );
+		}
+		catch( RejectedExecutionException e )
+		{
+			Log.e( "MainActivity", "Rejected : startLineReader()", e );
+			bluetoothService.addReceiveListener( lineDecoder );
+			return;
+		}
+		bluetoothService.setReceiveRing( ring );
+	}
+
+	// テレメトリーの集計の終了（時刻を進めるタイマーを止め、接続ごとの集計を解放する）
+	private void stopTelemetry()
+	{
+		mHandler.removeCallbacks( mTelemetryTimer );
+		mTelemetryAggregator = null;
+	}
+
+	// 接続の事前準備
+	// 最後に使ったデバイス用のBluetoothServiceを作成しておき、ソケットの作成と接続時処理の開始を、接続前に済ませる。
+	// アクティビティの終了後（onDestroy()で破棄した後）に届いた切断完了から呼ばれても、作成しない。
+	private void prepareConnection()
+	{
+		if( isFinishing() || isDestroyed() )
+		{    // 破棄する機会がないので、作成しない
+			return;
+		}
+
+		if( mDeviceAddress.equals( "" ) )
+		{    // DeviceAddressが空の場合は、準備していたものも破棄する
+			releasePreparedConnection();
+			return;
+		}
+
+		if( null != mBluetoothService )
+		{    // mBluetoothServiceがnullでないなら接続済みか、接続中。
+			return;
+		}
+
+		if( null != mPreparedBluetoothService )
+		{
+			if( mPreparedDeviceAddress.equals( mDeviceAddress ) )
+			{    // 準備済み
+				return;
+			}
+			releasePreparedConnection();    // 別のデバイス用なので破棄
+		}
+
+		BluetoothDevice device = mBluetoothAdapter.getRemoteDevice( mDeviceAddress );
+		mPreparedBluetoothService = new BluetoothService( this, mHandler, device );
+		mPreparedDeviceAddress = mDeviceAddress;
+	}
+
+	// 事前準備したBluetoothServiceの破棄
+	private void releasePreparedConnection()
+	{
+		if( null == mPreparedBluetoothService )
+		{
+			return;
+		}
+
+		mPreparedBluetoothService.release();
+		mPreparedBluetoothService = null;
+		mPreparedDeviceAddress = "";
+	}
+
 	// 切断
 	private void disconnect()
 	{
@@ -556,6 +1354,46 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 		mBluetoothService = null;
 	}
 
+	// トリガーのルールの編集ダイアログ（１行に１ルール）
+	// 書式が誤っていれば、変更しない。接続中なら、現在の接続にもすぐに反映する。
+	private void showTriggerRulesDialog()
+	{
+		final EditText editText = new EditText( this );
+		editText.setText( mTriggerRules );
+		editText.setHint( R.string.trigger_rules_hint );
+		editText.setMinLines( 4 );
+		editText.setGravity( Gravity.TOP );
+		new AlertDialog.Builder( this )
+				.setTitle( R.string.triggers )
+				.setView( editText )
+				.setPositiveButton( android.R.string.ok, new DialogInterface.OnClickListener()
+				{
+					@Override
+					public void onClick( DialogInterface dialog, int which )
+					{
+						String                        text = editText.getText().toString();
+						ArrayList<TriggerEngine.Rule> rules;
+						try
+						{
+							rules = TriggerEngine.parseRules( text );
+						}
+						catch( IllegalArgumentException e )
+						{    // 書式の誤り
+							Toast.makeText( MainActivity.this, e.getMessage(), Toast.LENGTH_LONG ).show();
+							return;
+						}
+						mTriggerRules = text;
+						getPreferences( MODE_PRIVATE ).edit().putString( PREFERENCE_TRIGGERRULES, text ).apply();
+						if( null != mTriggerEngine )
+						{
+							mTriggerEngine.setRules( rules );
+						}
+					}
+				} )
+				.setNegativeButton( android.R.string.cancel, null )
+				.show();
+	}
+
 	// 文字列送信
 	private void write( String string )
 	{
@@ -564,10 +1402,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 			return;
 		}
 
-		// 終端に改行コードを付加
-		String stringSend = string + "\r\n";
-
-		// バイト列送信
-		mBluetoothService.write( stringSend.getBytes() );
+		// 終端に改行コードを付加して送信（文字列と改行コードを連結せずに、続けて送信する）
+		mBluetoothService.write( new ByteBuffer[]{ ByteBuffer.wrap( string.getBytes() ), ByteBuffer.wrap( LINE_TERMINATOR ) } );
 	}
 }
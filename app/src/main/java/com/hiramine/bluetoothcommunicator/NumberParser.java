@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+// バイト列（ASCII）から数値を読み取る処理
+// 受信処理のスレッドで行ごとに呼ばれるので、オブジェクトを生成しない。
+public final class NumberParser
+{
+	// 定数（誤差なく表現できる10のべき乗）
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+	private static final int      MAX_MANTISSA_DIGITS = 18;    // longに収まる桁数
+
+	private NumberParser()
+	{
+	}
+
+	// 数値を構成する文字かどうか
+	public static boolean isNumberChar( byte c )
+	{
+		return ( '0' <= c && '9' >= c ) || '+' == c || '-' == c || '.' == c || 'e' == c || 'E' == c;
+	}
+
+	// start以降の空白を読み飛ばした位置
+	public static int skipSpaces( byte[] buf, int start, int end )
+	{
+		while( start < end && ( ' ' == buf[start] || '\t' == buf[start] ) )
+		{
+			start++;
+		}
+		return start;
+	}
+
+	// startから始まる数値の終端位置（数値を構成する文字が続く範囲）
+	public static int numberEnd( byte[] buf, int start, int end )
+	{
+		while( start < end && isNumberChar( buf[start] ) )
+		{
+			start++;
+		}
+		return start;
+	}
+
+	// buf[start]～buf[end - 1] を10進数の実数として読み取る。
+	// 数値として解釈できない場合は、Double.NaN を返す。
+	public static double parseDouble( byte[] buf, int start, int end )
+	{
+		int     i        = start;
+		boolean negative = false;
+		if( i < end && ( '+' == buf[i] || '-' == buf[i] ) )
+		{
+			negative = ( '-' == buf[i] );
+			i++;
+		}
+
+		long mantissa    = 0;
+		int  digits      = 0;    // 仮数部に取り込んだ桁数
+		int  exponent    = 0;    // 10進の指数
+		int  digitsTotal = 0;    // 読み取った数字の数
+		boolean fraction = false;
+		for( ; i < end; i++ )
+		{
+			byte c = buf[i];
+			if( '0' <= c && '9' >= c )
+			{
+				digitsTotal++;
+				if( MAX_MANTISSA_DIGITS > digits )
+				{
+					mantissa = mantissa * 10 + ( c - '0' );
+					if( 0 != mantissa )
+					{
+						digits++;
+					}
+					if( fraction )
+					{
+						exponent--;
+					}
+				}
+				else if( !fraction )
+				{    // 取り込めない整数部の桁
+					exponent++;
+				}
+			}
+			else if( '.' == c && !fraction )
+			{
+				fraction = true;
+			}
+			else
+			{
+				break;
+			}
+		}
+		if( 0 == digitsTotal )
+		{    // 数字がない
+			return Double.NaN;
+		}
+
+		if( i < end && ( 'e' == buf[i] || 'E' == buf[i] ) )
+		{    // 指数部
+			i++;
+			boolean negativeExponent = false;
+			if( i < end && ( '+' == buf[i] || '-' == buf[i] ) )
+			{
+				negativeExponent = ( '-' == buf[i] );
+				i++;
+			}
+			int exponentValue  = 0;
+			int exponentDigits = 0;
+			for( ; i < end && '0' <= buf[i] && '9' >= buf[i]; i++ )
+			{
+				if( 10000 > exponentValue )
+				{
+					exponentValue = exponentValue * 10 + ( buf[i] - '0' );
+				}
+				exponentDigits++;
+			}
+			if( 0 == exponentDigits )
+			{
+				return Double.NaN;
+			}
+			exponent += negativeExponent ? -exponentValue : exponentValue;
+		}
+		if( i != end )
+		{    // 数値の後ろに余計な文字がある
+			return Double.NaN;
+		}
+
+		double value = mantissa;
+		if( 0 > exponent && -exponent < POWERS_OF_TEN.length )
+		{
+			value /= POWERS_OF_TEN[-exponent];
+		}
+		else if( 0 < exponent && exponent < POWERS_OF_TEN.length )
+		{
+			value *= POWERS_OF_TEN[exponent];
+		}
+		else if( 0 != exponent )
+		{
+			value *= Math.pow( 10, exponent );
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// 送信データの優先度別キュー（制御、対話、大量データ の３レーン）
+// ・制御レーンは、常に最優先で送信する。
+// ・対話レーンと大量データレーンは、厳密な優先度（対話が優先）か、重み付き（Deficit Round Robin）で送信する。
+// ・対話レーンと大量データレーンのデータは、チャンクに分割して送信し、チャンクの区切りに制御レーンのデータを割り込ませる。
+// 　そのため、制御データの待ち時間は、送信中のデータの大きさによらず、最大でも１チャンクの送信時間となる。
+// 　（大量データの途中には、他のレーンのデータが割り込むことになるので、大量データは区切りのないバイト列として扱うこと）
+// ・送信データは、複数のByteBuffer（ヘッダー、ペイロード、トレーラーなど）で渡せる。連結のためのコピーはせず、順番に送信する。
+// 　対話レーンの送信データの途中には、制御レーン以外のデータを割り込ませない。
+// 　（制御レーンのデータは、フロー制御の制御バイトのように、受信側がデータの途中からでも取り除けるものにすること）
+// 　送信データの内容は、送信が終わるまで（MESSAGE_WRITTENまで）変更しないこと。
+public class OutboundQueue
+{
+	// 送信する範囲（送信処理のスレッドで使い回す）
+	// bufferのposition ～ position + length - 1 を送信する（bufferのposition、limitは変更しない）。
+	static final class Chunk
+	{
+		ByteBuffer buffer;
+		int        position;
+		int        length;
+		int        lane;
+		boolean    last;    // データの最後のチャンクかどうか
+	}
+
+	// 送信データ
+	private static final class Frame
+	{
+		final ByteBuffer[] buffers;
+		final int[]        starts;    // 追加時の各bufferのposition
+		final int[]        lengths;    // 追加時の各bufferのremaining
+		final int          length;
+		int index    = 0;    // 送信中のbuffer
+		int offset   = 0;    // 送信中のbufferの、送信済みのバイト数
+		int position = 0;    // 送信済みのバイト数（全体）
+
+		Frame( ByteBuffer[] buffers )
+		{
+			this.buffers = buffers;
+			starts = new int[buffers.length];
+			lengths = new int[buffers.length];
+			int total = 0;
+			for( int i = 0; i < buffers.length; i++ )
+			{
+				starts[i] = buffers[i].position();
+				lengths[i] = buffers[i].remaining();
+				total += lengths[i];
+			}
+			length = total;
+		}
+
+		// 送信中のbufferの残りバイト数（空のbufferは読み飛ばす）
+		int remainingInBuffer()
+		{
+			while( index < buffers.length && offset == lengths[index] )
+			{
+				index++;
+				offset = 0;
+			}
+			return ( index < buffers.length ) ? lengths[index] - offset : 0;
+		}
+	}
+
+	// 定数
+	public static final int LANE_CONTROL     = 0;    // 制御（緊急停止など）
+	public static final int LANE_INTERACTIVE = 1;    // 対話（操作による送信）
+	public static final int LANE_BULK        = 2;    // 大量データ
+	public static final int LANE_COUNT       = 3;
+
+	public static final int MODE_STRICT   = 0;    // 厳密な優先度
+	public static final int MODE_WEIGHTED = 1;    // 重み付き
+
+	public static final int DEFAULT_CHUNKSIZE     = 256;
+	public static final int DEFAULT_MAXQUEUEDBULK = 64 * 1024;    // 大量データレーンに溜められるバイト数（超えると書き込み側を待たせる）
+
+	// メンバー変数
+	private final ArrayDeque<Frame>[] mLanes;
+	private final int[] mQueuedBytes = new int[LANE_COUNT];
+	private final int[] mWeights     = { 1, 4, 1 };    // 重み付き時の重み（制御レーンの重みは使わない）
+	private final int[] mDeficit     = new int[LANE_COUNT];
+	private int     mMode          = MODE_STRICT;
+	private int     mChunkSize     = DEFAULT_CHUNKSIZE;
+	private int     mMaxQueuedBulk = DEFAULT_MAXQUEUEDBULK;
+	private int     mCurrentLane   = LANE_INTERACTIVE;    // 重み付き時の、巡回中のレーン
+	private int     mFrameLane     = -1;    // 途中まで送信した、制御レーン以外は割り込ませない送信データのレーン（-1はなし）
+	private boolean mQuantumAdded  = false;    // 巡回中のレーンに、今回の巡回分の送信量を加えたかどうか
+	private boolean mClosed        = false;
+	private int     mDrainWaiters  = 0;    // awaitQueuedBytes()で待っているスレッドの数
+
+	// コンストラクタ
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	public OutboundQueue()
+	{
+		mLanes = new ArrayDeque[LANE_COUNT];
+		for( int lane = 0; lane < LANE_COUNT; lane++ )
+		{
+			mLanes[lane] = new ArrayDeque<Frame>();
+		}
+	}
+
+	// スケジューリング方式の設定（MODE_STRICT か MODE_WEIGHTED）
+	public synchronized void setMode( int mode )
+	{
+		mMode = mode;
+	}
+
+	// 重み付き時の、対話レーンと大量データレーンの重みの設定
+	public synchronized void setWeights( int interactiveWeight, int bulkWeight )
+	{
+		mWeights[LANE_INTERACTIVE] = Math.max( 1, interactiveWeight );
+		mWeights[LANE_BULK] = Math.max( 1, bulkWeight );
+	}
+
+	// 対話データと大量データを分割するチャンクのサイズの設定
+	public synchronized void setChunkSize( int chunkSize )
+	{
+		mChunkSize = Math.max( 1, chunkSize );
+	}
+
+	// 大量データレーンに溜められるバイト数の設定
+	public synchronized void setMaxQueuedBulk( int maxQueuedBulk )
+	{
+		mMaxQueuedBulk = maxQueuedBulk;
+		notifyAll();
+	}
+
+	// 送信データの追加
+	public boolean offer( int lane, byte[] buf, int offset, int length ) throws InterruptedException
+	{
+		return offer( lane, new ByteBuffer[]{ ByteBuffer.wrap( buf, offset, length ) } );
+	}
+
+	// 送信データの追加（複数のByteBufferを、コピーせずに順番に送信する）
+	// 大量データレーンは、溜まっているバイト数が上限を超えている間、待たされる。
+	// 戻り値は、追加できたかどうか（キューが閉じられていたら、false）。
+	public synchronized boolean offer( int lane, ByteBuffer[] buffers ) throws InterruptedException
+	{
+		Frame frame  = new Frame( buffers );
+		int   length = frame.length;
+		if( LANE_BULK == lane )
+		{
+			while( !mClosed && 0 < mQueuedBytes[LANE_BULK] && mQueuedBytes[LANE_BULK] + length > mMaxQueuedBulk )
+			{
+				wait();
+			}
+		}
+		if( mClosed )
+		{
+			return false;
+		}
+		mLanes[lane].add( frame );
+		mQueuedBytes[lane] += length;
+		notifyAll();
+		return true;
+	}
+
+	// 次に送信する範囲の取り出し（送信データが追加されるまで待つ）
+	// 戻り値は、取り出せたかどうか（キューが閉じられたら、false）。
+	synchronized boolean take( Chunk chunk ) throws InterruptedException
+	{
+		while( !mClosed && isEmpty() )
+		{
+			wait();
+		}
+		if( mClosed )
+		{
+			return false;
+		}
+
+		int lane;
+		if( !mLanes[LANE_CONTROL].isEmpty() )
+		{    // 制御レーンは常に最優先（途中まで送信した送信データがあっても、チャンクの区切りで割り込む）
+			lane = LANE_CONTROL;
+		}
+		else if( 0 <= mFrameLane )
+		{    // 途中まで送信した送信データの続き（制御レーン以外は割り込ませない）
+			lane = mFrameLane;
+		}
+		else if( MODE_STRICT == mMode )
+		{
+			lane = mLanes[LANE_INTERACTIVE].isEmpty() ? LANE_BULK : LANE_INTERACTIVE;
+		}
+		else
+		{
+			lane = selectWeightedLane();
+		}
+		fillChunk( lane, chunk );
+		return true;
+	}
+
+	// 制御レーンの送信範囲の取り出し（待たない。送信処理が、フロー制御で止められている間に使う）
+	// 戻り値は、取り出せたかどうか（制御レーンが空か、キューが閉じられたら、false）。
+	synchronized boolean pollControl( Chunk chunk )
+	{
+		if( mClosed || mLanes[LANE_CONTROL].isEmpty() )
+		{
+			return false;
+		}
+		fillChunk( LANE_CONTROL, chunk );
+		return true;
+	}
+
+	// キューを閉じる（溜まっている送信データは破棄し、待っているスレッドを起こす）
+	public synchronized void close()
+	{
+		mClosed = true;
+		mFrameLane = -1;
+		for( int lane = 0; lane < LANE_COUNT; lane++ )
+		{
+			mLanes[lane].clear();
+			mQueuedBytes[lane] = 0;
+		}
+		notifyAll();
+	}
+
+	// 溜まっているバイト数
+	public synchronized int getQueuedBytes( int lane )
+	{
+		return mQueuedBytes[lane];
+	}
+
+	// レーンに溜まっているバイト数が、maxBytes以下になるまで待つ（自分で送信量を調整する送信元用）
+	// 戻り値は、待てたかどうか（キューが閉じられたら、false）。
+	public synchronized boolean awaitQueuedBytes( int lane, int maxBytes ) throws InterruptedException
+	{
+		mDrainWaiters++;
+		try
+		{
+			while( !mClosed && mQueuedBytes[lane] > maxBytes )
+			{
+				wait();
+			}
+		}
+		finally
+		{
+			mDrainWaiters--;
+		}
+		return !mClosed;
+	}
+
+	private boolean isEmpty()
+	{
+		for( ArrayDeque<Frame> frames : mLanes )
+		{
+			if( !frames.isEmpty() )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// 重み付き時のレーンの選択（対話レーンと大量データレーンのDeficit Round Robin）
+	private int selectWeightedLane()
+	{
+		while( true )
+		{
+			int lane = mCurrentLane;
+			if( mLanes[lane].isEmpty() )
+			{    // 送信データがないレーンは、持ち越しをなくして次のレーンへ
+				mDeficit[lane] = 0;
+				nextWeightedLane();
+				continue;
+			}
+			if( !mQuantumAdded )
+			{
+				mDeficit[lane] += mWeights[lane] * mChunkSize;
+				mQuantumAdded = true;
+			}
+			int length = nextChunkLength( lane );
+			if( length <= mDeficit[lane] )
+			{
+				mDeficit[lane] -= length;
+				return lane;
+			}
+			nextWeightedLane();
+		}
+	}
+
+	private void nextWeightedLane()
+	{
+		mCurrentLane = ( LANE_INTERACTIVE == mCurrentLane ) ? LANE_BULK : LANE_INTERACTIVE;
+		mQuantumAdded = false;
+	}
+
+	// レーンの先頭データから、次に送信するバイト数（重み付き時の送信量の計算用）
+	private int nextChunkLength( int lane )
+	{
+		Frame frame = mLanes[lane].peek();
+		if( LANE_BULK == lane )
+		{
+			return Math.min( frame.remainingInBuffer(), mChunkSize );
+		}
+		return frame.length - frame.position;    // 対話レーンは、残り全部を続けて送信するので、最初にまとめて数える
+	}
+
+	// 送信する範囲の設定（１つのbufferの中の範囲。bufferの境界とチャンクのサイズで区切る）
+	// 制御レーンのデータは、割り込む側なので分割しない。
+	private void fillChunk( int lane, Chunk chunk )
+	{
+		Frame frame  = mLanes[lane].peek();
+		int   length = frame.remainingInBuffer();
+		if( LANE_CONTROL != lane )
+		{
+			length = Math.min( length, mChunkSize );
+		}
+		chunk.buffer = ( frame.index < frame.buffers.length ) ? frame.buffers[frame.index] : null;
+		chunk.position = ( null != chunk.buffer ) ? frame.starts[frame.index] + frame.offset : 0;
+		chunk.length = length;
+		chunk.lane = lane;
+		frame.offset += length;
+		frame.position += length;
+		chunk.last = ( frame.position == frame.length );
+		if( chunk.last )
+		{
+			mLanes[lane].poll();
+			if( lane == mFrameLane )
+			{
+				mFrameLane = -1;
+			}
+		}
+		else if( LANE_INTERACTIVE == lane )
+		{    // 続きも、制御レーン以外は割り込ませずに送信する（制御レーンの続きは、常に最優先なので、覚えなくてよい）
+			mFrameLane = lane;
+		}
+		mQueuedBytes[lane] -= length;
+		if( LANE_BULK == lane || 0 < mDrainWaiters )
+		{    // 大量データレーンの空きや、送信が進むのを待っている書き込み側を起こす
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+// 受信データのリスナー
+// 受信処理のスレッド（I/Oスレッド）から呼ばれるので、重い処理はしないこと。
+// bufの内容は呼び出し後に再利用されることがあるので、保持する場合はコピーすること。
+public interface ReceiveListener
+{
+	// データ受信時の処理
+	void onReceive( byte[] buf, int offset, int length );
+}
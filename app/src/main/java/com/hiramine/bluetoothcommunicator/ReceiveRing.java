@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// 受信データのリングバッファー（書き込み側１つ、読み込み側１つ）
+// ・書き込み側（受信処理のスレッド）は、リングバッファーに直接受信する（配列の作成、コピー、Messageへの格納をしない）。
+// ・読み込み側は、受信データをリングバッファー上でそのまま読み（peek()）、読んだ分だけ進める（advance()）。
+// ・読み込み側の待ち方は、ブロック、yield、ビジースピン から選べる（待ち時間とCPU使用量のトレードオフ）。
+// ・一杯のときは、書き込み側（受信処理）が空きを待つ（受信データは捨てない）。
+// ・ダイレクトバッファーの場合、InputStreamは配列にしか読み込めないので、作業用の配列からのコピーが１回入る。
+public class ReceiveRing
+{
+	// 定数（読み込み側の待ち方）
+	public static final int WAIT_BLOCKING = 0;    // スレッドを止めて待つ（CPUを使わない。起きるまでの時間がかかる）
+	public static final int WAIT_YIELDING = 1;    // 少し回った後、Thread.yield()を繰り返す
+	public static final int WAIT_BUSYSPIN = 2;    // 回り続ける（最も速いが、CPUを１つ占有する）
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+	private static final int SPIN_TRIES = 100;    // WAIT_YIELDINGで、yieldする前に回る回数
+
+	// メンバー変数
+	private final ByteBuffer  mBuffer;
+	private final byte[]      mArray;    // ヒープバッファーの配列（ダイレクトバッファーの場合は、null）
+	private final int         mArrayOffset;
+	private final int         mMask;
+	private final int         mWaitStrategy;
+	private final AtomicLong  mTail = new AtomicLong();    // 書き込んだバイト数の合計（書き込み側のみが進める）
+	private final AtomicLong  mHead = new AtomicLong();    // 読んだバイト数の合計（読み込み側のみが進める）
+	private volatile boolean  mClosed = false;
+	private volatile Thread   mWaitingConsumer;    // WAIT_BLOCKINGで、データを待っている読み込み側
+	private volatile Thread   mWaitingProducer;    // 空きを待っている書き込み側
+	private volatile Runnable mDrainListener;    // advance()の後に呼ぶ（受信側のフロー制御用。nullなら呼ばない）
+
+	// 読み込み側のみ
+	private final ByteBuffer mView;    // peek()で返す、読める範囲のビュー（使い回す）
+	private       long       mCachedTail = 0;
+
+	// 書き込み側のみ
+	private long mCachedHead = 0;
+
+	// コンストラクタ（ヒープバッファー）
+	public ReceiveRing( int capacity, int waitStrategy )
+	{
+		this( ByteBuffer.allocate( roundUpToPowerOfTwo( capacity ) ), waitStrategy );
+	}
+
+	// コンストラクタ（バッファーの指定あり。容量は２のべき乗であること）
+	public ReceiveRing( ByteBuffer buffer, int waitStrategy )
+	{
+		int capacity = buffer.capacity();
+		if( 0 == capacity || 0 != ( capacity & ( capacity - 1 ) ) )
+		{
+			throw new IllegalArgumentException( "capacity must be a power of two : " + capacity );
+		}
+		mBuffer = buffer;
+		mArray = buffer.hasArray() ? buffer.array() : null;
+		mArrayOffset = buffer.hasArray() ? buffer.arrayOffset() : 0;
+		mMask = capacity - 1;
+		mWaitStrategy = waitStrategy;
+		mView = buffer.duplicate();
+	}
+
+	public int getCapacity()
+	{
+		return mMask + 1;
+	}
+
+	public int getWaitStrategy()
+	{
+		return mWaitStrategy;
+	}
+
+	// ダイレクトバッファーかどうか（受信時に、作業用の配列からのコピーが必要かどうか）
+	public boolean isDirect()
+	{
+		return null == mArray;
+	}
+
+	// 終了（待っている読み込み側と書き込み側を起こす。読み込み側は、残りのデータを読んでから終わる）
+	public void close()
+	{
+		mClosed = true;
+		LockSupport.unpark( mWaitingConsumer );
+		LockSupport.unpark( mWaitingProducer );
+	}
+
+	public boolean isClosed()
+	{
+		return mClosed;
+	}
+
+	// 読み込み側が読み進めたときに呼ぶリスナーの設定（BluetoothServiceが、相手側へのXONの送信に使う）
+	// 読み込み側のスレッドから、advance()のたびに呼ばれるので、重い処理はしないこと。
+	void setDrainListener( Runnable drainListener )
+	{
+		mDrainListener = drainListener;
+	}
+
+	// ---- 書き込み側（受信処理のスレッド） ----
+
+	// 連続して書き込める領域ができるまで待つ。戻り値は、その領域のバイト数（閉じられたら、0）。
+	// 領域の位置は、getWriteArray()、getWriteOffset()で得る。
+	int awaitWritable()
+	{
+		long tail = mTail.get();
+		while( !mClosed && tail - mCachedHead == getCapacity() )
+		{
+			mCachedHead = mHead.get();
+			if( tail - mCachedHead < getCapacity() )
+			{
+				break;
+			}
+			mWaitingProducer = Thread.currentThread();
+			if( tail - mHead.get() == getCapacity() && !mClosed )
+			{    // 読み込み側のadvance()で起こされるまで待つ
+				LockSupport.park( this );
+			}
+			mWaitingProducer = null;
+		}
+		if( mClosed )
+		{
+			return 0;
+		}
+		int index = (int)tail & mMask;
+		return (int)Math.min( getCapacity() - ( tail - mCachedHead ), getCapacity() - index );
+	}
+
+	// 書き込む領域の配列（ヒープバッファーのみ）
+	byte[] getWriteArray()
+	{
+		return mArray;
+	}
+
+	// 書き込む領域の、配列上の位置（ヒープバッファーのみ）
+	int getWriteOffset()
+	{
+		return mArrayOffset + ( (int)mTail.get() & mMask );
+	}
+
+	// 配列からの書き込み（ダイレクトバッファー用。lengthは、awaitWritable()の戻り値以下であること）
+	void put( byte[] buf, int offset, int length )
+	{
+		ByteBuffer target = mBuffer.duplicate();
+		int        index  = (int)mTail.get() & mMask;
+		target.limit( index + length ).position( index );
+		target.put( buf, offset, length );
+	}
+
+	// 書き込んだ分の公開（読み込み側から見えるようにする）
+	void publish( int length )
+	{
+		mTail.set( mTail.get() + length );    // volatileの書き込みの後にmWaitingConsumerを読む（起こし忘れを防ぐ）
+		Thread consumer = mWaitingConsumer;
+		if( null != consumer )
+		{
+			LockSupport.unpark( consumer );
+		}
+	}
+
+	// ---- 読み込み側 ----
+
+	// 読んだバイト数の合計（advance()で進めた分。受信側のクレジットの付与に使う）
+	public long getConsumed()
+	{
+		return mHead.get();
+	}
+
+	// 読めるバイト数（連続していない分も含む）
+	public int available()
+	{
+		return (int)( mTail.get() - mHead.get() );
+	}
+
+	// 読めるデータができるまで、読み込み側の待ち方で待つ。
+	// 戻り値は、読めるバイト数（閉じられて、残りもなければ、-1）。
+	public int await() throws InterruptedException
+	{
+		long head = mHead.get();
+		int  spins = 0;
+		while( head == ( mCachedTail = mTail.get() ) )
+		{
+			if( mClosed )
+			{
+				return ( head == mTail.get() ) ? -1 : (int)( mTail.get() - head );
+			}
+			if( Thread.interrupted() )
+			{
+				throw new InterruptedException();
+			}
+			switch( mWaitStrategy )
+			{
+				case WAIT_BLOCKING:
+					mWaitingConsumer = Thread.currentThread();
+					if( head == mTail.get() && !mClosed )
+					{    // 書き込み側のpublish()で起こされるまで待つ
+						LockSupport.park( this );
+					}
+					mWaitingConsumer = null;
+					break;
+				case WAIT_YIELDING:
+					if( SPIN_TRIES > spins++ )
+					{
+						break;
+					}
+					Thread.yield();
+					break;
+				default:
+					;    // WAIT_BUSYSPIN : 回り続ける
+					break;
+			}
+		}
+		return (int)( mCachedTail - head );
+	}
+
+	// 読める範囲のうち、連続している部分のビュー（コピーしない。position ～ limit が読める範囲）
+	// 返すビューは使い回すので、次のpeek()、advance()の後は使わないこと。読める範囲がなければ、空のビュー。
+	public ByteBuffer peek()
+	{
+		long head = mHead.get();
+		if( head == mCachedTail )
+		{
+			mCachedTail = mTail.get();
+		}
+		int index = (int)head & mMask;
+		int count = (int)Math.min( mCachedTail - head, getCapacity() - index );
+		mView.limit( index + count ).position( index );
+		return mView;
+	}
+
+	// 読んだ分だけ進める（空きを待っている書き込み側を起こす）
+	public void advance( int length )
+	{
+		mHead.set( mHead.get() + length );
+		Thread producer = mWaitingProducer;
+		if( null != producer )
+		{
+			LockSupport.unpark( producer );
+		}
+		Runnable drainListener = mDrainListener;
+		if( null != drainListener )
+		{
+			drainListener.run();
+		}
+	}
+
+	private static int roundUpToPowerOfTwo( int value )
+	{
+		int capacity = 1;
+		while( capacity < value )
+		{
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
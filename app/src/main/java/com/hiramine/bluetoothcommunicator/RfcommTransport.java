@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+// Bluetooth SPP（RFCOMM）の通信路
+public class RfcommTransport implements Transport
+{
+	// 定数（Bluetooth UUID）
+	private static final UUID UUID_SPP = UUID.fromString( "00001101-0000-1000-8000-00805f9b34fb" );
+
+	// 定数
+	private static final long DISCOVERYSTOP_TIMEOUT  = 2000;    // デバイス検索の停止を待つ最大時間[ms]
+	private static final long DISCOVERYSTOP_INTERVAL = 20;    // デバイス検索の停止を確認する間隔[ms]
+
+	// メンバー変数
+	private final BluetoothDevice mBluetoothDevice;
+	private       BluetoothSocket mBluetoothSocket;
+
+	// コンストラクタ
+	public RfcommTransport( BluetoothDevice bluetoothdevice )
+	{
+		mBluetoothDevice = bluetoothdevice;
+	}
+
+	@Override
+	public void open() throws IOException
+	{
+		mBluetoothSocket = mBluetoothDevice.createRfcommSocketToServiceRecord( UUID_SPP );
+	}
+
+	// デバイス検索の停止
+	// （デバイス検索中は、接続が大幅に遅くなるので、接続前に必ず停止する。停止するまで少し待つ）
+	@Override
+	public void prepareConnect() throws IOException
+	{
+		BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+		if( null == bluetoothAdapter || !bluetoothAdapter.isDiscovering() )
+		{
+			return;
+		}
+		bluetoothAdapter.cancelDiscovery();
+		long timeout = SystemClock.elapsedRealtime() + DISCOVERYSTOP_TIMEOUT;
+		while( bluetoothAdapter.isDiscovering() && SystemClock.elapsedRealtime() < timeout )
+		{
+			SystemClock.sleep( DISCOVERYSTOP_INTERVAL );
+		}
+	}
+
+	// 接続（SDPによるサービス検索は、この中で行われる）
+	@Override
+	public void connect() throws IOException
+	{
+		if( null == mBluetoothSocket )
+		{
+			throw new IOException( "socket is not opened" );
+		}
+		mBluetoothSocket.connect();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		return mBluetoothSocket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		return mBluetoothSocket.getOutputStream();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if( null != mBluetoothSocket )
+		{
+			mBluetoothSocket.close();
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.util.Arrays;
+
+// 数値のテレメトリー（例：「12.5,3,-0.25」や「T=12.5 H=40」の行）を、一定時間の窓ごとに集計して間引く処理
+// 行の各フィールドを数値として読み取り、フィールドごとに 最小・最大・平均・最終値 を求める。
+// 集計用の配列は最初に確保したものを使い回すので、定常状態ではオブジェクトを生成しない。
+// 数値でないフィールドを含む行（例：「OK」「ERR 12」）は、集計しない。
+// onLine()は受信処理のスレッドから、advance()はタイマーなどの別スレッドから呼ばれるので、集計はロックして行う。
+public class TelemetryAggregator implements LineDecoder.LineListener
+{
+	// 窓ごとの集計結果のリスナー
+	// onLine()かadvance()を呼んだスレッドから、ロックしたまま呼ばれる。配列の内容は次の窓で上書きされるので、保持する場合はコピーすること。
+	// フィールドに値がなかった場合は、Double.NaN。
+	public interface WindowListener
+	{
+		void onWindow( long windowStartMillis, int fieldCount, double[] min, double[] max, double[] mean, double[] last );
+	}
+
+	// 定数
+	public static final int SERIES_MIN  = 0;
+	public static final int SERIES_MAX  = 1;
+	public static final int SERIES_MEAN = 2;
+	public static final int SERIES_LAST = 3;
+
+	// メンバー変数（集計中の窓）
+	private final long     mWindowMillis;
+	private final int      mMaxFields;
+	private       long     mWindowStart = -1;    // 集計中の窓の開始時刻（-1は未開始）
+	private       int      mFieldCount  = 0;    // 集計中の窓で値があったフィールドの数
+	private final double[] mMin;
+	private final double[] mMax;
+	private final double[] mSum;
+	private final double[] mLast;
+	private final int[]    mCount;
+	private final double[] mOutputMean;
+
+	// メンバー変数（間引いた結果の履歴。表示や保存用。リングバッファー）
+	private final long[]     mHistoryTime;
+	private final double[][] mHistory;    // [SERIES_xxx * mMaxFields + フィールド番号][窓の番号]
+	private       int        mHistoryHead  = 0;    // 次に書き込む位置
+	private       int        mHistoryCount = 0;
+
+	private volatile WindowListener[] mListeners = new WindowListener[0];    // 変更時は配列ごと差し替える（通知時にオブジェクトを生成しないため）
+
+	// コンストラクタ
+	public TelemetryAggregator( long windowMillis, int maxFields, int historyCapacity )
+	{
+		mWindowMillis = windowMillis;
+		mMaxFields = maxFields;
+		mMin = new double[maxFields];
+		mMax = new double[maxFields];
+		mSum = new double[maxFields];
+		mLast = new double[maxFields];
+		mCount = new int[maxFields];
+		mOutputMean = new double[maxFields];
+		mHistoryTime = new long[historyCapacity];
+		mHistory = new double[4 * maxFields][historyCapacity];
+		resetWindow();
+	}
+
+	// リスナーの追加
+	public synchronized void addWindowListener( WindowListener listener )
+	{
+		for( WindowListener registered : mListeners )
+		{
+			if( registered == listener )
+			{
+				return;
+			}
+		}
+		WindowListener[] listeners = Arrays.copyOf( mListeners, mListeners.length + 1 );
+		listeners[listeners.length - 1] = listener;
+		mListeners = listeners;
+	}
+
+	// リスナーの削除
+	public synchronized void removeWindowListener( WindowListener listener )
+	{
+		WindowListener[] listeners = new WindowListener[mListeners.length];
+		int              count     = 0;
+		for( WindowListener registered : mListeners )
+		{
+			if( registered != listener )
+			{
+				listeners[count++] = registered;
+			}
+		}
+		mListeners = Arrays.copyOf( listeners, count );
+	}
+
+	// 行の集計（受信処理のスレッドから呼ばれる）
+	@Override
+	public void onLine( byte[] line, int length )
+	{
+		onLine( line, length, System.nanoTime() / 1000000L );
+	}
+
+	// 行の集計（時刻の指定あり）
+	public synchronized void onLine( byte[] line, int length, long nowMillis )
+	{
+		advance( nowMillis );
+		if( !isTelemetryLine( line, length ) )
+		{    // 数値のテレメトリーではない
+			return;
+		}
+		if( 0 > mWindowStart )
+		{
+			mWindowStart = nowMillis - ( nowMillis % mWindowMillis );
+		}
+
+		int field = 0;
+		int i     = 0;
+		while( i < length && field < mMaxFields )
+		{
+			// フィールドの切り出し（区切りは「,」「;」空白）
+			while( i < length && isSeparator( line[i] ) )
+			{
+				i++;
+			}
+			if( i >= length )
+			{
+				break;
+			}
+			int start = i;
+			while( i < length && !isSeparator( line[i] ) )
+			{
+				i++;
+			}
+			addSample( field, NumberParser.parseDouble( line, valueStart( line, start, i ), i ) );
+			field++;
+		}
+	}
+
+	// 時刻を進める（現在時刻）。データが来ない間も窓を閉じるため、タイマーなどから定期的に呼ぶ。
+	public void advance()
+	{
+		advance( System.nanoTime() / 1000000L );
+	}
+
+	// 時刻を進める。窓の終わりを過ぎていたら、集計結果を出力する。
+	public synchronized void advance( long nowMillis )
+	{
+		if( 0 <= mWindowStart && nowMillis >= mWindowStart + mWindowMillis )
+		{
+			emitWindow();
+			resetWindow();
+		}
+	}
+
+	// 間引いた結果の履歴の取得（古い順）。戻り値は、コピーした窓の数。
+	// seriesはSERIES_xxx。timeMillisはnullでもよい。
+	public synchronized int copyHistory( int field, int series, long[] timeMillis, double[] values )
+	{
+		int count = Math.min( mHistoryCount, values.length );
+		int first = mHistoryHead - count;
+		if( 0 > first )
+		{
+			first += mHistoryTime.length;
+		}
+		double[] history = mHistory[series * mMaxFields + field];
+		for( int i = 0; i < count; i++ )
+		{
+			int index = ( first + i ) % mHistoryTime.length;
+			values[i] = history[index];
+			if( null != timeMillis )
+			{
+				timeMillis[i] = mHistoryTime[index];
+			}
+		}
+		return count;
+	}
+
+	// 数値のテレメトリーの行かどうか（フィールドが１つ以上あり、すべてが「数値」か「キー=数値」「キー:数値」）
+	public static boolean isTelemetryLine( byte[] line, int length )
+	{
+		int fields = 0;
+		int i      = 0;
+		while( i < length )
+		{
+			while( i < length && isSeparator( line[i] ) )
+			{
+				i++;
+			}
+			if( i >= length )
+			{
+				break;
+			}
+			int start = i;
+			while( i < length && !isSeparator( line[i] ) )
+			{
+				i++;
+			}
+			if( Double.isNaN( NumberParser.parseDouble( line, valueStart( line, start, i ), i ) ) )
+			{
+				return false;
+			}
+			fields++;
+		}
+		return 0 < fields;
+	}
+
+	private static boolean isSeparator( byte c )
+	{
+		return ',' == c || ';' == c || ' ' == c || '\t' == c;
+	}
+
+	// フィールドの値の開始位置（「キー=値」「キー:値」の場合は、値の部分）
+	private static int valueStart( byte[] line, int start, int end )
+	{
+		for( int j = end - 1; j >= start; j-- )
+		{
+			if( '=' == line[j] || ':' == line[j] )
+			{
+				return j + 1;
+			}
+		}
+		return start;
+	}
+
+	private void addSample( int field, double value )
+	{
+		if( value < mMin[field] )
+		{
+			mMin[field] = value;
+		}
+		if( value > mMax[field] )
+		{
+			mMax[field] = value;
+		}
+		mSum[field] += value;
+		mLast[field] = value;
+		mCount[field]++;
+		if( field >= mFieldCount )
+		{
+			mFieldCount = field + 1;
+		}
+	}
+
+	private void resetWindow()
+	{
+		mWindowStart = -1;
+		mFieldCount = 0;
+		Arrays.fill( mMin, Double.POSITIVE_INFINITY );
+		Arrays.fill( mMax, Double.NEGATIVE_INFINITY );
+		Arrays.fill( mSum, 0 );
+		Arrays.fill( mLast, Double.NaN );
+		Arrays.fill( mCount, 0 );
+	}
+
+	// 集計結果の出力
+	private void emitWindow()
+	{
+		for( int field = 0; field < mFieldCount; field++ )
+		{
+			if( 0 == mCount[field] )
+			{
+				mMin[field] = Double.NaN;
+				mMax[field] = Double.NaN;
+				mOutputMean[field] = Double.NaN;
+			}
+			else
+			{
+				mOutputMean[field] = mSum[field] / mCount[field];
+			}
+		}
+
+		// 履歴への追加
+		mHistoryTime[mHistoryHead] = mWindowStart;
+		for( int field = 0; field < mMaxFields; field++ )
+		{
+			boolean valid = field < mFieldCount;
+			mHistory[SERIES_MIN * mMaxFields + field][mHistoryHead] = valid ? mMin[field] : Double.NaN;
+			mHistory[SERIES_MAX * mMaxFields + field][mHistoryHead] = valid ? mMax[field] : Double.NaN;
+			mHistory[SERIES_MEAN * mMaxFields + field][mHistoryHead] = valid ? mOutputMean[field] : Double.NaN;
+			mHistory[SERIES_LAST * mMaxFields + field][mHistoryHead] = valid ? mLast[field] : Double.NaN;
+		}
+		mHistoryHead = ( mHistoryHead + 1 ) % mHistoryTime.length;
+		if( mHistoryCount < mHistoryTime.length )
+		{
+			mHistoryCount++;
+		}
+
+		for( WindowListener listener : mListeners )
+		{
+			listener.onWindow( mWindowStart, mFieldCount, mMin, mMax, mOutputMean, mLast );
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// 通信路（BluetoothServiceが接続、送受信に使う）
+// 実機ではRfcommTransport。試験用に、模擬的な通信路に差し替えられる。
+public interface Transport
+{
+	// 通信路の作成（ソケットの作成など。接続前に済ませておける処理）
+	void open() throws IOException;
+
+	// 接続の準備（接続を遅くする処理の停止など。RFCOMMでは、デバイス検索の停止）
+	void prepareConnect() throws IOException;
+
+	// 接続
+	void connect() throws IOException;
+
+	InputStream getInputStream() throws IOException;
+
+	OutputStream getOutputStream() throws IOException;
+
+	// 切断（ブロック中の読み書きも、IOExceptionで終わらせる）
+	void close() throws IOException;
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 受信した行に対して、多数のルール（前方一致、部分一致、正規表現、しきい値）を同時に評価するエンジン
+// 前方一致、部分一致、しきい値のキーは、１つのAho-Corasickオートマトンにまとめて照合するので、
+// ルールの数が増えても、１行あたりの照合コストはほぼ行の長さだけで決まる。
+// onLine()は受信処理のスレッドから呼ばれる（１つのエンジンを複数の接続で共有しないこと）。
+public class TriggerEngine implements LineDecoder.LineListener
+{
+	// ルール
+	public static final class Rule
+	{
+		// 定数
+		public static final int TYPE_PREFIX    = 0;    // 前方一致
+		public static final int TYPE_SUBSTRING = 1;    // 部分一致
+		public static final int TYPE_REGEX     = 2;    // 正規表現（行全体を文字に展開して照合するので、他の種類より重い）
+		public static final int TYPE_THRESHOLD = 3;    // しきい値（キーの直後の数値を比較する。例：キー「TEMP=」、行「TEMP=42.5」）
+
+		public static final int COMPARE_GREATER          = 0;
+		public static final int COMPARE_GREATER_OR_EQUAL = 1;
+		public static final int COMPARE_LESS             = 2;
+		public static final int COMPARE_LESS_OR_EQUAL    = 3;
+
+		// メンバー変数
+		private final String  mName;
+		private final int     mType;
+		private final byte[]  mKey;
+		private final Pattern mPattern;
+		private final int     mCompare;
+		private final double  mThreshold;
+
+		private Rule( String name, int type, byte[] key, Pattern pattern, int compare, double threshold )
+		{
+			mName = name;
+			mType = type;
+			mKey = key;
+			mPattern = pattern;
+			mCompare = compare;
+			mThreshold = threshold;
+		}
+
+		// 前方一致ルール
+		public static Rule prefix( String name, String prefix )
+		{
+			return new Rule( name, TYPE_PREFIX, toBytes( prefix ), null, 0, 0 );
+		}
+
+		// 部分一致ルール
+		public static Rule substring( String name, String substring )
+		{
+			return new Rule( name, TYPE_SUBSTRING, toBytes( substring ), null, 0, 0 );
+		}
+
+		// 正規表現ルール（行のどこかに一致すればよい）
+		public static Rule regex( String name, String regex )
+		{
+			return new Rule( name, TYPE_REGEX, null, Pattern.compile( regex ), 0, 0 );
+		}
+
+		// しきい値ルール（しきい値は有限の値。NaN、無限大は、IllegalArgumentException）
+		public static Rule threshold( String name, String key, int compare, double threshold )
+		{
+			if( Double.isNaN( threshold ) || Double.isInfinite( threshold ) )
+			{
+				throw new IllegalArgumentException( "invalid threshold : " + name );
+			}
+			return new Rule( name, TYPE_THRESHOLD, toBytes( key ), null, compare, threshold );
+		}
+
+		// 文字列からのルールの作成（ルール名は、文字列そのもの）
+		// 書式は、次のいずれか。書式が誤っている場合は、IllegalArgumentException。
+		// ・前方一致　「prefix:ERR」
+		// ・部分一致　「substring:ALARM」
+		// ・正規表現　「regex:^T[0-9]+$」
+		// ・しきい値　「threshold:TEMP=>=40」（キー「TEMP=」、比較「>=」、しきい値「40」。比較は >、>=、<、<= のいずれか。しきい値は有限の数値）
+		public static Rule parse( String spec )
+		{
+			int colon = spec.indexOf( ':' );
+			if( 0 > colon )
+			{
+				throw new IllegalArgumentException( "missing rule type : " + spec );
+			}
+			String type = spec.substring( 0, colon ).trim();
+			String body = spec.substring( colon + 1 );
+			if( type.equals( "prefix" ) )
+			{
+				return prefix( spec, body );
+			}
+			if( type.equals( "substring" ) )
+			{
+				return substring( spec, body );
+			}
+			if( type.equals( "regex" ) )
+			{
+				return regex( spec, body );
+			}
+			if( type.equals( "threshold" ) )
+			{
+				// 比較演算子は、最後の「>」か「<」（キーに「>」、「<」を含んでもよい）
+				int index = Math.max( body.lastIndexOf( '>' ), body.lastIndexOf( '<' ) );
+				if( 0 >= index )
+				{
+					throw new IllegalArgumentException( "missing comparison : " + spec );
+				}
+				boolean greater = ( '>' == body.charAt( index ) );
+				boolean orEqual = ( index + 1 < body.length() && '=' == body.charAt( index + 1 ) );
+				int     compare = greater ? ( orEqual ? COMPARE_GREATER_OR_EQUAL : COMPARE_GREATER )
+										  : ( orEqual ? COMPARE_LESS_OR_EQUAL : COMPARE_LESS );
+				double threshold;
+				try
+				{
+					threshold = Double.parseDouble( body.substring( orEqual ? index + 2 : index + 1 ).trim() );
+				}
+				catch( NumberFormatException e )
+				{
+					throw new IllegalArgumentException( "invalid threshold : " + spec );
+				}
+				return threshold( spec, body.substring( 0, index ), compare, threshold );
+			}
+			throw new IllegalArgumentException( "unknown rule type : " + spec );
+		}
+
+		public String getName()
+		{
+			return mName;
+		}
+
+		public int getType()
+		{
+			return mType;
+		}
+
+		private static byte[] toBytes( String string )
+		{
+			if( 0 == string.length() )
+			{
+				throw new IllegalArgumentException( "empty pattern" );
+			}
+			return string.getBytes( CHARSET );
+		}
+
+		// しきい値の比較
+		private boolean compare( double value )
+		{
+			switch( mCompare )
+			{
+				case COMPARE_GREATER:
+					return value > mThreshold;
+				case COMPARE_GREATER_OR_EQUAL:
+					return value >= mThreshold;
+				case COMPARE_LESS:
+					return value < mThreshold;
+				case COMPARE_LESS_OR_EQUAL:
+					return value <= mThreshold;
+			}
+			return false;
+		}
+	}
+
+	// ルールに一致した時のリスナー
+	// 受信処理のスレッドから呼ばれる。lineの内容は次の行で上書きされるので、保持する場合はコピーすること。
+	public interface TriggerListener
+	{
+		void onTrigger( Rule rule, byte[] line, int length );
+	}
+
+	// 前方一致、部分一致、しきい値のキーをまとめたオートマトン（構築後は変更しない）
+	private static final class Automaton
+	{
+		private final int[]      mByteClass = new int[256];    // バイト値→文字クラス（0はどのキーにも現れないバイト）
+		private final int        mClassCount;
+		private final int[]      mDelta;    // 遷移表（状態 * mClassCount + 文字クラス）
+		private final int[][]    mOutput;    // 状態ごとの、そこで終わるルールの番号（失敗遷移先の分も含む）
+		private final Rule[]     mRules;    // オートマトンで照合するルール
+		private final Rule[]     mRegexRules;    // 正規表現ルール
+		private final Matcher[]  mRegexMatchers;    // 正規表現ルールごとのMatcher（行ごとにreset()して使い回す）
+		private final int[]      mFiredSerial;    // ルールごとの、最後に一致した行の通し番号（１行で同じルールを２回通知しないため）
+		private       int        mLineSerial = 0;
+		private       char[]     mRegexChars  = new char[0];    // 正規表現で照合する行（ISO-8859-1なので、バイト値をそのまま文字にする）
+		private       CharBuffer mRegexBuffer = CharBuffer.wrap( mRegexChars );
+
+		Automaton( ArrayList<Rule> rules )
+		{
+			ArrayList<Rule> keyRules   = new ArrayList<Rule>();
+			ArrayList<Rule> regexRules = new ArrayList<Rule>();
+			for( Rule rule : rules )
+			{
+				if( Rule.TYPE_REGEX == rule.mType )
+				{
+					regexRules.add( rule );
+				}
+				else
+				{
+					keyRules.add( rule );
+				}
+			}
+			mRules = keyRules.toArray( new Rule[keyRules.size()] );
+			mRegexRules = regexRules.toArray( new Rule[regexRules.size()] );
+			mFiredSerial = new int[mRules.length];
+			mRegexMatchers = new Matcher[mRegexRules.length];
+			for( int i = 0; i < mRegexRules.length; i++ )
+			{
+				mRegexMatchers[i] = mRegexRules[i].mPattern.matcher( "" );
+			}
+
+			// 文字クラスの割り当て（キーに現れるバイトだけを区別して、遷移表を小さくする）
+			int classCount = 1;
+			for( Rule rule : mRules )
+			{
+				for( byte c : rule.mKey )
+				{
+					if( 0 == mByteClass[c & 0xff] )
+					{
+						mByteClass[c & 0xff] = classCount++;
+					}
+				}
+			}
+			mClassCount = classCount;
+
+			// トライ木の構築
+			ArrayList<int[]>             transitions = new ArrayList<int[]>();
+			ArrayList<ArrayList<Integer>> outputs    = new ArrayList<ArrayList<Integer>>();
+			transitions.add( newTransitionRow() );
+			outputs.add( new ArrayList<Integer>() );
+			for( int iRule = 0; iRule < mRules.length; iRule++ )
+			{
+				int state = 0;
+				for( byte c : mRules[iRule].mKey )
+				{
+					int cls = mByteClass[c & 0xff];
+					if( 0 > transitions.get( state )[cls] )
+					{
+						transitions.get( state )[cls] = transitions.size();
+						transitions.add( newTransitionRow() );
+						outputs.add( new ArrayList<Integer>() );
+					}
+					state = transitions.get( state )[cls];
+				}
+				outputs.get( state ).add( iRule );
+			}
+
+			// 失敗遷移の計算（幅優先）と、遷移表の完成（失敗遷移を展開して、DFAにする）
+			int   stateCount = transitions.size();
+			int[] fail       = new int[stateCount];
+			ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+			int[] root = transitions.get( 0 );
+			for( int cls = 0; cls < mClassCount; cls++ )
+			{
+				if( 0 > root[cls] )
+				{
+					root[cls] = 0;
+				}
+				else
+				{
+					fail[root[cls]] = 0;
+					queue.add( root[cls] );
+				}
+			}
+			while( !queue.isEmpty() )
+			{
+				int   state = queue.poll();
+				int[] row   = transitions.get( state );
+				for( int cls = 0; cls < mClassCount; cls++ )
+				{
+					int next = row[cls];
+					if( 0 > next )
+					{
+						row[cls] = transitions.get( fail[state] )[cls];
+					}
+					else
+					{
+						fail[next] = transitions.get( fail[state] )[cls];
+						outputs.get( next ).addAll( outputs.get( fail[next] ) );
+						queue.add( next );
+					}
+				}
+			}
+
+			mDelta = new int[stateCount * mClassCount];
+			mOutput = new int[stateCount][];
+			for( int state = 0; state < stateCount; state++ )
+			{
+				System.arraycopy( transitions.get( state ), 0, mDelta, state * mClassCount, mClassCount );
+				ArrayList<Integer> output = outputs.get( state );
+				if( !output.isEmpty() )
+				{
+					mOutput[state] = new int[output.size()];
+					for( int i = 0; i < output.size(); i++ )
+					{
+						mOutput[state][i] = output.get( i );
+					}
+				}
+			}
+		}
+
+		private int[] newTransitionRow()
+		{
+			int[] row = new int[mClassCount];
+			for( int i = 0; i < row.length; i++ )
+			{
+				row[i] = -1;
+			}
+			return row;
+		}
+
+		// １行の評価
+		void evaluate( byte[] line, int length, CopyOnWriteArrayList<TriggerListener> listeners )
+		{
+			mLineSerial++;
+			if( 0 == mLineSerial )
+			{    // 通し番号が一周した
+				Arrays.fill( mFiredSerial, 0 );
+				mLineSerial = 1;
+			}
+
+			int state = 0;
+			for( int i = 0; i < length; i++ )
+			{
+				state = mDelta[state * mClassCount + mByteClass[line[i] & 0xff]];
+				int[] output = mOutput[state];
+				if( null == output )
+				{
+					continue;
+				}
+				for( int iRule : output )
+				{
+					if( mLineSerial == mFiredSerial[iRule] )
+					{    // この行で通知済み
+						continue;
+					}
+					Rule rule = mRules[iRule];
+					if( match( rule, line, i + 1, length ) )
+					{
+						mFiredSerial[iRule] = mLineSerial;
+						fire( rule, line, length, listeners );
+					}
+				}
+			}
+
+			if( 0 < mRegexRules.length )
+			{
+				CharBuffer chars = toChars( line, length );
+				for( int i = 0; i < mRegexRules.length; i++ )
+				{
+					if( mRegexMatchers[i].reset( chars ).find() )
+					{
+						fire( mRegexRules[i], line, length, listeners );
+					}
+				}
+			}
+		}
+
+		// 行を、使い回しの文字バッファーに展開する（行ごとにStringを生成しない）
+		private CharBuffer toChars( byte[] line, int length )
+		{
+			if( mRegexChars.length < length )
+			{
+				mRegexChars = new char[Math.max( length, mRegexChars.length * 2 )];
+				mRegexBuffer = CharBuffer.wrap( mRegexChars );
+			}
+			for( int i = 0; i < length; i++ )
+			{
+				mRegexChars[i] = (char)( line[i] & 0xff );
+			}
+			mRegexBuffer.clear();
+			mRegexBuffer.limit( length );
+			return mRegexBuffer;
+		}
+
+		// キーが行のkeyEnd - 1までに一致した時の、ルールごとの判定
+		private static boolean match( Rule rule, byte[] line, int keyEnd, int length )
+		{
+			switch( rule.mType )
+			{
+				case Rule.TYPE_PREFIX:
+					return keyEnd == rule.mKey.length;
+				case Rule.TYPE_SUBSTRING:
+					return true;
+				case Rule.TYPE_THRESHOLD:
+					int start = NumberParser.skipSpaces( line, keyEnd, length );
+					int end = NumberParser.numberEnd( line, start, length );
+					double value = NumberParser.parseDouble( line, start, end );
+					return !Double.isNaN( value ) && rule.compare( value );
+			}
+			return false;
+		}
+
+		private static void fire( Rule rule, byte[] line, int length, CopyOnWriteArrayList<TriggerListener> listeners )
+		{
+			for( TriggerListener listener : listeners )
+			{
+				listener.onTrigger( rule, line, length );
+			}
+		}
+	}
+
+	// 定数
+	private static final Charset CHARSET = Charset.forName( "ISO-8859-1" );    // バイト値をそのまま文字にする
+
+	// メンバー変数
+	private final ArrayList<Rule>                       mRules     = new ArrayList<Rule>();
+	private final CopyOnWriteArrayList<TriggerListener> mListeners = new CopyOnWriteArrayList<TriggerListener>();
+	private volatile Automaton mAutomaton;    // ルール変更時にnullにして、次の行の評価時に再構築する
+
+	// ルールの追加
+	public synchronized void addRule( Rule rule )
+	{
+		mRules.add( rule );
+		mAutomaton = null;
+	}
+
+	// ルールの削除
+	public synchronized void removeRule( Rule rule )
+	{
+		if( mRules.remove( rule ) )
+		{
+			mAutomaton = null;
+		}
+	}
+
+	// ルールの全削除
+	public synchronized void clearRules()
+	{
+		mRules.clear();
+		mAutomaton = null;
+	}
+
+	// ルールの置き換え（接続中でもよい。次の行から新しいルールで評価する）
+	public synchronized void setRules( Collection<Rule> rules )
+	{
+		mRules.clear();
+		mRules.addAll( rules );
+		mAutomaton = null;
+	}
+
+	public synchronized int getRuleCount()
+	{
+		return mRules.size();
+	}
+
+	// 複数行の文字列からのルールの作成（１行に１ルール。空行と「#」で始まる行は無視する）
+	// 書式は、Rule.parse()を参照。誤っている行があれば、IllegalArgumentException。
+	public static ArrayList<Rule> parseRules( String text )
+	{
+		ArrayList<Rule> rules = new ArrayList<Rule>();
+		for( String line : text.split( "\\r?\\n" ) )
+		{
+			String spec = line.trim();
+			if( 0 == spec.length() || spec.startsWith( "#" ) )
+			{
+				continue;
+			}
+			rules.add( Rule.parse( spec ) );
+		}
+		return rules;
+	}
+
+	// リスナーの追加
+	public void addTriggerListener( TriggerListener listener )
+	{
+		mListeners.addIfAbsent( listener );
+	}
+
+	// リスナーの削除
+	public void removeTriggerListener( TriggerListener listener )
+	{
+		mListeners.remove( listener );
+	}
+
+	// 行の評価（受信処理のスレッドから呼ばれる）
+	@Override
+	public void onLine( byte[] line, int length )
+	{
+		Automaton automaton = mAutomaton;
+		if( null == automaton )
+		{
+			automaton = buildAutomaton();
+		}
+		automaton.evaluate( line, length, mListeners );
+	}
+
+	// オートマトンの構築
+	private synchronized Automaton buildAutomaton()
+	{
+		if( null == mAutomaton )
+		{
+			mAutomaton = new Automaton( mRules );
+		}
+		return mAutomaton;
+	}
+}
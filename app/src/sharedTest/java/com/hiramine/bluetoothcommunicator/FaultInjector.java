@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.util.Random;
+
+// 模擬的な通信路（SimulatedTransport）に注入する障害の設定と、その発生判定
+// 乱数の種（seed）が同じなら、同じ順番の操作に対して、同じ障害が発生する（再現できる）。
+// 受信側と送信側は別のスレッドで動くので、乱数列を分けて、スレッドの実行順によらず再現できるようにしている。
+public class FaultInjector
+{
+	// 定数（障害の種類）
+	public static final int FAULT_NONE         = 0;
+	public static final int FAULT_IOEXCEPTION  = 1;    // 途中でIOException
+	public static final int FAULT_HANG         = 2;    // 切断されるまで戻らない
+	public static final int FAULT_PARTIALWRITE = 3;    // 一部だけ送信してIOException（送信のみ）
+
+	// メンバー変数（設定）
+	private final long mSeed;
+	private int    mMaxDelayMillis          = 0;    // 接続、読み込み、書き込みの遅延の最大値[ms]
+	private int    mMaxReadFragment         = 0;    // 読み込み１回で返す最大バイト数（0は制限なし）
+	private double mConnectFailProbability  = 0;
+	private double mIOExceptionProbability  = 0;    // 読み込み、書き込み１回あたりの確率
+	private double mHangProbability         = 0;    // 読み込み、書き込み１回あたりの確率
+	private double mPartialWriteProbability = 0;    // 書き込み１回あたりの確率
+
+	// メンバー変数（状態）
+	private final Random mReadRandom;    // 接続と受信側用
+	private final Random mWriteRandom;    // 送信側用
+	private       int    mInjectedFaultCount = 0;
+
+	// コンストラクタ
+	public FaultInjector( long seed )
+	{
+		mSeed = seed;
+		mReadRandom = new Random( seed );
+		mWriteRandom = new Random( ~seed );
+	}
+
+	// 同じ設定で、乱数の種だけが違うものを作成する（接続ごとに使う）
+	public synchronized FaultInjector derive( long salt )
+	{
+		FaultInjector faultInjector = new FaultInjector( mSeed * 31 + salt );
+		faultInjector.mMaxDelayMillis = mMaxDelayMillis;
+		faultInjector.mMaxReadFragment = mMaxReadFragment;
+		faultInjector.mConnectFailProbability = mConnectFailProbability;
+		faultInjector.mIOExceptionProbability = mIOExceptionProbability;
+		faultInjector.mHangProbability = mHangProbability;
+		faultInjector.mPartialWriteProbability = mPartialWriteProbability;
+		return faultInjector;
+	}
+
+	public synchronized void setMaxDelayMillis( int maxDelayMillis )
+	{
+		mMaxDelayMillis = maxDelayMillis;
+	}
+
+	public synchronized void setMaxReadFragment( int maxReadFragment )
+	{
+		mMaxReadFragment = maxReadFragment;
+	}
+
+	public synchronized void setConnectFailProbability( double probability )
+	{
+		mConnectFailProbability = probability;
+	}
+
+	public synchronized void setIOExceptionProbability( double probability )
+	{
+		mIOExceptionProbability = probability;
+	}
+
+	public synchronized void setHangProbability( double probability )
+	{
+		mHangProbability = probability;
+	}
+
+	public synchronized void setPartialWriteProbability( double probability )
+	{
+		mPartialWriteProbability = probability;
+	}
+
+	// 実際に発生させた障害の数
+	public synchronized int getInjectedFaultCount()
+	{
+		return mInjectedFaultCount;
+	}
+
+	// 遅延時間[ms]
+	synchronized int nextDelayMillis( boolean write )
+	{
+		return ( 0 < mMaxDelayMillis ) ? random( write ).nextInt( mMaxDelayMillis + 1 ) : 0;
+	}
+
+	// 読み込み１回で返すバイト数
+	synchronized int nextReadLength( int available )
+	{
+		if( 0 >= mMaxReadFragment || available <= 1 )
+		{
+			return available;
+		}
+		return 1 + mReadRandom.nextInt( Math.min( available, mMaxReadFragment ) );
+	}
+
+	// 一部だけ送信する場合のバイト数
+	synchronized int nextPartialLength( int length )
+	{
+		return ( 1 < length ) ? mWriteRandom.nextInt( length ) : 0;
+	}
+
+	// 接続を失敗させるかどうか
+	synchronized boolean nextConnectFails()
+	{
+		if( mReadRandom.nextDouble() < mConnectFailProbability )
+		{
+			mInjectedFaultCount++;
+			return true;
+		}
+		return false;
+	}
+
+	// 読み込み、書き込み１回あたりの障害
+	synchronized int nextFault( boolean write )
+	{
+		double value = random( write ).nextDouble();
+		int    fault = FAULT_NONE;
+		if( value < mIOExceptionProbability )
+		{
+			fault = FAULT_IOEXCEPTION;
+		}
+		else if( value < mIOExceptionProbability + mHangProbability )
+		{
+			fault = FAULT_HANG;
+		}
+		else if( write && value < mIOExceptionProbability + mHangProbability + mPartialWriteProbability )
+		{
+			fault = FAULT_PARTIALWRITE;
+		}
+		if( FAULT_NONE != fault )
+		{
+			mInjectedFaultCount++;
+		}
+		return fault;
+	}
+
+	private Random random( boolean write )
+	{
+		return write ? mWriteRandom : mReadRandom;
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// 模擬的な通信路（Bluetoothデバイスなしで、BluetoothServiceを動かすため。試験専用で、アプリには含めない）
+// ・BluetoothServiceが送信したデータは、相手側（getPeerInputStream()）で受信できる。
+// ・相手側（getPeerOutputStream()）で送信したデータは、BluetoothServiceが受信する。
+// ・折り返しモードでは、BluetoothServiceが送信したデータを、そのまま受信させる。
+// ・FaultInjectorの設定に従って、遅延、分割受信、部分送信、IOException、ハングを発生させる。
+// ・溢れ時破棄モードでは、相手側の受信バッファー（容量）が一杯のときに送信したデータを捨てる（UARTのオーバーランの模擬。フロー制御の確認用）。
+public class SimulatedTransport implements Transport
+{
+	// 容量付きのバイト列の通り道（書き込み側は空きを、読み込み側はデータを待つ）
+	static final class BytePipe
+	{
+		private final byte[]  mBuffer;
+		private       int     mHead   = 0;    // 次に読み込む位置
+		private       int     mCount  = 0;
+		private       boolean mClosed = false;
+		private       boolean mDropOnOverrun = false;    // 一杯のとき、書き込み側を待たせずに捨てる
+		private       long    mDroppedBytes  = 0;
+
+		BytePipe( int capacity )
+		{
+			mBuffer = new byte[capacity];
+		}
+
+		synchronized void write( byte[] buf, int offset, int length ) throws IOException
+		{
+			boolean interrupted = false;
+			try
+			{
+				while( 0 < length )
+				{
+					while( !mClosed && !mDropOnOverrun && mCount == mBuffer.length )
+					{
+						interrupted |= waitUninterruptibly();
+					}
+					if( mClosed )
+					{
+						throw new IOException( "pipe closed" );
+					}
+					if( mCount == mBuffer.length )
+					{    // 溢れた分は捨てる
+						mDroppedBytes += length;
+						return;
+					}
+					int tail  = ( mHead + mCount ) % mBuffer.length;
+					int count = Math.min( length, Math.min( mBuffer.length - mCount, mBuffer.length - tail ) );
+					System.arraycopy( buf, offset, mBuffer, tail, count );
+					mCount += count;
+					offset += count;
+					length -= count;
+					notifyAll();
+				}
+			}
+			finally
+			{
+				restoreInterrupt( interrupted );
+			}
+		}
+
+		synchronized int read( byte[] buf, int offset, int length ) throws IOException
+		{
+			boolean interrupted = false;
+			try
+			{
+				while( !mClosed && 0 == mCount )
+				{
+					interrupted |= waitUninterruptibly();
+				}
+				if( mClosed )
+				{
+					throw new IOException( "pipe closed" );
+				}
+				int count = Math.min( length, Math.min( mCount, mBuffer.length - mHead ) );
+				System.arraycopy( mBuffer, mHead, buf, offset, count );
+				mHead = ( mHead + count ) % mBuffer.length;
+				mCount -= count;
+				notifyAll();
+				return count;
+			}
+			finally
+			{
+				restoreInterrupt( interrupted );
+			}
+		}
+
+		synchronized int available()
+		{
+			return mCount;
+		}
+
+		synchronized void setDropOnOverrun( boolean dropOnOverrun )
+		{
+			mDropOnOverrun = dropOnOverrun;
+			notifyAll();
+		}
+
+		synchronized long getDroppedBytes()
+		{
+			return mDroppedBytes;
+		}
+
+		synchronized void close()
+		{
+			mClosed = true;
+			notifyAll();
+		}
+
+		// 割り込まれても待ち続ける（ソケットのストリームと同じく、割り込みでは戻らない）。戻り値は、割り込まれたかどうか。
+		// 待っている間に割り込み状態を戻すと、次のwait()がすぐに戻って回り続けるので、戻すのは待ち終わってから。
+		private boolean waitUninterruptibly()
+		{
+			try
+			{
+				wait();
+				return false;
+			}
+			catch( InterruptedException e )
+			{
+				return true;
+			}
+		}
+
+		private static void restoreInterrupt( boolean interrupted )
+		{
+			if( interrupted )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// 定数
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	// メンバー変数
+	private final FaultInjector mFaultInjector;
+	private final BytePipe      mToPeer;    // BluetoothService → 相手側
+	private final BytePipe      mToService;    // 相手側 → BluetoothService
+	private final boolean       mEcho;
+	private       boolean       mConnected = false;
+	private       boolean       mClosed    = false;
+
+	// BluetoothService側の受信
+	private final InputStream mInputStream = new InputStream()
+	{
+		@Override
+		public int read() throws IOException
+		{
+			byte[] buf = new byte[1];
+			return ( -1 == read( buf, 0, 1 ) ) ? -1 : ( buf[0] & 0xff );
+		}
+
+		@Override
+		public int read( byte[] buf, int offset, int length ) throws IOException
+		{
+			checkConnected();
+			injectFault( false );
+			return mToService.read( buf, offset, mFaultInjector.nextReadLength( length ) );
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return mToService.available();
+		}
+	};
+
+	// BluetoothService側の送信
+	private final OutputStream mOutputStream = new OutputStream()
+	{
+		@Override
+		public void write( int b ) throws IOException
+		{
+			write( new byte[]{ (byte)b }, 0, 1 );
+		}
+
+		@Override
+		public void write( byte[] buf, int offset, int length ) throws IOException
+		{
+			checkConnected();
+			if( FaultInjector.FAULT_PARTIALWRITE == injectFault( true ) )
+			{    // 一部だけ送信して失敗
+				outbound().write( buf, offset, mFaultInjector.nextPartialLength( length ) );
+				throw new IOException( "injected partial write" );
+			}
+			outbound().write( buf, offset, length );
+		}
+	};
+
+	// コンストラクタ
+	public SimulatedTransport( FaultInjector faultInjector, boolean echo )
+	{
+		this( faultInjector, echo, DEFAULT_CAPACITY );
+	}
+
+	// コンストラクタ（通り道の容量の指定あり。相手側の受信バッファーが小さい場合の模擬など）
+	public SimulatedTransport( FaultInjector faultInjector, boolean echo, int capacity )
+	{
+		mFaultInjector = faultInjector;
+		mEcho = echo;
+		mToPeer = new BytePipe( capacity );
+		mToService = new BytePipe( capacity );
+	}
+
+	@Override
+	public void open() throws IOException
+	{
+		;    // 何もしない（通り道はコンストラクタで作成済み）
+	}
+
+	@Override
+	public void prepareConnect() throws IOException
+	{
+		;    // 何もしない
+	}
+
+	@Override
+	public void connect() throws IOException
+	{
+		sleep( mFaultInjector.nextDelayMillis( false ) );
+		synchronized( this )
+		{
+			if( mClosed )
+			{
+				throw new IOException( "transport closed" );
+			}
+			if( mFaultInjector.nextConnectFails() )
+			{
+				throw new IOException( "injected connect failure" );
+			}
+			mConnected = true;
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		return mInputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		return mOutputStream;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		synchronized( this )
+		{
+			mClosed = true;
+			notifyAll();    // ハング中の読み書きを起こす
+		}
+		mToPeer.close();
+		mToService.close();
+	}
+
+	// 相手側の受信（BluetoothServiceが送信したデータ）
+	public int readPeer( byte[] buf, int offset, int length ) throws IOException
+	{
+		return mToPeer.read( buf, offset, length );
+	}
+
+	// 相手側の送信（BluetoothServiceが受信するデータ）
+	public void writePeer( byte[] buf, int offset, int length ) throws IOException
+	{
+		mToService.write( buf, offset, length );
+	}
+
+	// 相手側が受信していないバイト数
+	public int getPeerAvailable()
+	{
+		return mToPeer.available();
+	}
+
+	// 溢れ時破棄モードの設定（相手側の受信バッファーが一杯のとき、送信データを待たせずに捨てる）
+	public void setDropOnOverrun( boolean dropOnOverrun )
+	{
+		outbound().setDropOnOverrun( dropOnOverrun );
+	}
+
+	// 溢れて捨てたバイト数（フロー制御が効いていれば0）
+	public long getOverrunBytes()
+	{
+		return outbound().getDroppedBytes();
+	}
+
+	// 相手側の送信の溢れ時破棄モードの設定（BluetoothServiceの受信が追いつかないとき、相手側の送信データを待たせずに捨てる）
+	public void setPeerDropOnOverrun( boolean dropOnOverrun )
+	{
+		mToService.setDropOnOverrun( dropOnOverrun );
+	}
+
+	// 相手側の送信が溢れて捨てたバイト数（受信側のフロー制御が効いていれば0）
+	public long getPeerOverrunBytes()
+	{
+		return mToService.getDroppedBytes();
+	}
+
+	// BluetoothServiceが送信したデータの通り道（折り返しモードでは、BluetoothServiceの受信側）
+	private BytePipe outbound()
+	{
+		return mEcho ? mToService : mToPeer;
+	}
+
+	// 障害の注入。戻り値は、呼び出し元で処理する障害の種類。
+	private int injectFault( boolean write ) throws IOException
+	{
+		sleep( mFaultInjector.nextDelayMillis( write ) );
+		int fault = mFaultInjector.nextFault( write );
+		switch( fault )
+		{
+			case FaultInjector.FAULT_IOEXCEPTION:
+				throw new IOException( "injected IOException" );
+			case FaultInjector.FAULT_HANG:
+				synchronized( this )
+				{    // 切断されるまで戻らない
+					while( !mClosed )
+					{
+						try
+						{
+							wait();
+						}
+						catch( InterruptedException e )
+						{
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+				}
+				throw new IOException( "injected hang" );
+		}
+		return fault;
+	}
+
+	private synchronized void checkConnected() throws IOException
+	{
+		if( mClosed || !mConnected )
+		{
+			throw new IOException( "not connected" );
+		}
+	}
+
+	private static void sleep( int millis )
+	{
+		if( 0 >= millis )
+		{
+			return;
+		}
+		try
+		{
+			Thread.sleep( millis );
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+// BluetoothServiceの状態遷移と、状態変化の通知の試験（複数のスレッドから同時に遷移させる）
+public class BluetoothServiceStateTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS = 10000;
+	private static final int  ROUNDS         = 200;
+
+	// 許される状態の並び（最初の状態から切断完了まで）
+	private static final int[][] VALID_PATHS = {
+			{ BluetoothService.STATE_CONNECT_START, BluetoothService.STATE_CONNECT_FAILED, BluetoothService.STATE_DISCONNECTED },
+			{ BluetoothService.STATE_CONNECT_START, BluetoothService.STATE_CONNECTED, BluetoothService.STATE_CONNECTION_LOST, BluetoothService.STATE_DISCONNECTED },
+			{ BluetoothService.STATE_CONNECT_START, BluetoothService.STATE_CONNECTED, BluetoothService.STATE_DISCONNECT_START, BluetoothService.STATE_DISCONNECTED },
+			{ BluetoothService.STATE_CONNECT_START, BluetoothService.STATE_CONNECTED, BluetoothService.STATE_DISCONNECTED } };
+
+	private static BluetoothService newService( SimulatedTransport transport )
+	{
+		return new BluetoothService( null, null, transport, new ConnectionScheduler.ThreadPerConnection() );
+	}
+
+	@Test( timeout = 30000 )
+	public void slowListenerDoesNotReorderNotifications() throws Exception
+	{
+		// 接続完了の通知に時間がかかっている間に、別のスレッドが切断する
+		BluetoothService     service   = newService( new SimulatedTransport( new FaultInjector( 0 ), true ) );
+		final CountDownLatch inConnected = new CountDownLatch( 1 );
+		final CountDownLatch release     = new CountDownLatch( 1 );
+		service.addStateListener( new BluetoothService.StateListener()
+		{
+			@Override
+			public void onStateChange( BluetoothService service, int state )
+			{
+				if( BluetoothService.STATE_CONNECTED == state )
+				{
+					inConnected.countDown();
+					try
+					{
+						release.await();
+					}
+					catch( InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		} );
+		StateRecorder states = new StateRecorder();
+		service.addStateListener( states );
+
+		service.connect();
+		assertTrue( inConnected.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+		long startNanos = System.nanoTime();
+		service.disconnect();    // 通知中のスレッドを待たずに戻る
+		long elapsedMillis = ( System.nanoTime() - startNanos ) / 1000000L;
+		assertEquals( BluetoothService.STATE_DISCONNECTED, service.getState() );
+		assertTrue( "disconnect() blocked " + elapsedMillis + "ms", 1000 > elapsedMillis );
+		assertArrayEquals( new int[]{ BluetoothService.STATE_CONNECT_START }, states.getStates() );
+
+		release.countDown();
+		assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+		assertArrayEquals( new int[]{ BluetoothService.STATE_CONNECT_START,
+									  BluetoothService.STATE_CONNECTED,
+									  BluetoothService.STATE_DISCONNECT_START,
+									  BluetoothService.STATE_DISCONNECTED }, states.getStates() );
+	}
+
+	@Test( timeout = 30000 )
+	public void slowListenerDoesNotStallReceiveLoop() throws Exception
+	{
+		// 以前は、接続完了を、受信処理を始める前の接続時処理のスレッドで通知していたので、
+		// リスナーが戻るまで接続ロストを検知できず、切断完了にならなかった
+		SimulatedTransport   transport   = new SimulatedTransport( new FaultInjector( 0 ), true );
+		BluetoothService     service     = newService( transport );
+		final CountDownLatch inConnected = new CountDownLatch( 1 );
+		final CountDownLatch release     = new CountDownLatch( 1 );
+		service.addStateListener( new BluetoothService.StateListener()
+		{
+			@Override
+			public void onStateChange( BluetoothService service, int state )
+			{
+				if( BluetoothService.STATE_CONNECTED == state )
+				{
+					inConnected.countDown();
+					try
+					{
+						release.await();
+					}
+					catch( InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		} );
+		StateRecorder states = new StateRecorder();
+		service.addStateListener( states );
+
+		service.connect();
+		assertTrue( inConnected.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+		transport.close();    // 相手側の切断（受信処理が接続ロストを検知する）
+		awaitNotRunning( service );    // リスナーが止まっていても、受信処理は終わる
+		assertEquals( BluetoothService.STATE_DISCONNECTED, service.getState() );
+		assertArrayEquals( new int[]{ BluetoothService.STATE_CONNECT_START }, states.getStates() );
+
+		release.countDown();
+		assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+		assertArrayEquals( new int[]{ BluetoothService.STATE_CONNECT_START,
+									  BluetoothService.STATE_CONNECTED,
+									  BluetoothService.STATE_CONNECTION_LOST,
+									  BluetoothService.STATE_DISCONNECTED }, states.getStates() );
+
+		// 通知がなくなった状態通知用のスレッドは、終了する
+		long deadline = System.currentTimeMillis() + BluetoothService.NOTIFIER_KEEPALIVEMILLIS + TIMEOUT_MILLIS;
+		while( 0 < countNotifierThreads() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 10 );
+		}
+		assertEquals( 0, countNotifierThreads() );
+	}
+
+	@Test( timeout = 120000 )
+	public void concurrentDisconnectAndConnectionLostNotifyValidPath() throws Exception
+	{
+		// 切断（複数スレッド）と、接続ロスト（相手側の切断）を同時に起こす
+		for( int round = 0; round < ROUNDS; round++ )
+		{
+			final SimulatedTransport transport = new SimulatedTransport( new FaultInjector( round ), true );
+			final BluetoothService   service   = newService( transport );
+			StateRecorder            states    = new StateRecorder();
+			service.addStateListener( states );
+			service.connect();
+			assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+
+			final CyclicBarrier   barrier = new CyclicBarrier( 3 );
+			ArrayList<Thread>     threads = new ArrayList<Thread>();
+			for( int i = 0; i < 3; i++ )
+			{
+				final boolean lose = ( 0 == i );
+				Thread thread = new Thread( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							barrier.await();
+							if( lose )
+							{    // 通信路が閉じられて、受信処理が接続ロストを検知する
+								transport.close();
+							}
+							else
+							{
+								service.disconnect();
+							}
+						}
+						catch( Exception e )
+						{
+							throw new RuntimeException( e );
+						}
+					}
+				} );
+				thread.start();
+				threads.add( thread );
+			}
+			for( Thread thread : threads )
+			{
+				thread.join();
+			}
+			assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+			awaitNotRunning( service );
+			assertValidPath( states.getStates() );
+		}
+	}
+
+	@Test( timeout = 120000 )
+	public void concurrentConnectAndReleaseAreExclusive() throws Exception
+	{
+		int connected = 0;
+		int released  = 0;
+		for( int round = 0; round < ROUNDS; round++ )
+		{
+			final BluetoothService service = newService( new SimulatedTransport( new FaultInjector( round ), true ) );
+			StateRecorder          states  = new StateRecorder();
+			service.addStateListener( states );
+
+			final CyclicBarrier barrier = new CyclicBarrier( 2 );
+			Thread releaser = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						barrier.await();
+						service.release();
+					}
+					catch( Exception e )
+					{
+						throw new RuntimeException( e );
+					}
+				}
+			} );
+			releaser.start();
+			barrier.await();
+			service.connect();
+			releaser.join();
+
+			// 状態変化の通知は待たずに戻るので、どちらが先かは、状態で判断する
+			// （障害は注入していないので、connect()が先なら、切断するまで切断完了にならない）
+			if( BluetoothService.STATE_DISCONNECTED == service.getState() )
+			{    // release()が先（状態変化は通知されない）
+				released++;
+				assertEquals( 0, states.getStates().length );
+			}
+			else
+			{    // connect()が先（release()は何もしない）
+				connected++;
+				assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+				service.disconnect();
+				assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+				assertValidPath( states.getStates() );
+			}
+			awaitNotRunning( service );
+		}
+		assertEquals( ROUNDS, connected + released );
+	}
+
+	@Test( timeout = 120000 )
+	public void stateIsVisibleAndMonotonic() throws Exception
+	{
+		// 通知された時点で、その状態（以降）がgetState()で見える。
+		// 別のスレッドから見た状態も、戻ることはない（許される遷移では、状態の値は必ず増える）。
+		for( int round = 0; round < ROUNDS / 4; round++ )
+		{
+			FaultInjector faultInjector = new FaultInjector( round );
+			faultInjector.setIOExceptionProbability( 0.2 );
+			faultInjector.setConnectFailProbability( 0.2 );
+			final BluetoothService        service = newService( new SimulatedTransport( faultInjector, true ) );
+			final AtomicReference<String> failure = new AtomicReference<String>();
+			service.addStateListener( new BluetoothService.StateListener()
+			{
+				@Override
+				public void onStateChange( BluetoothService service, int state )
+				{
+					if( service.getState() < state )
+					{
+						failure.compareAndSet( null, "notified " + state + " while getState()=" + service.getState() );
+					}
+				}
+			} );
+			StateRecorder states = new StateRecorder();
+			service.addStateListener( states );
+
+			final AtomicBoolean running = new AtomicBoolean( true );
+			Thread poller = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int last = BluetoothService.STATE_NONE;
+					while( running.get() )
+					{
+						int state = service.getState();
+						if( state < last )
+						{
+							failure.compareAndSet( null, "state went back from " + last + " to " + state );
+						}
+						last = state;
+					}
+				}
+			} );
+			poller.start();
+
+			service.connect();
+			if( states.await( BluetoothService.STATE_CONNECTED, 100 ) )
+			{
+				for( int i = 0; i < 10; i++ )
+				{
+					service.write( ( i + "\r\n" ).getBytes() );
+				}
+				service.disconnect();
+			}
+			assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+			running.set( false );
+			poller.join();
+			awaitNotRunning( service );
+			assertNull( failure.get() );
+			assertValidPath( states.getStates() );
+		}
+	}
+
+	// 許される状態の並びのいずれかであること（同じ状態の重複も、切断完了の後の通知もない）
+	private static void assertValidPath( int[] states )
+	{
+		StringBuilder builder = new StringBuilder();
+		for( int state : states )
+		{
+			builder.append( state ).append( ' ' );
+		}
+		for( int[] path : VALID_PATHS )
+		{
+			if( java.util.Arrays.equals( path, states ) )
+			{
+				return;
+			}
+		}
+		fail( "invalid state path : " + builder );
+	}
+
+	private static int countNotifierThreads()
+	{
+		int count = 0;
+		for( Thread thread : Thread.getAllStackTraces().keySet() )
+		{
+			if( thread.isAlive() && thread.getName().equals( "BluetoothService-Notifier" ) )
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void awaitNotRunning( BluetoothService service ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( service.isRunning() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertFalse( service.isRunning() );
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+// ChannelMultiplexerの試験
+// 折り返しのSimulatedTransportで、送信したフレームをそのまま受信し、チャンネルごとに分解されることを確かめる。
+// チャンネルごとのスループットと待ち時間の出力は、性能計測の分類にする（既定の単体試験では、量を減らして内容だけ確かめる）。
+public class ChannelMultiplexerTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS      = 20000;
+	private static final int  CHANNEL_BULK        = 1;
+	private static final int  CHANNEL_INTERACTIVE = 2;
+	private static final int  CHANNEL_EARLY       = 3;
+	private static final int  BULK_BYTES          = 64 * 1024;
+	private static final int  BULK_WRITESIZE      = 4096;
+	private static final int  MESSAGE_SIZE        = 16;    // 先頭８バイトに送信時刻を入れる
+	private static final int  MESSAGES            = 20;
+	private static final int  BENCHMARK_BULKBYTES = 512 * 1024;
+	private static final int  BENCHMARK_MESSAGES  = 200;
+	private static final long MESSAGE_INTERVALNANOS = 1000 * 1000;
+
+	// チャンネルの受信データを溜める（受信処理のスレッドから呼ばれる）
+	private static final class Collector implements ReceiveListener
+	{
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+		@Override
+		public synchronized void onReceive( byte[] buf, int offset, int length )
+		{
+			received.write( buf, offset, length );
+		}
+
+		synchronized byte[] toByteArray()
+		{
+			return received.toByteArray();
+		}
+	}
+
+	// 固定長のメッセージを組み立てて、送信から受信までの時間を記録する（受信処理のスレッドから呼ばれる）
+	private static final class LatencyRecorder implements ReceiveListener
+	{
+		final long[]  latencies;
+		final byte[]  message   = new byte[MESSAGE_SIZE];
+		int           position  = 0;
+		volatile int  count     = 0;
+
+		LatencyRecorder( int messages )
+		{
+			latencies = new long[messages];
+		}
+
+		@Override
+		public void onReceive( byte[] buf, int offset, int length )
+		{
+			for( int i = offset; i < offset + length; i++ )
+			{
+				message[position++] = buf[i];
+				if( MESSAGE_SIZE == position )
+				{
+					long stamp = 0;
+					for( int j = 0; j < 8; j++ )
+					{
+						stamp = ( stamp << 8 ) | ( message[j] & 0xff );
+					}
+					latencies[count] = System.nanoTime() - stamp;
+					count++;
+					position = 0;
+				}
+			}
+		}
+	}
+
+	@Test( timeout = 60000 )
+	public void channelsAreDemultiplexedIntact() throws Exception
+	{
+		LatencyRecorder interactive = run( BULK_BYTES, MESSAGES );
+		assertEquals( MESSAGES, interactive.count );
+	}
+
+	@Test( timeout = 120000 )
+	@Category( Benchmark.class )
+	public void benchmarkPerChannelThroughputAndLatency() throws Exception
+	{
+		long            startNanos   = System.nanoTime();
+		LatencyRecorder interactive  = run( BENCHMARK_BULKBYTES, BENCHMARK_MESSAGES );
+		long            elapsedNanos = System.nanoTime() - startNanos;
+
+		long[] latencies = interactive.latencies.clone();
+		Arrays.sort( latencies );
+		System.out.println( "channel, bytes, throughput[bytes/s], latency p50[us], p99[us], max[us]" );
+		System.out.println( "bulk, " + BENCHMARK_BULKBYTES + ", " + (long)( BENCHMARK_BULKBYTES * 1e9 / elapsedNanos ) + ", -, -, -" );
+		System.out.println( "interactive, " + BENCHMARK_MESSAGES * MESSAGE_SIZE + ", -, " + latencies[BENCHMARK_MESSAGES / 2] / 1000
+							+ ", " + latencies[BENCHMARK_MESSAGES * 99 / 100] / 1000 + ", " + latencies[BENCHMARK_MESSAGES - 1] / 1000 );
+	}
+
+	// 大量データのチャンネルと対話のチャンネルを同時に送信し、折り返しで受信したデータが、チャンネルごとに欠けずに揃うことを確かめる
+	// 戻り値は、対話のチャンネルの待ち時間の記録。
+	private static LatencyRecorder run( final int bulkBytes, int messages ) throws Exception
+	{
+		BluetoothService         service     = connect( new SimulatedTransport( new FaultInjector( 0 ), true ) );
+		final ChannelMultiplexer multiplexer = new ChannelMultiplexer( service );
+		Collector                bulk        = new Collector();
+		LatencyRecorder          interactive = new LatencyRecorder( messages );
+		multiplexer.addReceiveListener( CHANNEL_BULK, bulk );
+		multiplexer.addReceiveListener( CHANNEL_INTERACTIVE, interactive );
+		assertTrue( multiplexer.start() );
+
+		// 大量データのチャンネルは、別のスレッドから続けて書き込む
+		final byte[] bulkData = pattern( bulkBytes );
+		Thread       writer   = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for( int offset = 0; offset < bulkBytes; offset += BULK_WRITESIZE )
+					{
+						assertTrue( multiplexer.write( CHANNEL_BULK, Arrays.copyOfRange( bulkData, offset, offset + BULK_WRITESIZE ) ) );
+					}
+				}
+				catch( InterruptedException e )
+				{
+					;    // 終了
+				}
+			}
+		}, "ChannelMultiplexerTest-Bulk" );
+		writer.start();
+
+		// 対話のチャンネルは、間隔を空けて、送信時刻入りのメッセージを書き込む
+		long next = System.nanoTime();
+		for( int i = 0; i < messages; i++ )
+		{
+			while( System.nanoTime() < next )
+			{
+				LockSupport.parkNanos( next - System.nanoTime() );
+			}
+			next += MESSAGE_INTERVALNANOS;
+			byte[] message = new byte[MESSAGE_SIZE];
+			long   stamp   = System.nanoTime();
+			for( int j = 0; j < 8; j++ )
+			{
+				message[j] = (byte)( stamp >>> ( 56 - 8 * j ) );
+			}
+			assertTrue( multiplexer.write( CHANNEL_INTERACTIVE, message ) );
+		}
+
+		writer.join( TIMEOUT_MILLIS );
+		awaitReceivedBytes( multiplexer, CHANNEL_BULK, bulkBytes );
+		awaitReceivedBytes( multiplexer, CHANNEL_INTERACTIVE, messages * MESSAGE_SIZE );
+		assertArrayEquals( bulkData, bulk.toByteArray() );
+		assertEquals( messages, interactive.count );
+		assertEquals( bulkBytes, multiplexer.getSentBytes( CHANNEL_BULK ) );
+		assertEquals( messages * MESSAGE_SIZE, multiplexer.getSentBytes( CHANNEL_INTERACTIVE ) );
+		assertEquals( 0, multiplexer.getDiscardedBytes() );
+		disconnect( service );
+		return interactive;
+	}
+
+	@Test( timeout = 30000 )
+	public void writesBeforeConnectAreDelivered() throws Exception
+	{
+		// 以前は、接続完了前に取り出して、BluetoothService.write()で捨てられたのに、送信したバイト数に数えていた
+		BluetoothService   service     = new BluetoothService( null, null, new SimulatedTransport( new FaultInjector( 0 ), true ), new ConnectionScheduler.ThreadPerConnection() );
+		StateRecorder      states      = new StateRecorder();
+		service.addStateListener( states );
+		ChannelMultiplexer multiplexer = new ChannelMultiplexer( service );
+		Collector          early       = new Collector();
+		multiplexer.addReceiveListener( CHANNEL_EARLY, early );
+		assertTrue( multiplexer.start() );
+		byte[] data = "written before connect".getBytes();
+		assertTrue( multiplexer.write( CHANNEL_EARLY, data ) );
+		Thread.sleep( 100 );    // 送信処理が、接続完了前に取り出さないこと
+		assertEquals( 0, multiplexer.getSentBytes( CHANNEL_EARLY ) );
+		assertEquals( data.length, multiplexer.getQueuedBytes( CHANNEL_EARLY ) );
+
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		awaitReceivedBytes( multiplexer, CHANNEL_EARLY, data.length );
+		assertArrayEquals( data, early.toByteArray() );
+		assertEquals( data.length, multiplexer.getSentBytes( CHANNEL_EARLY ) );
+		disconnect( service );
+
+		// 切断完了後の書き込みは、受け付けない
+		assertFalse( multiplexer.write( CHANNEL_EARLY, data ) );
+		assertEquals( data.length, multiplexer.getSentBytes( CHANNEL_EARLY ) );
+	}
+
+	@Test
+	public void nonTransparentFlowControlIsRejected() throws Exception
+	{
+		for( FlowControl flowControl : new FlowControl[]{ new FlowControl.XonXoff(), new FlowControl.Credit() } )
+		{
+			BluetoothService service = new BluetoothService( null, null, new SimulatedTransport( new FaultInjector( 0 ), true ), new ConnectionScheduler.ThreadPerConnection() );
+			service.setFlowControl( flowControl );
+			try
+			{
+				new ChannelMultiplexer( service ).start();
+				fail( flowControl.getClass().getSimpleName() );
+			}
+			catch( IllegalStateException e )
+			{
+				;    // 制御バイトで、フレームが壊れる
+			}
+			service.release();
+		}
+	}
+
+	@Test
+	public void rejectedStartDoesNotAttach() throws Exception
+	{
+		// スケジューラに空きがなければ、開始せずにfalseを返す
+		ConnectionScheduler.SharedExecutor scheduler = new ConnectionScheduler.SharedExecutor( 1 );
+		BluetoothService service = new BluetoothService( null, null, new SimulatedTransport( new FaultInjector( 0 ), true ), scheduler );    // 接続時処理で１つ使う
+		assertFalse( new ChannelMultiplexer( service ).start() );
+		assertEquals( 1, scheduler.getRunningTasks() );
+		service.release();
+		scheduler.shutdown();
+	}
+
+	private static BluetoothService connect( SimulatedTransport transport ) throws InterruptedException
+	{
+		BluetoothService service = new BluetoothService( null, null, transport, new ConnectionScheduler.ThreadPerConnection() );
+		StateRecorder    states  = new StateRecorder();
+		service.addStateListener( states );
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		return service;
+	}
+
+	private static void disconnect( BluetoothService service ) throws InterruptedException
+	{
+		service.disconnect();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( service.isRunning() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertFalse( service.isRunning() );
+	}
+
+	private static void awaitReceivedBytes( ChannelMultiplexer multiplexer, int channel, long bytes ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( bytes > multiplexer.getReceivedBytes( channel ) && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertEquals( bytes, multiplexer.getReceivedBytes( channel ) );
+	}
+
+	private static byte[] pattern( int length )
+	{
+		byte[] data = new byte[length];
+		for( int i = 0; i < length; i++ )
+		{
+			data[i] = (byte)( i * 31 + ( i >> 8 ) );
+		}
+		return data;
+	}
+}
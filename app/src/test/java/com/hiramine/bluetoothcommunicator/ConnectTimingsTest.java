@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+// BluetoothServiceが計測する、接続の各段階の時間の試験
+// 各段階に決まった遅延を入れた通信路で接続し、計測値が遅延以上になることを確かめる。
+public class ConnectTimingsTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS        = 10000;
+	private static final int  OPEN_DELAYMILLIS      = 30;
+	private static final int  PREPARE_DELAYMILLIS   = 40;
+	private static final int  CONNECT_DELAYMILLIS   = 80;
+	private static final int  FIRSTBYTE_DELAYMILLIS = 60;
+	private static final long SLACK_MILLIS          = 2000;    // 計測値の上限の余裕（遅いマシンでも失敗しないように）
+
+	// 各段階に遅延を入れた通信路
+	private static final class DelayedTransport extends SimulatedTransport
+	{
+		DelayedTransport()
+		{
+			super( new FaultInjector( 0 ), false );
+		}
+
+		@Override
+		public void open() throws IOException
+		{
+			sleep( OPEN_DELAYMILLIS );
+			super.open();
+		}
+
+		@Override
+		public void prepareConnect() throws IOException
+		{
+			sleep( PREPARE_DELAYMILLIS );
+			super.prepareConnect();
+		}
+
+		@Override
+		public void connect() throws IOException
+		{
+			sleep( CONNECT_DELAYMILLIS );
+			super.connect();
+		}
+	}
+
+	@Test
+	public void measuresEachPhase() throws Exception
+	{
+		final DelayedTransport transport = new DelayedTransport();
+		BluetoothService       service   = new BluetoothService( null, null, transport, new ConnectionScheduler.ThreadPerConnection() );
+		StateRecorder          states    = new StateRecorder();
+		service.addStateListener( states );
+
+		// ソケットの作成は、コンストラクタで終わっている
+		ConnectTimings timings = service.getConnectTimings();
+		assertTrue( timings.isMeasured( ConnectTimings.PHASE_OPEN ) );
+		assertFalse( timings.isMeasured( ConnectTimings.PHASE_CONNECT ) );
+
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		assertTrue( timings.isMeasured( ConnectTimings.PHASE_PREPARECONNECT ) );
+		assertTrue( timings.isMeasured( ConnectTimings.PHASE_CONNECT ) );
+
+		// 相手側が、遅れて最初のバイトを送信する
+		sleep( FIRSTBYTE_DELAYMILLIS );
+		transport.writePeer( new byte[]{ 'A' }, 0, 1 );
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( !timings.isMeasured( ConnectTimings.PHASE_FIRSTBYTE ) && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+
+		assertPhase( timings, ConnectTimings.PHASE_OPEN, OPEN_DELAYMILLIS );
+		assertPhase( timings, ConnectTimings.PHASE_PREPARECONNECT, PREPARE_DELAYMILLIS );
+		assertPhase( timings, ConnectTimings.PHASE_CONNECT, CONNECT_DELAYMILLIS );
+		assertPhase( timings, ConnectTimings.PHASE_FIRSTBYTE, FIRSTBYTE_DELAYMILLIS );
+		assertFalse( timings.toString().contains( "-" ) );
+
+		service.disconnect();
+		assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+	}
+
+	@Test
+	public void failedConnectLeavesLaterPhasesUnmeasured() throws Exception
+	{
+		FaultInjector faultInjector = new FaultInjector( 0 );
+		faultInjector.setConnectFailProbability( 1 );
+		BluetoothService service = new BluetoothService( null, null, new SimulatedTransport( faultInjector, false ), new ConnectionScheduler.ThreadPerConnection() );
+		StateRecorder    states  = new StateRecorder();
+		service.addStateListener( states );
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+
+		ConnectTimings timings = service.getConnectTimings();
+		assertTrue( timings.isMeasured( ConnectTimings.PHASE_PREPARECONNECT ) );
+		assertFalse( timings.isMeasured( ConnectTimings.PHASE_CONNECT ) );
+		assertFalse( timings.isMeasured( ConnectTimings.PHASE_FIRSTBYTE ) );
+		assertEquals( -1, timings.getDurationNanos( ConnectTimings.PHASE_FIRSTBYTE ) );
+	}
+
+	private static void assertPhase( ConnectTimings timings, int phase, int delayMillis )
+	{
+		assertTrue( "phase " + phase + " not measured", timings.isMeasured( phase ) );
+		long millis = timings.getDurationNanos( phase ) / 1000000L;
+		assertTrue( "phase " + phase + " : " + millis + "ms < " + delayMillis + "ms", delayMillis <= millis );
+		assertTrue( "phase " + phase + " : " + millis + "ms", delayMillis + SLACK_MILLIS > millis );
+	}
+
+	private static void sleep( int millis )
+	{
+		try
+		{
+			Thread.sleep( millis );
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
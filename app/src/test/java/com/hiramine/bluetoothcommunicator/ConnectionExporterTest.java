@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+// ConnectionExporterの試験（書き出しが遅くても通信を止めないこと、古いファイルを消すこと、スケジューラで実行すること）
+public class ConnectionExporterTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS = 10000;
+	private static final int  LINES          = 200;
+	private static final int  QUEUE_SIZE     = 16;
+
+	@Rule
+	public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+	// 書き込みが、releaseまで止まる書き出し先（ディスクが詰まった状態の模擬）
+	private static final class BlockedSink implements ConnectionExporter.Sink
+	{
+		final CountDownLatch blocked = new CountDownLatch( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final CountDownLatch closed  = new CountDownLatch( 1 );
+
+		@Override
+		public OutputStream open( String fileName )
+		{
+			return new OutputStream()
+			{
+				@Override
+				public void write( int b ) throws IOException
+				{
+					write( new byte[]{ (byte)b }, 0, 1 );
+				}
+
+				@Override
+				public void write( byte[] buf, int offset, int length ) throws IOException
+				{
+					blocked.countDown();
+					try
+					{
+						release.await();
+					}
+					catch( InterruptedException e )
+					{
+						throw new IOException( e );
+					}
+				}
+
+				@Override
+				public void close()
+				{
+					closed.countDown();
+				}
+			};
+		}
+	}
+
+	@Test( timeout = 30000 )
+	public void slowSinkDoesNotBlockReceive() throws Exception
+	{
+		ConnectionScheduler.SharedExecutor scheduler = new ConnectionScheduler.SharedExecutor( 3 );
+		SimulatedTransport transport = new SimulatedTransport( new FaultInjector( 0 ), false );
+		BluetoothService   service   = new BluetoothService( null, null, transport, scheduler );
+		StateRecorder      states    = new StateRecorder();
+		service.addStateListener( states );
+		BlockedSink        sink      = new BlockedSink();
+		ConnectionExporter exporter  = new ConnectionExporter( sink, "00:11:22:33:44:55", QUEUE_SIZE );
+		exporter.setSnapshotIntervalMillis( 10 );
+		exporter.setCaptureReceived( true );
+		assertTrue( exporter.attach( service ) );
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		assertEquals( 3, scheduler.getRunningTasks() );    // 接続時処理、送信処理、書き出し
+
+		// 書き出しが止まっていても、受信処理は全部受信する（キューが一杯になった分は捨てる）
+		// １行ずつ受信されるのを待ってから次を送信して、受信のレコードを行の数だけ作る
+		assertTrue( sink.blocked.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+		long total    = 0;
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		for( int i = 0; i < LINES; i++ )
+		{
+			byte[] line = ( i + "\r\n" ).getBytes();
+			transport.writePeer( line, 0, line.length );
+			total += line.length;
+			while( total > service.getBytesReceived() && System.currentTimeMillis() < deadline )
+			{
+				LockSupport.parkNanos( 100 * 1000 );
+			}
+		}
+		assertEquals( total, service.getBytesReceived() );
+		assertTrue( LINES - QUEUE_SIZE <= exporter.getDroppedRecords() );
+
+		// 切断も待たされない
+		service.disconnect();
+		assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+		assertEquals( 1, sink.closed.getCount() );
+
+		// 書き出せるようになったら、残りを書き出して終了する
+		sink.release.countDown();
+		assertTrue( sink.closed.await( TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) );
+		awaitNoRunningTasks( scheduler );
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void directorySinkDeletesOldestFiles() throws Exception
+	{
+		File directory = mTemporaryFolder.newFolder( "connections" );
+		File other     = new File( directory, "keep.txt" );    // 書き出したファイル以外は消さない
+		assertTrue( other.createNewFile() );
+
+		// ファイル数の上限
+		ConnectionExporter.DirectorySink sink = new ConnectionExporter.DirectorySink( directory, 3, Long.MAX_VALUE );
+		for( int i = 0; i < 5; i++ )
+		{
+			createFile( sink, directory, "a-" + i + ".ndjson", 100, i );
+		}
+		assertArrayEquals( new String[]{ "a-2.ndjson", "a-3.ndjson", "a-4.ndjson" }, listExported( directory ) );
+		assertTrue( other.exists() );
+
+		// 合計サイズの上限（作成する前に、250バイト以下にする）
+		sink = new ConnectionExporter.DirectorySink( directory, 100, 250 );
+		createFile( sink, directory, "a-5.ndjson", 100, 5 );
+		assertArrayEquals( new String[]{ "a-3.ndjson", "a-4.ndjson", "a-5.ndjson" }, listExported( directory ) );
+		createFile( sink, directory, "a-6.ndjson", 100, 6 );
+		assertArrayEquals( new String[]{ "a-4.ndjson", "a-5.ndjson", "a-6.ndjson" }, listExported( directory ) );
+	}
+
+	@Test( timeout = 30000 )
+	public void rotationKeepsOnlyRecentFiles() throws Exception
+	{
+		File                               directory = mTemporaryFolder.newFolder( "rotation" );
+		ConnectionScheduler.SharedExecutor scheduler = new ConnectionScheduler.SharedExecutor( 3 );
+		SimulatedTransport transport = new SimulatedTransport( new FaultInjector( 0 ), false );
+		BluetoothService   service   = new BluetoothService( null, null, transport, scheduler );
+		StateRecorder      states    = new StateRecorder();
+		service.addStateListener( states );
+		ConnectionExporter exporter = new ConnectionExporter( new ConnectionExporter.DirectorySink( directory, 3, Long.MAX_VALUE ), "device" );
+		exporter.setRotation( 256, Long.MAX_VALUE );    // 数行ごとに切り替える
+		exporter.setCaptureReceived( true );
+		assertTrue( exporter.attach( service ) );
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		for( int i = 0; i < 200; i++ )
+		{
+			byte[] line = ( "line " + i + "\r\n" ).getBytes();
+			transport.writePeer( line, 0, line.length );
+			Thread.sleep( 1 );
+		}
+		service.disconnect();
+		assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+
+		// 書き出しの終了（最後のファイルを閉じる）を待つ
+		awaitNoRunningTasks( scheduler );
+		scheduler.shutdown();
+		assertEquals( 3, listExported( directory ).length );
+		assertEquals( 0, exporter.getDroppedRecords() );
+	}
+
+	@Test
+	public void rejectedExporterDoesNotAttach() throws Exception
+	{
+		// スケジューラに空きがなければ、取り付けずにfalseを返す（接続はそのまま使える）
+		ConnectionScheduler.SharedExecutor scheduler = new ConnectionScheduler.SharedExecutor( 1 );
+		BluetoothService   service  = new BluetoothService( null, null, new SimulatedTransport( new FaultInjector( 0 ), true ), scheduler );    // 接続時処理で１つ使う
+		ConnectionExporter exporter = new ConnectionExporter( new BlockedSink(), "device" );
+		assertFalse( exporter.attach( service ) );
+		assertEquals( 1, scheduler.getRunningTasks() );
+		service.release();
+		scheduler.shutdown();
+	}
+
+	// 書き出し先でファイルを作成して、size バイト書き込み、更新日時を index 秒にする（作成順に古くなるように）
+	private static void createFile( ConnectionExporter.DirectorySink sink, File directory, String fileName, int size, int index ) throws IOException
+	{
+		OutputStream output = sink.open( fileName );
+		output.write( new byte[size] );
+		output.close();
+		assertTrue( new File( directory, fileName ).setLastModified( 1000000L + index * 1000L ) );
+	}
+
+	private static void awaitNoRunningTasks( ConnectionScheduler.SharedExecutor scheduler ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( 0 < scheduler.getRunningTasks() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertEquals( 0, scheduler.getRunningTasks() );
+	}
+
+	private static String[] listExported( File directory )
+	{
+		String[] names = directory.list( new FilenameFilter()
+		{
+			@Override
+			public boolean accept( File dir, String name )
+			{
+				return name.endsWith( ".ndjson" );
+			}
+		} );
+		Arrays.sort( names );
+		return names;
+	}
+}
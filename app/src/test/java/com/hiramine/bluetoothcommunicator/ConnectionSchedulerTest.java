@@ -0,0 +1,312 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+// ConnectionSchedulerの試験と、スケジューラごとの比較（1、10、100接続でのメモリー使用量とスループット）
+// 通信路は、折り返しのSimulatedTransport。
+public class ConnectionSchedulerTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS  = 30000;
+	private static final int  FRAMES_PER_LINK = 200;
+	private static final int  PIPE_CAPACITY   = 4096;
+	private static final int  GC_ROUNDS       = 5;
+
+	// １つの接続（送信した行が折り返して受信されるのを数える）
+	private static final class Link implements LineDecoder.LineListener
+	{
+		final StateRecorder    states = new StateRecorder();
+		final BluetoothService service;
+		private long mExpected   = 0;
+		private long mOutOfOrder = 0;
+
+		Link( ConnectionScheduler scheduler )
+		{
+			service = new BluetoothService( null, null, new SimulatedTransport( new FaultInjector( 0 ), true, PIPE_CAPACITY ), scheduler );
+			service.addStateListener( states );
+			LineDecoder lineDecoder = new LineDecoder();
+			lineDecoder.addLineListener( this );
+			service.addReceiveListener( lineDecoder );
+		}
+
+		@Override
+		public synchronized void onLine( byte[] line, int length )
+		{
+			if( mExpected != (long)NumberParser.parseDouble( line, 0, length ) )
+			{
+				mOutOfOrder++;
+			}
+			mExpected++;
+			notifyAll();
+		}
+
+		synchronized long awaitLines( long lines, long timeoutMillis ) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while( mExpected < lines && System.currentTimeMillis() < deadline )
+			{
+				wait( Math.max( 1, deadline - System.currentTimeMillis() ) );
+			}
+			return mExpected;
+		}
+	}
+
+	// 計測結果
+	private static final class Measurement
+	{
+		long   heapBytesPerLink;
+		double threadsPerLink;
+		double bytesPerSecond;
+	}
+
+	@Test
+	public void sharedExecutorRejectsWhenSaturated() throws Exception
+	{
+		ConnectionScheduler.SharedExecutor scheduler = new ConnectionScheduler.SharedExecutor( 2 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		Runnable blocking = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					release.await();
+				}
+				catch( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		scheduler.execute( blocking );
+		scheduler.execute( blocking );
+		try
+		{
+			scheduler.execute( blocking );
+			fail( "saturated executor accepted a task" );
+		}
+		catch( RejectedExecutionException e )
+		{
+			;    // 期待どおり（待たされない）
+		}
+		assertEquals( 2, scheduler.getRunningTasks() );
+
+		// 空きができたら、また受け付ける
+		release.countDown();
+		awaitRunningTasks( scheduler, 0 );
+		scheduler.execute( blocking );
+		awaitRunningTasks( scheduler, 0 );
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void connectFailsWhenSchedulerIsSaturated() throws Exception
+	{
+		// 接続時処理と送信処理の２つで、上限に達する
+		ConnectionScheduler.SharedExecutor scheduler = new ConnectionScheduler.SharedExecutor( 2 );
+		Link connected = new Link( scheduler );
+		connected.service.connect();
+		assertTrue( connected.states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		assertEquals( 2, scheduler.getRunningTasks() );    // 送信処理は、接続完了の前に開始している
+
+		// 空きがないので、待たされずに接続失敗になる
+		Link rejected = new Link( scheduler );
+		assertFalse( rejected.service.isRunning() );
+		rejected.service.connect();
+		assertEquals( BluetoothService.STATE_DISCONNECTED, rejected.service.getState() );
+		assertTrue( rejected.states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );    // 通知は、状態通知用のスレッドから届く
+		assertArrayEquals( new int[]{ BluetoothService.STATE_CONNECT_START,
+									  BluetoothService.STATE_CONNECT_FAILED,
+									  BluetoothService.STATE_DISCONNECTED }, rejected.states.getStates() );
+
+		// 接続中の方は、影響を受けない
+		connected.service.write( "0\r\n".getBytes() );
+		assertEquals( 1, connected.awaitLines( 1, TIMEOUT_MILLIS ) );
+
+		// 切断すれば、次の接続ができる
+		connected.service.disconnect();
+		awaitRunningTasks( scheduler, 0 );
+		Link next = new Link( scheduler );
+		next.service.connect();
+		assertTrue( next.states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		next.service.disconnect();
+		awaitRunningTasks( scheduler, 0 );
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void connectFailsWhenWriterCannotStart() throws Exception
+	{
+		// 接続時処理だけで上限に達するので、送信処理を開始できない
+		ConnectionScheduler.SharedExecutor scheduler = new ConnectionScheduler.SharedExecutor( 1 );
+		Link link = new Link( scheduler );
+		link.service.connect();
+		assertTrue( link.states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+		assertArrayEquals( new int[]{ BluetoothService.STATE_CONNECT_START,
+									  BluetoothService.STATE_CONNECT_FAILED,
+									  BluetoothService.STATE_DISCONNECTED }, link.states.getStates() );
+		awaitRunningTasks( scheduler, 0 );
+		scheduler.shutdown();
+	}
+
+	@Test
+	@Category( Benchmark.class )
+	public void benchmarkFootprintAndThroughput() throws Exception
+	{
+		ConnectionScheduler.VirtualThread virtualThread = new ConnectionScheduler.VirtualThread();
+		measure( new ConnectionScheduler.ThreadPerConnection(), 10 );    // ウォームアップ（クラスの読み込みとJITのコンパイル）
+		System.out.println( "scheduler, links, heap/link[bytes], threads/link, throughput[bytes/s]" );
+		for( int links : new int[]{ 1, 10, 100 } )
+		{
+			report( "ThreadPerConnection", links, measure( new ConnectionScheduler.ThreadPerConnection(), links ) );
+			report( "SharedExecutor", links, measure( new ConnectionScheduler.SharedExecutor( 2 * links ), links ) );
+			report( virtualThread.isSupported() ? "VirtualThread" : "VirtualThread(fallback)", links, measure( virtualThread, links ) );
+		}
+	}
+
+	// 接続、全接続での送受信、切断 の計測
+	// 接続１つあたりのヒープは、接続中（全部を参照したまま）と、切断して参照を外した後との差（接続中だけ確保していた分）。
+	// （接続の前と比べると、前の計測の後始末が混ざる）
+	private static Measurement measure( ConnectionScheduler scheduler, int links ) throws Exception
+	{
+		int         threadsBefore = countThreads();
+		Measurement measurement   = new Measurement();
+		long        heapConnected = run( scheduler, links, measurement, threadsBefore );
+		scheduler.shutdown();
+
+		// スレッドが終わるまで待ってから測る
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( countThreads() > threadsBefore && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		measurement.heapBytesPerLink = ( heapConnected - usedHeap() ) / links;
+		return measurement;
+	}
+
+	// 接続、全接続での送受信、切断（接続への参照は、このメソッドの中だけに持つ）。戻り値は、接続中のヒープ。
+	private static long run( ConnectionScheduler scheduler, int links, Measurement measurement, int threadsBefore ) throws Exception
+	{
+		// 接続
+		Link[] all = new Link[links];
+		for( int i = 0; i < links; i++ )
+		{
+			all[i] = new Link( scheduler );
+			all[i].service.connect();
+		}
+		for( Link link : all )
+		{
+			assertTrue( link.states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		}
+		long heapConnected = usedHeap();
+		measurement.threadsPerLink = (double)( countThreads() - threadsBefore ) / links;
+
+		// 送受信
+		long bytes      = 0;
+		long startNanos = System.nanoTime();
+		for( int sequence = 0; sequence < FRAMES_PER_LINK; sequence++ )
+		{
+			byte[] frame = ( sequence + "\r\n" ).getBytes();
+			for( Link link : all )
+			{
+				link.service.write( frame );
+				bytes += frame.length;
+			}
+		}
+		for( Link link : all )
+		{
+			assertEquals( FRAMES_PER_LINK, link.awaitLines( FRAMES_PER_LINK, TIMEOUT_MILLIS ) );
+			assertEquals( 0, link.mOutOfOrder );
+		}
+		measurement.bytesPerSecond = bytes * 1e9 / ( System.nanoTime() - startNanos );
+
+		// 切断（接続時処理が残らないこと）
+		for( Link link : all )
+		{
+			link.service.disconnect();
+		}
+		for( Link link : all )
+		{
+			assertTrue( link.states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while( link.service.isRunning() && System.currentTimeMillis() < deadline )
+			{
+				Thread.sleep( 1 );
+			}
+			assertFalse( link.service.isRunning() );
+		}
+		return heapConnected;
+	}
+
+	private static void report( String name, int links, Measurement measurement )
+	{
+		System.out.println( name + ", " + links + ", " + measurement.heapBytesPerLink
+							+ ", " + String.format( "%.1f", measurement.threadsPerLink )
+							+ ", " + (long)measurement.bytesPerSecond );
+	}
+
+	// スレッドの数（状態通知用のスレッドは、状態が変わった後の短い間しか残らないので数えない）
+	private static int countThreads()
+	{
+		int count = 0;
+		for( Thread thread : Thread.getAllStackTraces().keySet() )
+		{
+			if( thread.isAlive() && !thread.getName().equals( "BluetoothService-Notifier" ) )
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// 使用中のヒープ（ファイナライザーの分も回収されるように、ガベージコレクションを何回か繰り返し、最小値を取る）
+	private static long usedHeap() throws InterruptedException
+	{
+		MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+		long         used         = Long.MAX_VALUE;
+		for( int i = 0; i < GC_ROUNDS; i++ )
+		{
+			memoryMXBean.gc();
+			System.runFinalization();
+			Thread.sleep( 20 );
+			used = Math.min( used, memoryMXBean.getHeapMemoryUsage().getUsed() );
+		}
+		return used;
+	}
+
+	private static void awaitRunningTasks( ConnectionScheduler.SharedExecutor scheduler, int tasks ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( tasks != scheduler.getRunningTasks() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertEquals( tasks, scheduler.getRunningTasks() );
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+// DiscoverySchedulerの試験（偽の時計と、偽の検索の開始、停止で、時刻を進めながら確かめる）
+public class DiscoverySchedulerTest
+{
+	// 定数
+	private static final long WINDOW_MILLIS = 100;
+	private static final long PERIOD_MILLIS = 1000;
+	private static final long TTL_MILLIS    = 3000;
+
+	// 偽の時計
+	private static final class FakeClock implements DiscoveryScheduler.Clock
+	{
+		long now = 0;
+
+		@Override
+		public long nowMillis()
+		{
+			return now;
+		}
+	}
+
+	// 偽の検索の開始、停止（呼ばれた時刻を記録する）
+	private static final class FakeRadio implements DiscoveryScheduler.Radio
+	{
+		final FakeClock       clock;
+		final ArrayList<Long> starts  = new ArrayList<Long>();
+		final ArrayList<Long> cancels = new ArrayList<Long>();
+		boolean               available = true;    // falseなら、開始できない（Bluetoothが無効など）
+
+		FakeRadio( FakeClock clock )
+		{
+			this.clock = clock;
+		}
+
+		@Override
+		public boolean startInquiry()
+		{
+			starts.add( clock.now );
+			return available;
+		}
+
+		@Override
+		public void cancelInquiry()
+		{
+			cancels.add( clock.now );
+		}
+	}
+
+	// 通知の記録（"added:アドレス"、"inquiring:true" などの文字列で記録する）
+	private static final class Recorder implements DiscoveryScheduler.DiscoveryListener
+	{
+		final ArrayList<String> events = new ArrayList<String>();
+
+		@Override
+		public void onDeviceEvent( int event, DiscoveryScheduler.Device device )
+		{
+			String[] names = { "added", "updated", "expired" };
+			events.add( names[event] + ":" + device.getAddress() );
+		}
+
+		@Override
+		public void onInquiryStateChange( boolean inquiring )
+		{
+			events.add( "inquiring:" + inquiring );
+		}
+
+		// 記録を取り出して、消す
+		String[] take()
+		{
+			String[] taken = events.toArray( new String[events.size()] );
+			events.clear();
+			return taken;
+		}
+	}
+
+	private FakeClock          mClock;
+	private FakeRadio          mRadio;
+	private Recorder           mRecorder;
+	private DiscoveryScheduler mScheduler;
+
+	@Before
+	public void setUp()
+	{
+		mClock = new FakeClock();
+		mRadio = new FakeRadio( mClock );
+		mRecorder = new Recorder();
+		mScheduler = new DiscoveryScheduler( mClock, mRadio );
+		mScheduler.setDutyCycle( WINDOW_MILLIS, PERIOD_MILLIS );
+		mScheduler.setTtlMillis( TTL_MILLIS );
+		mScheduler.addListener( mRecorder );
+		assertArrayEquals( new String[]{ "inquiring:false" }, mRecorder.take() );
+	}
+
+	@Test
+	public void pollDoesNothingUntilStarted()
+	{
+		assertEquals( DiscoveryScheduler.NO_DEADLINE, mScheduler.poll() );
+		assertTrue( mRadio.starts.isEmpty() );
+		assertFalse( mScheduler.isRunning() );
+	}
+
+	@Test
+	public void windowStartsAndEndsOnItsEdges()
+	{
+		mScheduler.start();
+		assertEquals( WINDOW_MILLIS, pollAt( 0 ) );
+		assertTrue( mScheduler.isInquiring() );
+		assertArrayEquals( new String[]{ "inquiring:true" }, mRecorder.take() );
+
+		// 検索時間の終わりの直前は、検索を続ける
+		assertEquals( 1, pollAt( WINDOW_MILLIS - 1 ) );
+		assertTrue( mScheduler.isInquiring() );
+		assertTrue( mRadio.cancels.isEmpty() );
+
+		// 検索時間の終わりちょうどで停止し、次の周期の始まりまで休む
+		assertEquals( PERIOD_MILLIS - WINDOW_MILLIS, pollAt( WINDOW_MILLIS ) );
+		assertFalse( mScheduler.isInquiring() );
+		assertEquals( Arrays.asList( WINDOW_MILLIS ), mRadio.cancels );
+		assertArrayEquals( new String[]{ "inquiring:false" }, mRecorder.take() );
+
+		assertEquals( 1, pollAt( PERIOD_MILLIS - 1 ) );
+		assertEquals( 1, mRadio.starts.size() );
+
+		// 次の周期の始まりちょうどで、また開始する
+		assertEquals( WINDOW_MILLIS, pollAt( PERIOD_MILLIS ) );
+		assertEquals( Arrays.asList( 0L, PERIOD_MILLIS ), mRadio.starts );
+		assertArrayEquals( new String[]{ "inquiring:true" }, mRecorder.take() );
+	}
+
+	@Test
+	public void latePollKeepsThePeriod()
+	{
+		// poll()が遅れても、次の検索は検索を開始した時刻からの周期で始まる
+		mScheduler.start();
+		pollAt( 0 );
+		assertEquals( PERIOD_MILLIS - WINDOW_MILLIS - 50, pollAt( WINDOW_MILLIS + 50 ) );
+		assertFalse( mScheduler.isInquiring() );
+		assertEquals( WINDOW_MILLIS, pollAt( PERIOD_MILLIS + 20 ) );
+		assertEquals( Arrays.asList( 0L, PERIOD_MILLIS + 20 ), mRadio.starts );
+	}
+
+	@Test
+	public void continuousScanWhenWindowEqualsPeriod()
+	{
+		mScheduler.setDutyCycle( WINDOW_MILLIS, WINDOW_MILLIS );
+		mScheduler.start();
+		pollAt( 0 );
+		assertEquals( WINDOW_MILLIS, pollAt( WINDOW_MILLIS ) );    // 終了と同時に、次の検索を開始する
+		assertTrue( mScheduler.isInquiring() );
+		assertEquals( Arrays.asList( 0L, WINDOW_MILLIS ), mRadio.starts );
+		assertArrayEquals( new String[]{ "inquiring:true", "inquiring:false", "inquiring:true" }, mRecorder.take() );
+	}
+
+	@Test
+	public void failedStartRetriesNextPeriod()
+	{
+		mRadio.available = false;
+		mScheduler.start();
+		assertEquals( PERIOD_MILLIS, pollAt( 0 ) );
+		assertFalse( mScheduler.isInquiring() );
+		assertEquals( 0, mRecorder.take().length );
+
+		mRadio.available = true;
+		assertEquals( WINDOW_MILLIS, pollAt( PERIOD_MILLIS ) );
+		assertTrue( mScheduler.isInquiring() );
+	}
+
+	@Test
+	public void inquiryFinishedEarlyKeepsThePeriod()
+	{
+		mScheduler.start();
+		pollAt( 0 );
+		mClock.now = 40;
+		mScheduler.onInquiryFinished();
+		assertFalse( mScheduler.isInquiring() );
+		assertTrue( mRadio.cancels.isEmpty() );    // Bluetooth側で終わったので、停止はしない
+		assertEquals( PERIOD_MILLIS - 40, pollAt( 40 ) );
+
+		// 検索していないときの通知は無視する
+		mScheduler.onInquiryFinished();
+		assertArrayEquals( new String[]{ "inquiring:true", "inquiring:false" }, mRecorder.take() );
+	}
+
+	@Test
+	public void scanNowStartsOnNextPollAndRestartsThePeriod()
+	{
+		mScheduler.start();
+		pollAt( 0 );
+		pollAt( WINDOW_MILLIS );
+
+		mClock.now = 300;
+		mScheduler.scanNow();
+		assertEquals( WINDOW_MILLIS, pollAt( 300 ) );
+		assertTrue( mScheduler.isInquiring() );
+
+		// 検索中のscanNow()は、検索時間を延ばさない
+		mClock.now = 350;
+		mScheduler.scanNow();
+		assertEquals( 50, pollAt( 350 ) );
+		assertEquals( PERIOD_MILLIS - WINDOW_MILLIS, pollAt( 300 + WINDOW_MILLIS ) );
+		assertEquals( Arrays.asList( 0L, 300L ), mRadio.starts );
+
+		// 次の周期は、scanNow()で開始した時刻から数える
+		assertEquals( WINDOW_MILLIS, pollAt( 300 + PERIOD_MILLIS ) );
+		assertEquals( Arrays.asList( 0L, 300L, 300 + PERIOD_MILLIS ), mRadio.starts );
+	}
+
+	@Test
+	public void cancelWindowStopsOnlyThisWindow()
+	{
+		mScheduler.start();
+		pollAt( 0 );
+		mClock.now = 30;
+		mScheduler.cancelWindow();
+		assertFalse( mScheduler.isInquiring() );
+		assertTrue( mScheduler.isRunning() );
+		assertEquals( Arrays.asList( 30L ), mRadio.cancels );
+		assertEquals( PERIOD_MILLIS - 30, pollAt( 30 ) );
+
+		// 検索していなければ、何もしない
+		mScheduler.cancelWindow();
+		assertEquals( 1, mRadio.cancels.size() );
+		assertArrayEquals( new String[]{ "inquiring:true", "inquiring:false" }, mRecorder.take() );
+
+		assertEquals( WINDOW_MILLIS, pollAt( PERIOD_MILLIS ) );
+	}
+
+	@Test
+	public void stopCancelsAndKeepsDevices()
+	{
+		mScheduler.start();
+		pollAt( 0 );
+		mScheduler.onDeviceFound( "AA", "a", -50 );
+		mClock.now = 10;
+		mScheduler.stop();
+		assertFalse( mScheduler.isRunning() );
+		assertFalse( mScheduler.isInquiring() );
+		assertEquals( Arrays.asList( 10L ), mRadio.cancels );
+		assertEquals( 1, mScheduler.getDeviceCount() );
+
+		// 停止中も、消失の期限は返す（期限が過ぎたら消失させて、それ以降は呼ぶ必要がない）
+		assertEquals( TTL_MILLIS - 20, pollAt( 20 ) );
+		assertEquals( DiscoveryScheduler.NO_DEADLINE, pollAt( TTL_MILLIS ) );
+		assertEquals( 0, mScheduler.getDeviceCount() );
+		assertEquals( 1, mRadio.starts.size() );
+	}
+
+	@Test
+	public void devicesExpireAfterTtlWithoutBeingSeen()
+	{
+		mScheduler.setDutyCycle( WINDOW_MILLIS, 10 * TTL_MILLIS );    // 期限は、消失のほうが先になる
+		mScheduler.start();
+		pollAt( 0 );
+		mScheduler.onDeviceFound( "AA", "a", -50 );
+		mClock.now = 10;
+		mScheduler.onDeviceFound( "BB", null, DiscoveryScheduler.RSSI_UNKNOWN );
+		pollAt( WINDOW_MILLIS );
+		assertArrayEquals( new String[]{ "inquiring:true", "added:AA", "added:BB", "inquiring:false" }, mRecorder.take() );
+
+		// 最も早い消失の時刻が、次の期限になる
+		assertEquals( TTL_MILLIS - 200, pollAt( 200 ) );
+
+		// AAは、期限の前にもう一度見つかると延びる（変化がなければ、通知しない）
+		mClock.now = 2000;
+		mScheduler.onDeviceFound( "AA", "a", -50 );
+		assertEquals( 0, mRecorder.take().length );
+		assertEquals( TTL_MILLIS + 10 - 2000, pollAt( 2000 ) );
+
+		// 期限の直前は残り、ちょうどで消失する
+		assertEquals( 1, pollAt( TTL_MILLIS + 9 ) );
+		assertEquals( 2, mScheduler.getDeviceCount() );
+		assertEquals( 2000 + TTL_MILLIS - ( TTL_MILLIS + 10 ), pollAt( TTL_MILLIS + 10 ) );
+		assertArrayEquals( new String[]{ "expired:BB" }, mRecorder.take() );
+		assertEquals( 1, mScheduler.getDeviceCount() );
+
+		assertEquals( 10 * TTL_MILLIS - ( 2000 + TTL_MILLIS ), pollAt( 2000 + TTL_MILLIS ) );
+		assertArrayEquals( new String[]{ "expired:AA" }, mRecorder.take() );
+		assertEquals( 0, mScheduler.getDeviceCount() );
+	}
+
+	@Test
+	public void deviceUpdatesAreNotifiedOnlyOnChange()
+	{
+		mScheduler.onDeviceFound( "AA", null, DiscoveryScheduler.RSSI_UNKNOWN );
+		mScheduler.onDeviceFound( "AA", "name", DiscoveryScheduler.RSSI_UNKNOWN );
+		mScheduler.onDeviceFound( "AA", null, -60 );    // 名前が不明になっても、前の名前のまま
+		mScheduler.onDeviceFound( "AA", "name", DiscoveryScheduler.RSSI_UNKNOWN );    // 受信信号強度が不明になっても、前の値のまま
+		mScheduler.onDeviceFound( "AA", "name", -60 );
+		assertArrayEquals( new String[]{ "added:AA", "updated:AA", "updated:AA" }, mRecorder.take() );
+
+		// 後から追加したリスナーには、見つかっているデバイスと、検索中かどうかをすぐに通知する
+		Recorder late = new Recorder();
+		mScheduler.addListener( late );
+		assertArrayEquals( new String[]{ "added:AA", "inquiring:false" }, late.take() );
+	}
+
+	private long pollAt( long nowMillis )
+	{
+		mClock.now = nowMillis;
+		return mScheduler.poll();
+	}
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+// FlowControlの試験
+// 受信バッファーが小さく、溢れた分を捨てる相手側（SimulatedTransportの溢れ時破棄モード）と接続して、
+// フロー制御なしでは欠落し、フロー制御ありでは欠落しない（またはずっと少ない）ことを確かめる。
+// 送信側（相手側の受信バッファー）と、受信側（こちらのリングバッファー）の両方を調べる。
+// クレジット方式は、両方ともBluetoothServiceの２つの接続をつないで、双方向に付与し合っても欠落も停止もしないことを確かめる。
+// フロー制御なしとの比較（溢れたバイト数の出力）は、性能計測の分類にする。
+public class FlowControlTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS    = 20000;
+	private static final int  PEER_BUFFERSIZE   = 256;    // 相手側の受信バッファー（通り道の容量）
+	private static final int  RING_CAPACITY     = 1024;
+	private static final int  CHUNK_SIZE        = 16;    // 送信と、相手側の読み書きの単位
+	private static final long CHUNK_DELAYNANOS  = 400 * 1000;    // 遅い側が１単位を処理する時間（40KB/s）
+	private static final long LINK_NANOSPERBYTE = 4000;    // 通信路の速度（250KB/s。遅い側より速い）
+	private static final int  TOTAL_BYTES       = 8 * 1024;
+
+	// 帯域を絞った通信路（両方向とも、書き込みにバイト数に応じた時間がかかる）
+	// 帯域が無限だと、制御バイトが届く前に全部溢れてしまうので、実際の通信路のように送信の速さを抑える。
+	private static final class ThrottledTransport extends SimulatedTransport
+	{
+		ThrottledTransport()
+		{
+			super( new FaultInjector( 0 ), false, PEER_BUFFERSIZE );
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException
+		{
+			final OutputStream output = super.getOutputStream();
+			return new OutputStream()
+			{
+				@Override
+				public void write( int b ) throws IOException
+				{
+					write( new byte[]{ (byte)b }, 0, 1 );
+				}
+
+				@Override
+				public void write( byte[] buf, int offset, int length ) throws IOException
+				{
+					sleepNanos( length * LINK_NANOSPERBYTE );
+					output.write( buf, offset, length );
+				}
+			};
+		}
+
+		@Override
+		public void writePeer( byte[] buf, int offset, int length ) throws IOException
+		{
+			sleepNanos( length * LINK_NANOSPERBYTE );
+			super.writePeer( buf, offset, length );
+		}
+	}
+
+	@Test
+	public void xonXoffReceiveBacklogHasHysteresis()
+	{
+		FlowControl.XonXoff flowControl = new FlowControl.XonXoff();
+		byte[]              xoff        = { FlowControl.XonXoff.XOFF };
+		byte[]              xon         = { FlowControl.XonXoff.XON };
+		assertNull( flowControl.onReceiveBacklog( 50, 100, 0 ) );
+		assertArrayEquals( xoff, flowControl.onReceiveBacklog( 75, 100, 0 ) );
+		assertNull( flowControl.onReceiveBacklog( 100, 100, 0 ) );
+		assertNull( flowControl.onReceiveBacklog( 26, 100, 74 ) );
+		assertArrayEquals( xon, flowControl.onReceiveBacklog( 25, 100, 75 ) );
+		assertNull( flowControl.onReceiveBacklog( 0, 100, 100 ) );
+		assertNull( flowControl.onReceiveBacklog( 74, 100, 100 ) );
+		assertArrayEquals( xoff, flowControl.onReceiveBacklog( 80, 100, 100 ) );
+		assertEquals( 2, flowControl.getXoffSentCount() );
+
+		assertNull( new FlowControl.None().onReceiveBacklog( 100, 100, 1000 ) );
+		assertNull( new FlowControl.Credit().onReceiveBacklog( 100, 100, 1000 ) );    // 受信ウィンドウなし（付与しない）
+	}
+
+	@Test
+	public void onlyReceiveSideFlowControlUsesBacklog()
+	{
+		// 使わないなら、BluetoothServiceは、受信のたび、読み込み側が読み進めるたびのロックをしない
+		assertFalse( new FlowControl.None().usesReceiveBacklog() );
+		assertFalse( new FlowControl.Credit( 64 ).usesReceiveBacklog() );
+		assertTrue( new FlowControl.Credit( 64, 100 ).usesReceiveBacklog() );
+		assertTrue( new FlowControl.XonXoff().usesReceiveBacklog() );
+	}
+
+	@Test
+	public void creditGrantsOnlyWhatTheReaderConsumed()
+	{
+		FlowControl.Credit flowControl = new FlowControl.Credit( 64, 100 );
+		assertNull( flowControl.onReceiveBacklog( 100, 128, 0 ) );    // 受信ウィンドウの分が届いただけ（まだ読んでいない）
+		assertNull( flowControl.onReceiveBacklog( 76, 128, 24 ) );    // 受信ウィンドウの1/4までは、まとめるために待つ
+		assertArrayEquals( new byte[]{ FlowControl.Credit.GRANT, 0, 25 }, flowControl.onReceiveBacklog( 75, 128, 25 ) );
+		assertNull( flowControl.onReceiveBacklog( 75, 128, 25 ) );    // 同じ分は、二重に付与しない
+		assertNull( flowControl.onReceiveBacklog( 0, 128, 49 ) );
+
+		// ２バイトに収まらない分は、複数回に分けて付与する
+		assertArrayEquals( new byte[]{ FlowControl.Credit.GRANT, (byte)0xff, (byte)0xff,
+									   FlowControl.Credit.GRANT, 0x11, 0x58 }, flowControl.onReceiveBacklog( 0, 128, 25 + 0xffff + 0x1158 ) );
+		assertEquals( 3, flowControl.getGrantCount() );
+		assertEquals( 64, flowControl.getCredit() );    // こちらの付与は、こちらの送信のクレジットとは別
+
+		try
+		{
+			new FlowControl.Credit( 64, -1 );
+			fail( "negative receive window" );
+		}
+		catch( IllegalArgumentException e )
+		{
+			;    // 期待どおり
+		}
+	}
+
+	@Test( timeout = 10000 )
+	public void xonXoffPausesAllButControlLane() throws Exception
+	{
+		final FlowControl.XonXoff flowControl = new FlowControl.XonXoff();
+		byte[] xoff = { FlowControl.XonXoff.XOFF, 'a' };
+		assertEquals( 1, flowControl.filterReceived( xoff, 0, xoff.length ) );
+		assertEquals( 'a', xoff[0] );
+		assertTrue( flowControl.isPaused() );
+		assertEquals( 1, flowControl.getPauseCount() );
+
+		// 制御レーンは待たされない
+		assertEquals( 5, flowControl.acquire( OutboundQueue.LANE_CONTROL, 5 ) );
+
+		// それ以外のレーンは、XONまで待たされる
+		final AtomicInteger acquired = new AtomicInteger( -1 );
+		Thread sender = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					acquired.set( flowControl.acquire( OutboundQueue.LANE_BULK, 7 ) );
+				}
+				catch( InterruptedException e )
+				{
+					;    // 終了
+				}
+			}
+		} );
+		sender.start();
+		Thread.sleep( 50 );
+		assertEquals( -1, acquired.get() );
+		byte[] xon = { FlowControl.XonXoff.XON };
+		assertEquals( 0, flowControl.filterReceived( xon, 0, xon.length ) );
+		sender.join( TIMEOUT_MILLIS );
+		assertEquals( 7, acquired.get() );
+	}
+
+	@Test( timeout = 10000 )
+	public void creditAppliesToAllButControlLane() throws Exception
+	{
+		final FlowControl.Credit flowControl = new FlowControl.Credit( 4 );
+		assertEquals( 4, flowControl.acquire( OutboundQueue.LANE_BULK, 10 ) );
+		assertEquals( 0, flowControl.getCredit() );
+
+		// 制御レーン（こちらからの付与など）は、クレジットがなくても待たされない
+		assertEquals( 10, flowControl.acquire( OutboundQueue.LANE_CONTROL, 10 ) );
+		assertEquals( 0, flowControl.getCredit() );
+
+		final AtomicInteger acquired = new AtomicInteger( Integer.MIN_VALUE );
+		Runnable            acquire  = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					acquired.set( flowControl.acquire( OutboundQueue.LANE_INTERACTIVE, 10 ) );
+				}
+				catch( InterruptedException e )
+				{
+					;    // 終了
+				}
+			}
+		};
+		Thread sender = new Thread( acquire );
+		sender.start();
+		Thread.sleep( 50 );
+		assertEquals( Integer.MIN_VALUE, acquired.get() );
+		// 制御レーンに送信データが追加されたら、待つのをやめて、制御レーンを先に送信させる
+		flowControl.wakeup();
+		sender.join( TIMEOUT_MILLIS );
+		assertEquals( FlowControl.WAKEUP, acquired.get() );
+
+		acquired.set( Integer.MIN_VALUE );
+		sender = new Thread( acquire );
+		sender.start();
+		Thread.sleep( 50 );
+		assertEquals( Integer.MIN_VALUE, acquired.get() );
+		// 付与は、受信の区切りをまたいでもよい
+		byte[] grant = { FlowControl.Credit.GRANT, 0, 3 };
+		assertEquals( 0, flowControl.filterReceived( grant, 0, 2 ) );
+		assertEquals( 0, flowControl.filterReceived( grant, 2, 1 ) );
+		sender.join( TIMEOUT_MILLIS );
+		assertEquals( 3, acquired.get() );
+	}
+
+	@Test( timeout = 60000 )
+	public void creditDoesNotOverrunSlowPeer() throws Exception
+	{
+		assertEquals( 0, sendToSlowPeer( new FlowControl.Credit( PEER_BUFFERSIZE ) ) );
+	}
+
+	@Test( timeout = 60000 )
+	public void xonXoffPausesFastPeer() throws Exception
+	{
+		FlowControl.XonXoff xonXoff = new FlowControl.XonXoff();
+		long                overrun = receiveFromFastPeer( xonXoff );
+		assertTrue( 0 < xonXoff.getXoffSentCount() );
+		assertTrue( "xon/xoff lost " + overrun + " of " + TOTAL_BYTES, overrun * 10 < TOTAL_BYTES );
+	}
+
+	@Test( timeout = 60000 )
+	public void creditBothWaysOverLinkedServices() throws Exception
+	{
+		// どちらも、読み込み側が遅く、受信ウィンドウの分しか受け取れない（通り道の余裕は、付与の制御バイトの分だけ）
+		final SimulatedTransport transportA = new SimulatedTransport( new FaultInjector( 0 ), false, RING_CAPACITY + PEER_BUFFERSIZE );
+		final SimulatedTransport transportB = new SimulatedTransport( new FaultInjector( 0 ), false, RING_CAPACITY + PEER_BUFFERSIZE );
+		transportA.setPeerDropOnOverrun( true );
+		transportB.setPeerDropOnOverrun( true );
+		Thread[] bridge = { relay( transportA, transportB ), relay( transportB, transportA ) };
+
+		FlowControl.Credit creditA = new FlowControl.Credit( RING_CAPACITY, RING_CAPACITY );
+		FlowControl.Credit creditB = new FlowControl.Credit( RING_CAPACITY, RING_CAPACITY );
+		ReceiveRing        ringA   = new ReceiveRing( RING_CAPACITY, ReceiveRing.WAIT_BLOCKING );
+		ReceiveRing        ringB   = new ReceiveRing( RING_CAPACITY, ReceiveRing.WAIT_BLOCKING );
+		BluetoothService   serviceA = connect( transportA, creditA, ringA );
+		BluetoothService   serviceB = connect( transportB, creditB, ringB );
+		Reader             readerA  = new Reader( ringA );
+		Reader             readerB  = new Reader( ringB );
+		readerA.start();
+		readerB.start();
+
+		byte[] dataA = text( TOTAL_BYTES, 'a' );
+		byte[] dataB = text( TOTAL_BYTES, 'A' );
+		for( int offset = 0; offset < TOTAL_BYTES; offset += 1024 )
+		{
+			serviceA.write( Arrays.copyOfRange( dataA, offset, offset + 1024 ), OutboundQueue.LANE_BULK );
+			serviceB.write( Arrays.copyOfRange( dataB, offset, offset + 1024 ), OutboundQueue.LANE_BULK );
+		}
+		readerA.join( TIMEOUT_MILLIS );
+		readerB.join( TIMEOUT_MILLIS );
+		assertFalse( readerA.isAlive() );
+		assertFalse( readerB.isAlive() );
+		assertArrayEquals( dataB, readerA.received.toByteArray() );
+		assertArrayEquals( dataA, readerB.received.toByteArray() );
+		assertEquals( 0, transportA.getPeerOverrunBytes() );
+		assertEquals( 0, transportB.getPeerOverrunBytes() );
+		assertTrue( 0 < creditA.getGrantCount() );
+		assertTrue( 0 < creditB.getGrantCount() );
+
+		disconnect( serviceA );
+		disconnect( serviceB );
+		for( Thread thread : bridge )
+		{
+			thread.join( TIMEOUT_MILLIS );
+			assertFalse( thread.isAlive() );
+		}
+	}
+
+	@Test( timeout = 60000 )
+	@Category( Benchmark.class )
+	public void benchmarkSendSideOverrun() throws Exception
+	{
+		long none = sendToSlowPeer( new FlowControl.None() );
+
+		FlowControl.XonXoff xonXoff        = new FlowControl.XonXoff();
+		long                xonXoffOverrun = sendToSlowPeer( xonXoff );
+
+		long credit = sendToSlowPeer( new FlowControl.Credit( PEER_BUFFERSIZE ) );
+
+		System.out.println( "send side overrun[bytes] : none " + none + ", xon/xoff " + xonXoffOverrun + " (" + xonXoff.getPauseCount() + " pauses), credit " + credit );
+		assertTrue( 0 < none );
+		assertTrue( "xon/xoff lost " + xonXoffOverrun + " of " + none, xonXoffOverrun * 10 < none );
+	}
+
+	@Test( timeout = 60000 )
+	@Category( Benchmark.class )
+	public void benchmarkReceiveSideOverrun() throws Exception
+	{
+		long none = receiveFromFastPeer( new FlowControl.None() );
+
+		FlowControl.XonXoff xonXoff        = new FlowControl.XonXoff();
+		long                xonXoffOverrun = receiveFromFastPeer( xonXoff );
+
+		System.out.println( "receive side overrun[bytes] : none " + none + ", xon/xoff " + xonXoffOverrun + " (" + xonXoff.getXoffSentCount() + " xoffs sent)" );
+		assertTrue( 0 < none );
+		assertTrue( "xon/xoff lost " + xonXoffOverrun + " of " + none, xonXoffOverrun * 10 < none );
+	}
+
+	// リングバッファーの遅い読み込み側（全部を受け取るまで、少しずつ読む）
+	private static final class Reader extends Thread
+	{
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		private final ReceiveRing mRing;
+
+		Reader( ReceiveRing ring )
+		{
+			super( "FlowControlTest-Reader" );
+			mRing = ring;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while( received.size() < TOTAL_BYTES && 0 < mRing.await() )
+				{
+					ByteBuffer view  = mRing.peek();
+					int        count = Math.min( view.remaining(), CHUNK_SIZE );
+					for( int i = 0; i < count; i++ )
+					{
+						received.write( view.get( view.position() + i ) );
+					}
+					mRing.advance( count );    // 読んで空いた分が、相手側に付与される
+					sleepNanos( CHUNK_DELAYNANOS );
+				}
+			}
+			catch( InterruptedException e )
+			{
+				;    // 終了
+			}
+		}
+	}
+
+	// 一方の相手側で受信したデータを、もう一方の相手側から送信する（２つのBluetoothServiceをつなぐ）
+	private static Thread relay( final SimulatedTransport from, final SimulatedTransport to )
+	{
+		Thread thread = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				byte[] buf = new byte[CHUNK_SIZE];
+				try
+				{
+					while( true )
+					{
+						int bytes = from.readPeer( buf, 0, buf.length );
+						sleepNanos( bytes * LINK_NANOSPERBYTE );
+						to.writePeer( buf, 0, bytes );
+					}
+				}
+				catch( IOException e )
+				{
+					;    // 切断
+				}
+			}
+		}, "FlowControlTest-Relay" );
+		thread.start();
+		return thread;
+	}
+
+	// 遅い相手側への送信。戻り値は、相手側で溢れたバイト数。
+	// 相手側は、受信バッファーの溜まり具合に応じて、XOFF、XON（XON/XOFF）か、読んだ分のクレジット（クレジット方式）を送信する。
+	private static long sendToSlowPeer( final FlowControl flowControl ) throws Exception
+	{
+		final SimulatedTransport transport = new ThrottledTransport();
+		transport.setDropOnOverrun( true );
+		BluetoothService service = connect( transport, flowControl, null );
+		service.getOutboundQueue().setChunkSize( CHUNK_SIZE );
+
+		final long[] received = new long[1];
+		Thread peer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				byte[]  buf    = new byte[CHUNK_SIZE];
+				boolean paused = false;
+				try
+				{
+					while( received[0] + transport.getOverrunBytes() < TOTAL_BYTES )
+					{
+						if( 0 == transport.getPeerAvailable() )
+						{
+							Thread.yield();
+							continue;
+						}
+						int bytes = transport.readPeer( buf, 0, buf.length );
+						received[0] += bytes;
+						int available = transport.getPeerAvailable();
+						if( flowControl instanceof FlowControl.XonXoff )
+						{
+							if( !paused && available >= PEER_BUFFERSIZE * 3 / 4 )
+							{
+								paused = true;
+								transport.writePeer( new byte[]{ FlowControl.XonXoff.XOFF }, 0, 1 );
+							}
+							else if( paused && available <= PEER_BUFFERSIZE / 4 )
+							{
+								paused = false;
+								transport.writePeer( new byte[]{ FlowControl.XonXoff.XON }, 0, 1 );
+							}
+						}
+						else if( flowControl instanceof FlowControl.Credit )
+						{    // 読んで空いた分を付与する
+							transport.writePeer( new byte[]{ FlowControl.Credit.GRANT, (byte)( bytes >> 8 ), (byte)bytes }, 0, 3 );
+						}
+						sleepNanos( CHUNK_DELAYNANOS );
+					}
+				}
+				catch( IOException e )
+				{
+					;    // 切断
+				}
+			}
+		} );
+		peer.start();
+
+		byte[] block = new byte[1024];
+		for( int i = 0; i < TOTAL_BYTES / block.length; i++ )
+		{
+			service.write( block, OutboundQueue.LANE_BULK );
+		}
+		peer.join( TIMEOUT_MILLIS );
+		assertFalse( peer.isAlive() );
+		assertEquals( TOTAL_BYTES, received[0] + transport.getOverrunBytes() );
+		disconnect( service );
+		return transport.getOverrunBytes();
+	}
+
+	// 速い相手側からの受信（こちらのリングバッファーの読み込み側が遅い）。戻り値は、相手側の送信が溢れたバイト数。
+	// 相手側は、XOFFを受信したら、XONを受信するまで送信を止める。
+	private static long receiveFromFastPeer( FlowControl flowControl ) throws Exception
+	{
+		final SimulatedTransport transport = new ThrottledTransport();
+		transport.setPeerDropOnOverrun( true );
+		final ReceiveRing ring    = new ReceiveRing( RING_CAPACITY, ReceiveRing.WAIT_BLOCKING );
+		BluetoothService  service = connect( transport, flowControl, ring );
+
+		Thread peer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				byte[]  data    = new byte[CHUNK_SIZE];
+				byte[]  control = new byte[1];
+				boolean paused  = false;
+				for( int i = 0; i < data.length; i++ )
+				{
+					data[i] = (byte)( 'a' + i );    // XON、XOFFと同じ値は含めない
+				}
+				try
+				{
+					for( int sent = 0; sent < TOTAL_BYTES; )
+					{
+						while( paused || 0 < transport.getPeerAvailable() )
+						{    // 止められている間は、XONを受信するまで待つ
+							transport.readPeer( control, 0, 1 );
+							paused = ( FlowControl.XonXoff.XOFF == control[0] ) || ( paused && FlowControl.XonXoff.XON != control[0] );
+						}
+						transport.writePeer( data, 0, data.length );
+						sent += data.length;
+					}
+				}
+				catch( IOException e )
+				{
+					;    // 切断
+				}
+			}
+		} );
+		peer.start();
+
+		// 遅い読み込み側
+		long consumed = 0;
+		while( consumed + transport.getPeerOverrunBytes() < TOTAL_BYTES )
+		{
+			if( peer.isAlive() || 0 < ring.available() )
+			{
+				ring.await();
+			}
+			else
+			{    // 送信し終わった後、通り道に残っている分を待つ
+				Thread.sleep( 1 );
+				continue;
+			}
+			ByteBuffer view  = ring.peek();
+			int        count = Math.min( view.remaining(), CHUNK_SIZE );
+			ring.advance( count );
+			consumed += count;
+			sleepNanos( CHUNK_DELAYNANOS );
+		}
+		peer.join( TIMEOUT_MILLIS );
+		assertFalse( peer.isAlive() );
+		assertEquals( TOTAL_BYTES, consumed + transport.getPeerOverrunBytes() );
+		assertEquals( consumed, service.getBytesReceived() );
+		disconnect( service );
+		return transport.getPeerOverrunBytes();
+	}
+
+	private static BluetoothService connect( SimulatedTransport transport, FlowControl flowControl, ReceiveRing ring ) throws InterruptedException
+	{
+		BluetoothService service = new BluetoothService( null, null, transport, new ConnectionScheduler.ThreadPerConnection() );
+		StateRecorder    states  = new StateRecorder();
+		service.addStateListener( states );
+		service.setFlowControl( flowControl );
+		service.setReceiveRing( ring );
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		return service;
+	}
+
+	private static void disconnect( BluetoothService service ) throws InterruptedException
+	{
+		service.disconnect();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( service.isRunning() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertFalse( service.isRunning() );
+	}
+
+	// XON、XOFF、GRANTと同じ値を含まない送信データ
+	private static byte[] text( int length, char first )
+	{
+		byte[] data = new byte[length];
+		for( int i = 0; i < length; i++ )
+		{
+			data[i] = (byte)( first + i % 26 );
+		}
+		return data;
+	}
+
+	private static void sleepNanos( long nanos )
+	{
+		long deadline = System.nanoTime() + nanos;
+		while( System.nanoTime() < deadline )
+		{
+			LockSupport.parkNanos( deadline - System.nanoTime() );
+		}
+	}
+}
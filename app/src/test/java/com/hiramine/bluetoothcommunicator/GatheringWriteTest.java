@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+// BluetoothServiceの、複数のByteBufferの送信（ギャザー書き込み）の試験と、連結してから送信する場合との比較
+// 通信路は、折り返さないSimulatedTransport（送信したデータは、相手側として読む）。
+public class GatheringWriteTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS = 10000;
+	private static final int  HEADER_SIZE    = 16;
+	private static final int  PAYLOAD_SIZE   = 1024;
+	private static final int  TRAILER_SIZE   = 2;
+	private static final int  FRAME_SIZE     = HEADER_SIZE + PAYLOAD_SIZE + TRAILER_SIZE;
+	private static final int  FRAMES         = 20000;
+	private static final int  MAX_QUEUED     = 64 * 1024;    // 送信キューに溜める上限（呼び出し元を送信に合わせる）
+
+	// 相手側の受信（読んだデータを溜める）
+	private static final class PeerReader extends Thread
+	{
+		final SimulatedTransport    transport;
+		final long                  expected;
+		final boolean               keep;    // 読んだデータを溜めるかどうか（比較の計測時は、溜めない）
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		volatile long               count;
+		volatile long               endNanos;
+
+		PeerReader( SimulatedTransport transport, long expected, boolean keep )
+		{
+			this.transport = transport;
+			this.expected = expected;
+			this.keep = keep;
+		}
+
+		@Override
+		public void run()
+		{
+			byte[] buf = new byte[4096];
+			try
+			{
+				while( count < expected )
+				{
+					int bytes = transport.readPeer( buf, 0, buf.length );
+					if( 0 > bytes )
+					{
+						return;
+					}
+					if( keep )
+					{
+						received.write( buf, 0, bytes );
+					}
+					count += bytes;
+				}
+				endNanos = System.nanoTime();
+			}
+			catch( IOException e )
+			{
+				;    // 切断
+			}
+		}
+	}
+
+	@Test( timeout = 30000 )
+	public void directAndSlicedBuffersAreSentUnchanged() throws Exception
+	{
+		SimulatedTransport transport = new SimulatedTransport( new FaultInjector( 0 ), false );
+		BluetoothService   service   = connect( transport );
+		service.getOutboundQueue().setChunkSize( 100 );
+
+		// ダイレクトバッファー（作業用の配列を経由する）。チャンクサイズや作業用の配列の初期サイズより大きいものも含める。
+		ByteBuffer header = ByteBuffer.allocateDirect( 16 );
+		header.put( "..HEADER..".getBytes() );
+		header.position( 2 ).limit( 8 );
+		ByteBuffer payload = ByteBuffer.allocateDirect( 1000 );
+		for( int i = 0; i < payload.capacity(); i++ )
+		{
+			payload.put( (byte)( 'a' + i % 26 ) );
+		}
+		payload.flip();
+		// 配列の途中から始まるヒープバッファー（arrayOffsetが0でない）
+		ByteBuffer trailer = ByteBuffer.wrap( "--\r\n".getBytes(), 2, 2 ).slice();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write( "HEADER".getBytes() );
+		for( int i = 0; i < payload.capacity(); i++ )
+		{
+			expected.write( 'a' + i % 26 );
+		}
+		expected.write( "\r\n".getBytes() );
+
+		PeerReader reader = new PeerReader( transport, 2L * expected.size(), true );
+		reader.start();
+		service.write( new ByteBuffer[]{ header, payload, trailer } );
+		service.write( new ByteBuffer[]{ header, payload, trailer }, OutboundQueue.LANE_BULK );    // チャンクに分割される
+		reader.join( TIMEOUT_MILLIS );
+		assertFalse( reader.isAlive() );
+
+		byte[] received = reader.received.toByteArray();
+		assertEquals( 2 * expected.size(), received.length );
+		for( int i = 0; i < received.length; i++ )
+		{
+			assertEquals( "byte " + i, expected.toByteArray()[i % expected.size()], received[i] );
+		}
+		assertEquals( 2, header.position() );
+		assertEquals( 8, header.limit() );
+		assertEquals( 0, payload.position() );
+		assertEquals( 1000, payload.limit() );
+		assertEquals( 0, trailer.position() );
+		assertEquals( 2, trailer.limit() );
+		awaitFramesSent( service, 2 );
+		assertEquals( received.length, service.getBytesSent() );
+		disconnect( service );
+	}
+
+	@Test( timeout = 120000 )
+	public void gatherDoesNotCopyPayload() throws Exception
+	{
+		com.sun.management.ThreadMXBean threadMXBean = allocationMXBean();
+		measure( threadMXBean, false, false );    // ウォームアップ（JITのコンパイル）
+
+		// ギャザー書き込みは、送信データ１つにつき、ByteBufferの配列と管理用のオブジェクトだけを確保する（ペイロード分の確保はない）
+		double[] gather = measure( threadMXBean, false, false );
+		assertTrue( "gather allocated " + gather[0] + " bytes/frame", PAYLOAD_SIZE > gather[0] );
+	}
+
+	@Test( timeout = 120000 )
+	@Category( Benchmark.class )
+	public void gatherVersusConcatenate() throws Exception
+	{
+		com.sun.management.ThreadMXBean threadMXBean = allocationMXBean();
+
+		// ウォームアップ（JITのコンパイル）の後に計測する
+		for( int i = 0; i < 2; i++ )
+		{
+			measure( threadMXBean, false, false );
+			measure( threadMXBean, true, false );
+		}
+		System.out.println( "method, frames, copied/frame[bytes], allocated/frame[bytes], throughput[bytes/s]" );
+		double[] gather      = measure( threadMXBean, false, true );
+		double[] concatenate = measure( threadMXBean, true, true );
+
+		// ギャザー書き込みは、送信データ１つにつき、ByteBufferの配列と管理用のオブジェクトだけを確保する（ペイロード分の確保はない）
+		assertTrue( "gather allocated " + gather[0] + " bytes/frame", PAYLOAD_SIZE > gather[0] );
+		assertTrue( "concatenate allocated " + concatenate[0] + " bytes/frame", FRAME_SIZE <= concatenate[0] );
+	}
+
+	// スレッドごとの確保したバイト数を測れるThreadMXBean（測れないJVMでは、試験を飛ばす）
+	private static com.sun.management.ThreadMXBean allocationMXBean()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue( bean instanceof com.sun.management.ThreadMXBean );
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)bean;
+		Assume.assumeTrue( threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled() );
+		return threadMXBean;
+	}
+
+	// 戻り値は、{ 送信データ１つあたりの確保したバイト数、スループット[bytes/s] }
+	private static double[] measure( com.sun.management.ThreadMXBean threadMXBean, boolean concatenate, boolean print ) throws Exception
+	{
+		SimulatedTransport transport = new SimulatedTransport( new FaultInjector( 0 ), false );
+		BluetoothService   service   = connect( transport );
+		OutboundQueue      queue     = service.getOutboundQueue();
+		ByteBuffer         header    = ByteBuffer.wrap( new byte[HEADER_SIZE] );
+		ByteBuffer         payload   = ByteBuffer.wrap( new byte[PAYLOAD_SIZE] );
+		ByteBuffer         trailer   = ByteBuffer.wrap( new byte[]{ '\r', '\n' } );
+		PeerReader         reader    = new PeerReader( transport, (long)FRAMES * FRAME_SIZE, false );
+		reader.start();
+
+		long threadId   = Thread.currentThread().getId();
+		long copied     = 0;
+		long before     = threadMXBean.getThreadAllocatedBytes( threadId );
+		long startNanos = System.nanoTime();
+		for( int i = 0; i < FRAMES; i++ )
+		{
+			if( concatenate )
+			{    // 連結してから送信する（送信データごとに、配列の確保とコピー）
+				byte[] frame = new byte[FRAME_SIZE];
+				System.arraycopy( header.array(), 0, frame, 0, HEADER_SIZE );
+				System.arraycopy( payload.array(), 0, frame, HEADER_SIZE, PAYLOAD_SIZE );
+				System.arraycopy( trailer.array(), 0, frame, HEADER_SIZE + PAYLOAD_SIZE, TRAILER_SIZE );
+				copied += FRAME_SIZE;
+				service.write( frame );
+			}
+			else
+			{
+				service.write( new ByteBuffer[]{ header, payload, trailer } );
+			}
+			queue.awaitQueuedBytes( OutboundQueue.LANE_INTERACTIVE, MAX_QUEUED );
+		}
+		long allocated = threadMXBean.getThreadAllocatedBytes( threadId ) - before;
+		reader.join( TIMEOUT_MILLIS );
+		assertFalse( reader.isAlive() );
+		assertEquals( (long)FRAMES * FRAME_SIZE, reader.count );
+		disconnect( service );
+
+		double allocatedPerFrame = (double)allocated / FRAMES;
+		double bytesPerSecond    = reader.count * 1e9 / ( reader.endNanos - startNanos );
+		if( print )
+		{
+			System.out.println( ( concatenate ? "concatenate" : "gather" ) + ", " + FRAMES + ", " + ( copied / FRAMES )
+										+ ", " + (long)allocatedPerFrame + ", " + (long)bytesPerSecond );
+		}
+		return new double[]{ allocatedPerFrame, bytesPerSecond };
+	}
+
+	private static BluetoothService connect( SimulatedTransport transport ) throws InterruptedException
+	{
+		BluetoothService service = new BluetoothService( null, null, transport, new ConnectionScheduler.ThreadPerConnection() );
+		StateRecorder    states  = new StateRecorder();
+		service.addStateListener( states );
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_CONNECTED, TIMEOUT_MILLIS ) );
+		return service;
+	}
+
+	private static void disconnect( BluetoothService service ) throws InterruptedException
+	{
+		service.disconnect();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( service.isRunning() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertFalse( service.isRunning() );
+	}
+
+	private static void awaitFramesSent( BluetoothService service, long frames ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( frames > service.getFramesSent() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertEquals( frames, service.getFramesSent() );
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+// OutboundQueueの試験
+// 帯域を絞った通信路（チャンクごとに一定時間かかる送信処理）で、大量データや大きな対話データを流し続けている間の、制御データの待ち時間を調べる。
+// 複数のByteBufferで渡した送信データ（ギャザー書き込み）の、取り出し方も調べる。
+public class OutboundQueueTest
+{
+	// 定数
+	private static final int  CHUNK_SIZE         = 256;
+	private static final long CHUNK_SENDNANOS    = 1000 * 1000;    // １チャンクの送信にかかる時間（256KB/s の通信路）
+	private static final int  CONTROL_FRAMES     = 50;
+	private static final long LATENCY_LIMITNANOS = 50L * 1000 * 1000;    // 溜まっているデータを先に送る場合は、128ms以上かかる
+	private static final int  LOAD_FRAMESIZE     = 16 * 1024;    // 流し続ける送信データの大きさ（ヘッダーとペイロードの２つのByteBuffer）
+
+	// 帯域を絞った送信処理（キューから取り出したチャンクを、送信時間分待ってから送信済みにする）
+	private static final class ThrottledLink implements Runnable
+	{
+		final OutboundQueue queue;
+		final int           loadLane;    // 流し続けるデータのレーン
+		volatile long       controlOfferNanos;    // 送信待ちの制御データを追加した時刻
+		boolean             controlPending         = false;    // 以下は、queueのロック内で読み書きする
+		int                 loadChunksWhilePending = 0;    // 制御データの追加後、取り出すまでに取り出した、流し続けるデータのチャンク数（最大）
+		int                 controlFramesSent      = 0;
+		long                maxLatencyNanos        = 0;
+
+		ThrottledLink( OutboundQueue queue, int loadLane )
+		{
+			this.queue = queue;
+			this.loadLane = loadLane;
+		}
+
+		@Override
+		public void run()
+		{
+			OutboundQueue.Chunk chunk = new OutboundQueue.Chunk();
+			int loadChunks = 0;
+			try
+			{
+				while( true )
+				{
+					synchronized( queue )
+					{    // 取り出しと、制御データの追加の前後関係を正確に数える
+						if( !queue.take( chunk ) )
+						{
+							return;
+						}
+						if( loadLane == chunk.lane && controlPending )
+						{
+							loadChunks++;
+							loadChunksWhilePending = Math.max( loadChunksWhilePending, loadChunks );
+						}
+					}
+					long deadline = System.nanoTime() + CHUNK_SENDNANOS;
+					while( System.nanoTime() < deadline )
+					{
+						LockSupport.parkNanos( deadline - System.nanoTime() );
+					}
+					if( OutboundQueue.LANE_CONTROL == chunk.lane && chunk.last )
+					{    // 制御データの送信完了
+						synchronized( queue )
+						{
+							maxLatencyNanos = Math.max( maxLatencyNanos, System.nanoTime() - controlOfferNanos );
+							controlPending = false;
+							loadChunks = 0;
+							controlFramesSent++;
+							queue.notifyAll();
+						}
+					}
+				}
+			}
+			catch( InterruptedException e )
+			{
+				;    // 終了
+			}
+		}
+	}
+
+	@Test
+	public void controlLatencyIsBoundedUnderBulkLoad_strict() throws Exception
+	{
+		assertControlLatencyBounded( OutboundQueue.MODE_STRICT, OutboundQueue.LANE_BULK );
+	}
+
+	@Test
+	public void controlLatencyIsBoundedUnderBulkLoad_weighted() throws Exception
+	{
+		assertControlLatencyBounded( OutboundQueue.MODE_WEIGHTED, OutboundQueue.LANE_BULK );
+	}
+
+	@Test
+	public void controlLatencyIsBoundedUnderInteractiveLoad_strict() throws Exception
+	{
+		// 以前は、対話レーンの送信データを分割せず、最後まで制御データを待たせていた（16KBの送信データで、64チャンク分）
+		assertControlLatencyBounded( OutboundQueue.MODE_STRICT, OutboundQueue.LANE_INTERACTIVE );
+	}
+
+	@Test
+	public void controlLatencyIsBoundedUnderInteractiveLoad_weighted() throws Exception
+	{
+		assertControlLatencyBounded( OutboundQueue.MODE_WEIGHTED, OutboundQueue.LANE_INTERACTIVE );
+	}
+
+	private static void assertControlLatencyBounded( int mode, final int loadLane ) throws Exception
+	{
+		final OutboundQueue queue = new OutboundQueue();
+		queue.setMode( mode );
+		queue.setChunkSize( CHUNK_SIZE );
+		ThrottledLink link       = new ThrottledLink( queue, loadLane );
+		Thread        linkThread = new Thread( link );
+		linkThread.start();
+
+		// 大きな送信データを流し続ける（キューには、常に上限の半分以上溜まっている）
+		final AtomicBoolean running = new AtomicBoolean( true );
+		Thread loadWriter = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ByteBuffer[] frame = { ByteBuffer.wrap( new byte[4] ), ByteBuffer.wrap( new byte[LOAD_FRAMESIZE - 4] ) };
+				try
+				{
+					while( running.get()
+						   && queue.awaitQueuedBytes( loadLane, OutboundQueue.DEFAULT_MAXQUEUEDBULK / 2 )
+						   && queue.offer( loadLane, frame ) )
+					{
+						;    // 溜まっている間は、awaitQueuedBytes()で待つ
+					}
+				}
+				catch( InterruptedException e )
+				{
+					;    // 終了
+				}
+			}
+		} );
+		loadWriter.start();
+		while( OutboundQueue.DEFAULT_MAXQUEUEDBULK / 2 > queue.getQueuedBytes( loadLane ) )
+		{
+			Thread.sleep( 1 );
+		}
+
+		// 制御データを１つずつ送信し、送信されるまで待つ
+		byte[] control = { 0x13 };
+		for( int i = 0; i < CONTROL_FRAMES; i++ )
+		{
+			synchronized( queue )
+			{
+				link.controlOfferNanos = System.nanoTime();
+				link.controlPending = true;
+				assertTrue( queue.offer( OutboundQueue.LANE_CONTROL, control, 0, control.length ) );
+				while( link.controlPending )
+				{
+					queue.wait();
+				}
+			}
+			Thread.sleep( 3 );
+		}
+
+		running.set( false );
+		queue.close();
+		linkThread.join();
+		loadWriter.join();
+		assertEquals( CONTROL_FRAMES, link.controlFramesSent );
+		// 制御データの追加後に、流し続けているデータのチャンクが先に取り出されることはない（待つのは、送信中の１チャンクだけ）
+		assertEquals( 0, link.loadChunksWhilePending );
+		assertTrue( "max latency " + link.maxLatencyNanos / 1000 + "us", LATENCY_LIMITNANOS > link.maxLatencyNanos );
+	}
+
+	@Test
+	public void bulkIsSplitIntoChunks() throws Exception
+	{
+		OutboundQueue queue = new OutboundQueue();
+		queue.setChunkSize( 100 );
+		byte[] bulk = new byte[250];
+		queue.offer( OutboundQueue.LANE_BULK, bulk, 0, bulk.length );
+		OutboundQueue.Chunk chunk = new OutboundQueue.Chunk();
+		int[]               sizes = new int[3];
+		for( int i = 0; i < sizes.length; i++ )
+		{
+			assertTrue( queue.take( chunk ) );
+			sizes[i] = chunk.length;
+			assertEquals( 2 == i, chunk.last );
+		}
+		assertArrayEquals( new int[]{ 100, 100, 50 }, sizes );
+		assertEquals( 0, queue.getQueuedBytes( OutboundQueue.LANE_BULK ) );
+	}
+
+	@Test
+	public void multipartKeepsPositionAndLimit() throws Exception
+	{
+		// 先頭や末尾を使わないByteBuffer（positionが0でない、limitが容量より小さい、配列の途中から始まる）
+		byte[]     backing = { 'x', 'H', 'D', 'R', 'x' };
+		ByteBuffer header  = ByteBuffer.wrap( backing, 1, 3 );
+		ByteBuffer payload = ByteBuffer.wrap( "--payload--".getBytes() );
+		payload.position( 2 ).limit( 9 );
+		ByteBuffer trailer = ByteBuffer.wrap( "zz\r\n".getBytes(), 2, 2 ).slice();
+		OutboundQueue queue = new OutboundQueue();
+		assertTrue( queue.offer( OutboundQueue.LANE_INTERACTIVE, new ByteBuffer[]{ header, payload, trailer } ) );
+		assertEquals( 3 + 7 + 2, queue.getQueuedBytes( OutboundQueue.LANE_INTERACTIVE ) );
+
+		assertEquals( "HDRpayload\r\n", new String( drain( queue, 3 ) ) );
+		assertEquals( 1, header.position() );
+		assertEquals( 4, header.limit() );
+		assertEquals( 2, payload.position() );
+		assertEquals( 9, payload.limit() );
+		assertEquals( 0, trailer.position() );
+		assertEquals( 2, trailer.limit() );
+		assertEquals( 0, queue.getQueuedBytes( OutboundQueue.LANE_INTERACTIVE ) );
+	}
+
+	@Test
+	public void interactiveFrameIsInterleavedOnlyWithControl() throws Exception
+	{
+		// 対話レーンの送信データの途中には、制御データだけが割り込み、他の送信データは最後まで待つ
+		OutboundQueue queue = new OutboundQueue();
+		queue.offer( OutboundQueue.LANE_INTERACTIVE, parts( "a", "b", "c" ) );
+		OutboundQueue.Chunk chunk = new OutboundQueue.Chunk();
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "a", false );
+		queue.offer( OutboundQueue.LANE_CONTROL, new byte[]{ 0x13 }, 0, 1 );
+		queue.offer( OutboundQueue.LANE_INTERACTIVE, parts( "d" ) );
+		queue.offer( OutboundQueue.LANE_BULK, parts( "e" ) );
+		assertTrue( queue.take( chunk ) );
+		assertEquals( OutboundQueue.LANE_CONTROL, chunk.lane );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "b", false );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "c", true );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "d", true );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_BULK, "e", true );
+
+		// 重み付き時も同じ
+		queue.setMode( OutboundQueue.MODE_WEIGHTED );
+		queue.offer( OutboundQueue.LANE_CONTROL, parts( "x", "y" ) );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_CONTROL, "x", false );
+		queue.offer( OutboundQueue.LANE_CONTROL, parts( "z" ) );
+		queue.offer( OutboundQueue.LANE_INTERACTIVE, parts( "i" ) );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_CONTROL, "y", true );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_CONTROL, "z", true );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "i", true );
+	}
+
+	@Test
+	public void largeInteractiveFrameIsSplitIntoChunks() throws Exception
+	{
+		// 大きな対話データも、チャンクの区切りで制御データが割り込み、続きは順番どおりに取り出す
+		OutboundQueue queue = new OutboundQueue();
+		queue.setChunkSize( 4 );
+		queue.offer( OutboundQueue.LANE_INTERACTIVE, parts( "HD", "0123456789" ) );
+		OutboundQueue.Chunk chunk = new OutboundQueue.Chunk();
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "HD", false );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "0123", false );
+		queue.offer( OutboundQueue.LANE_CONTROL, parts( "x", "y" ) );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_CONTROL, "x", false );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_CONTROL, "y", true );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "4567", false );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_INTERACTIVE, "89", true );
+		assertEquals( 0, queue.getQueuedBytes( OutboundQueue.LANE_INTERACTIVE ) );
+	}
+
+	@Test
+	public void bulkFrameIsPreemptedBetweenParts() throws Exception
+	{
+		// 大量データレーンの送信データは、途中に制御データが割り込む
+		OutboundQueue queue = new OutboundQueue();
+		queue.offer( OutboundQueue.LANE_BULK, parts( "a", "b" ) );
+		OutboundQueue.Chunk chunk = new OutboundQueue.Chunk();
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_BULK, "a", false );
+		queue.offer( OutboundQueue.LANE_CONTROL, parts( "c" ) );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_CONTROL, "c", true );
+		assertTrue( queue.take( chunk ) );
+		assertChunk( chunk, OutboundQueue.LANE_BULK, "b", true );
+	}
+
+	@Test
+	public void emptyPartsAreSkipped() throws Exception
+	{
+		OutboundQueue queue = new OutboundQueue();
+		queue.offer( OutboundQueue.LANE_INTERACTIVE, parts( "", "ab", "", "", "c", "" ) );
+		assertEquals( "abc", new String( drain( queue, 2 ) ) );
+
+		// 全部が空の送信データは、長さ0のチャンク１つで終わる
+		queue.offer( OutboundQueue.LANE_INTERACTIVE, parts( "", "" ) );
+		OutboundQueue.Chunk chunk = new OutboundQueue.Chunk();
+		assertTrue( queue.take( chunk ) );
+		assertEquals( 0, chunk.length );
+		assertTrue( chunk.last );
+	}
+
+	private static ByteBuffer[] parts( String... strings )
+	{
+		ByteBuffer[] buffers = new ByteBuffer[strings.length];
+		for( int i = 0; i < strings.length; i++ )
+		{
+			buffers[i] = ByteBuffer.wrap( strings[i].getBytes() );
+		}
+		return buffers;
+	}
+
+	private static void assertChunk( OutboundQueue.Chunk chunk, int lane, String expected, boolean last )
+	{
+		assertEquals( lane, chunk.lane );
+		assertEquals( expected, new String( chunk.buffer.array(), chunk.buffer.arrayOffset() + chunk.position, chunk.length ) );
+		assertEquals( last, chunk.last );
+	}
+
+	// 送信データ１つ分のチャンクを取り出して、送信される内容を返す（チャンクの数も確かめる）
+	private static byte[] drain( OutboundQueue queue, int expectedChunks ) throws InterruptedException
+	{
+		ByteArrayOutputStream out    = new ByteArrayOutputStream();
+		OutboundQueue.Chunk   chunk  = new OutboundQueue.Chunk();
+		int                   chunks = 0;
+		do
+		{
+			assertTrue( queue.take( chunk ) );
+			out.write( chunk.buffer.array(), chunk.buffer.arrayOffset() + chunk.position, chunk.length );
+			chunks++;
+		}
+		while( !chunk.last );
+		assertEquals( expectedChunks, chunks );
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+import static org.junit.Assert.*;
+
+// ReceiveRingの試験（折り返し、待ち方ごとの受け渡し、終了）と、リングバッファーでの受信の、ストリームの終わりの扱い
+public class ReceiveRingTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS = 10000;
+	private static final int  TRANSFER_BYTES = 256 * 1024;
+
+	// 読むと、指定したデータの後に、ストリームの終わり（-1）を返し続ける通信路
+	private static final class EndOfStreamTransport implements Transport
+	{
+		private final InputStream  mInput;
+		private final OutputStream mOutput = new ByteArrayOutputStream();
+
+		EndOfStreamTransport( byte[] data )
+		{
+			mInput = new ByteArrayInputStream( data );
+		}
+
+		@Override
+		public void open()
+		{
+		}
+
+		@Override
+		public void prepareConnect()
+		{
+		}
+
+		@Override
+		public void connect()
+		{
+		}
+
+		@Override
+		public InputStream getInputStream()
+		{
+			return mInput;
+		}
+
+		@Override
+		public OutputStream getOutputStream()
+		{
+			return mOutput;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	@Test
+	public void capacityIsRoundedUpToPowerOfTwo()
+	{
+		assertEquals( 16, new ReceiveRing( 10, ReceiveRing.WAIT_BLOCKING ).getCapacity() );
+		assertEquals( 16, new ReceiveRing( 16, ReceiveRing.WAIT_BLOCKING ).getCapacity() );
+		try
+		{
+			new ReceiveRing( ByteBuffer.allocate( 10 ), ReceiveRing.WAIT_BLOCKING );
+			fail();
+		}
+		catch( IllegalArgumentException e )
+		{
+			;    // ２のべき乗でない
+		}
+	}
+
+	@Test
+	public void heapRingWrapsAround() throws Exception
+	{
+		wrapAround( new ReceiveRing( 16, ReceiveRing.WAIT_BLOCKING ) );
+	}
+
+	@Test
+	public void directRingWrapsAround() throws Exception
+	{
+		ReceiveRing ring = new ReceiveRing( ByteBuffer.allocateDirect( 16 ), ReceiveRing.WAIT_BLOCKING );
+		assertTrue( ring.isDirect() );
+		wrapAround( ring );
+	}
+
+	// 書き込める領域も、読める範囲も、バッファーの終わりで区切られ、先頭から続く
+	private static void wrapAround( ReceiveRing ring ) throws Exception
+	{
+		assertEquals( 16, ring.awaitWritable() );
+		write( ring, 0, 10 );
+		assertEquals( 10, ring.await() );
+		assertBytes( ring.peek(), 0, 10 );
+		ring.advance( 10 );
+		assertEquals( 0, ring.available() );
+
+		assertEquals( 6, ring.awaitWritable() );    // 終わりまで
+		write( ring, 10, 6 );
+		assertEquals( 10, ring.awaitWritable() );    // 先頭から、読んでいない分の手前まで
+		write( ring, 16, 10 );
+		assertEquals( 16, ring.available() );    // 一杯（書き込み側は、awaitWritable()で空きを待つ）
+		assertBytes( ring.peek(), 10, 6 );
+		ring.advance( 6 );
+		assertBytes( ring.peek(), 16, 10 );
+		ring.advance( 4 );
+		assertBytes( ring.peek(), 20, 6 );
+		ring.advance( 6 );
+		assertEquals( 0, ring.available() );
+		assertEquals( 0, ring.peek().remaining() );
+	}
+
+	@Test( timeout = 60000 )
+	public void blockingTransfersAllBytesInOrder() throws Exception
+	{
+		transfer( new ReceiveRing( 1024, ReceiveRing.WAIT_BLOCKING ) );
+		transfer( new ReceiveRing( ByteBuffer.allocateDirect( 1024 ), ReceiveRing.WAIT_BLOCKING ) );
+	}
+
+	@Test( timeout = 60000 )
+	public void yieldingTransfersAllBytesInOrder() throws Exception
+	{
+		transfer( new ReceiveRing( 1024, ReceiveRing.WAIT_YIELDING ) );
+	}
+
+	@Test( timeout = 60000 )
+	public void busySpinTransfersAllBytesInOrder() throws Exception
+	{
+		transfer( new ReceiveRing( 1024, ReceiveRing.WAIT_BUSYSPIN ) );
+	}
+
+	// 書き込み側のスレッドから、大きさを変えながら書き込み、読み込み側で順番通りに全部読めること
+	private static void transfer( final ReceiveRing ring ) throws Exception
+	{
+		final AtomicReference<Throwable> failure  = new AtomicReference<Throwable>();
+		Thread                           producer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					int written = 0;
+					int size    = 1;
+					while( TRANSFER_BYTES > written )
+					{
+						int length = ring.awaitWritable();
+						assertTrue( 0 < length );
+						length = Math.min( Math.min( length, size ), TRANSFER_BYTES - written );
+						write( ring, written, length );
+						written += length;
+						size = size % 300 + 7;    // 容量より小さい大きさを、順番に変える
+					}
+					ring.close();
+				}
+				catch( Throwable e )
+				{
+					failure.set( e );
+					ring.close();
+				}
+			}
+		}, "ReceiveRingTest-Producer" );
+		producer.start();
+
+		int read = 0;
+		int available;
+		while( 0 <= ( available = ring.await() ) )
+		{
+			assertTrue( 0 < available );
+			ByteBuffer slice = ring.peek();
+			int        count = slice.remaining();
+			assertTrue( 0 < count && count <= available );
+			assertBytes( slice, read, count );
+			ring.advance( count );
+			read += count;
+		}
+		producer.join( TIMEOUT_MILLIS );
+		assertNull( failure.get() );
+		assertEquals( TRANSFER_BYTES, read );
+	}
+
+	@Test( timeout = 30000 )
+	public void closeWakesBlockedConsumerAfterRemainingData() throws Exception
+	{
+		final ReceiveRing ring = new ReceiveRing( 16, ReceiveRing.WAIT_BLOCKING );
+		write( ring, 0, 4 );
+		Thread closer = closeLater( ring );
+		assertEquals( 4, ring.await() );    // 閉じられても、残りは読める
+		assertBytes( ring.peek(), 0, 4 );
+		ring.advance( 4 );
+		assertEquals( -1, ring.await() );    // 閉じられるまで待って、-1
+		assertTrue( ring.isClosed() );
+		closer.join( TIMEOUT_MILLIS );
+	}
+
+	@Test( timeout = 30000 )
+	public void closeWakesBlockedProducer() throws Exception
+	{
+		final ReceiveRing ring = new ReceiveRing( 16, ReceiveRing.WAIT_BLOCKING );
+		write( ring, 0, 16 );
+		Thread closer = closeLater( ring );
+		assertEquals( 0, ring.awaitWritable() );    // 一杯で待っていても、閉じられたら0
+		closer.join( TIMEOUT_MILLIS );
+	}
+
+	@Test( timeout = 30000 )
+	public void awaitIsInterruptible() throws Exception
+	{
+		for( int waitStrategy : new int[]{ ReceiveRing.WAIT_BLOCKING, ReceiveRing.WAIT_YIELDING, ReceiveRing.WAIT_BUSYSPIN } )
+		{
+			ReceiveRing ring = new ReceiveRing( 16, waitStrategy );
+			Thread.currentThread().interrupt();
+			try
+			{
+				ring.await();
+				fail( "wait strategy " + waitStrategy );
+			}
+			catch( InterruptedException e )
+			{
+				assertFalse( Thread.interrupted() );
+			}
+		}
+	}
+
+	@Test( timeout = 30000 )
+	public void endOfStreamIsConnectionLost() throws Exception
+	{
+		// 以前は、read()の-1を読み捨てて、接続済みのまま回り続けていた
+		byte[]           data    = "hello".getBytes();
+		ReceiveRing      ring    = new ReceiveRing( 16, ReceiveRing.WAIT_BLOCKING );
+		BluetoothService service = new BluetoothService( null, null, new EndOfStreamTransport( data ), new ConnectionScheduler.ThreadPerConnection() );
+		StateRecorder    states  = new StateRecorder();
+		service.addStateListener( states );
+		service.setReceiveRing( ring );
+		service.connect();
+		assertTrue( states.await( BluetoothService.STATE_DISCONNECTED, TIMEOUT_MILLIS ) );
+		assertArrayEquals( new int[]{ BluetoothService.STATE_CONNECT_START,
+									  BluetoothService.STATE_CONNECTED,
+									  BluetoothService.STATE_CONNECTION_LOST,
+									  BluetoothService.STATE_DISCONNECTED }, states.getStates() );
+		assertEquals( data.length, service.getBytesReceived() );
+
+		// 受信したデータを読んだ後に、終わりになる
+		assertEquals( data.length, ring.await() );
+		ByteBuffer slice    = ring.peek();
+		byte[]     received = new byte[slice.remaining()];
+		slice.get( received );
+		assertArrayEquals( data, received );
+		ring.advance( received.length );
+		assertEquals( -1, ring.await() );
+
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( service.isRunning() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertFalse( service.isRunning() );
+	}
+
+	// 少し待ってから閉じる（待っている側が、閉じられたことで起きることの確認用）
+	private static Thread closeLater( final ReceiveRing ring )
+	{
+		Thread thread = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep( 100 );
+				}
+				catch( InterruptedException e )
+				{
+					;    // そのまま閉じる
+				}
+				ring.close();
+			}
+		}, "ReceiveRingTest-Closer" );
+		thread.start();
+		return thread;
+	}
+
+	// 書き込み側の書き込み（値は、通算の位置の下位８ビット）。受信処理と同じく、ダイレクトバッファーはput()を使う。
+	private static void write( ReceiveRing ring, int start, int length )
+	{
+		byte[] buf;
+		int    offset;
+		if( ring.isDirect() )
+		{
+			buf = new byte[length];
+			offset = 0;
+		}
+		else
+		{
+			buf = ring.getWriteArray();
+			offset = ring.getWriteOffset();
+		}
+		for( int i = 0; i < length; i++ )
+		{
+			buf[offset + i] = (byte)( start + i );
+		}
+		if( ring.isDirect() )
+		{
+			ring.put( buf, 0, length );
+		}
+		ring.publish( length );
+	}
+
+	private static void assertBytes( ByteBuffer slice, int start, int length )
+	{
+		assertEquals( length, slice.remaining() );
+		for( int i = 0; i < length; i++ )
+		{
+			assertEquals( "byte " + ( start + i ), (byte)( start + i ), slice.get( slice.position() + i ) );
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+// SimulatedTransportの試験（割り込まれた読み書きが回り続けないこと、close()で終わること）
+public class SimulatedTransportTest
+{
+	// 定数
+	private static final long TIMEOUT_MILLIS = 5000;
+	private static final long WAIT_MILLIS    = 300;    // 割り込んだ後、CPU使用時間を計る時間
+	private static final long MAX_CPU_MILLIS = 100;    // 回り続けていれば、WAIT_MILLIS近くになる
+
+	// 読み書きで待っているスレッド（終了時の例外と、割り込み状態を記録する）
+	private static abstract class Blocked extends Thread
+	{
+		final AtomicReference<Throwable> failure     = new AtomicReference<Throwable>();
+		final AtomicBoolean              interrupted = new AtomicBoolean();
+
+		abstract void block() throws IOException;
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				block();
+			}
+			catch( Throwable e )
+			{
+				failure.set( e );
+			}
+			interrupted.set( Thread.currentThread().isInterrupted() );
+		}
+	}
+
+	@Test( timeout = 30000 )
+	public void interruptedPeerReadDoesNotSpinAndEndsOnClose() throws Exception
+	{
+		final SimulatedTransport transport = new SimulatedTransport( new FaultInjector( 0 ), false );
+		Blocked reader = new Blocked()
+		{
+			@Override
+			void block() throws IOException
+			{
+				transport.readPeer( new byte[16], 0, 16 );
+			}
+		};
+		assertInterruptedWaitIsQuiet( transport, reader );
+	}
+
+	@Test( timeout = 30000 )
+	public void interruptedWriteToFullPipeDoesNotSpinAndEndsOnClose() throws Exception
+	{
+		final SimulatedTransport transport = new SimulatedTransport( new FaultInjector( 0 ), false, 8 );
+		Blocked writer = new Blocked()
+		{
+			@Override
+			void block() throws IOException
+			{
+				transport.writePeer( new byte[16], 0, 16 );    // 容量を超えるので、空きを待つ
+			}
+		};
+		assertInterruptedWaitIsQuiet( transport, writer );
+	}
+
+	@Test( timeout = 30000 )
+	public void interruptDoesNotAbortWaitingRead() throws Exception
+	{
+		// 割り込まれても、データが来れば読める（割り込み状態は、読んだ後に戻る）
+		final SimulatedTransport transport = new SimulatedTransport( new FaultInjector( 0 ), false );
+		final byte[]             buf       = new byte[4];
+		final int[]              count     = new int[1];
+		Blocked reader = new Blocked()
+		{
+			@Override
+			void block() throws IOException
+			{
+				count[0] = transport.readPeer( buf, 0, buf.length );
+			}
+		};
+		reader.start();
+		awaitWaiting( reader );
+		reader.interrupt();
+		Thread.sleep( 50 );
+		assertTrue( reader.isAlive() );
+
+		transport.connect();
+		transport.getOutputStream().write( new byte[]{ 1, 2, 3 } );
+		reader.join( TIMEOUT_MILLIS );
+		assertFalse( reader.isAlive() );
+		assertNull( reader.failure.get() );
+		assertEquals( 3, count[0] );
+		assertTrue( reader.interrupted.get() );
+		transport.close();
+	}
+
+	private static void assertInterruptedWaitIsQuiet( final SimulatedTransport transport, Blocked blocked ) throws Exception
+	{
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue( threadMXBean.isThreadCpuTimeSupported() );
+		threadMXBean.setThreadCpuTimeEnabled( true );
+
+		blocked.start();
+		awaitWaiting( blocked );
+		blocked.interrupt();
+		long cpuBefore = threadMXBean.getThreadCpuTime( blocked.getId() );
+		Thread.sleep( WAIT_MILLIS );
+		long cpuMillis = ( threadMXBean.getThreadCpuTime( blocked.getId() ) - cpuBefore ) / 1000000L;
+		assertTrue( "cpu " + cpuMillis + "ms while interrupted", MAX_CPU_MILLIS > cpuMillis );
+		assertTrue( blocked.isAlive() );
+
+		// close()で、待っているスレッドがIOExceptionで終わる（割り込み状態は戻っている）
+		Thread closer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					transport.close();
+				}
+				catch( IOException e )
+				{
+					;    // SimulatedTransportでは発生しない
+				}
+			}
+		} );
+		closer.start();
+		closer.join( TIMEOUT_MILLIS );
+		assertFalse( "close() did not return", closer.isAlive() );
+		blocked.join( TIMEOUT_MILLIS );
+		assertFalse( blocked.isAlive() );
+		assertTrue( blocked.failure.get() instanceof IOException );
+		assertTrue( blocked.interrupted.get() );
+	}
+
+	// スレッドがwait()で待つまで待つ
+	private static void awaitWaiting( Thread thread ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while( Thread.State.WAITING != thread.getState() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 1 );
+		}
+		assertEquals( Thread.State.WAITING, thread.getState() );
+	}
+}
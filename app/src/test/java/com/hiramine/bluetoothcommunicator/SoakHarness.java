@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+// 耐久試験（接続、送受信、切断 を多数の接続で並行して繰り返す）
+// 通信路はSimulatedTransport（折り返しモード）で、状態変化はStateListenerで受け取るので、Bluetoothデバイスも、Androidの実行環境も不要。
+// 障害の発生は乱数の種で決まるので、同じ種で実行すれば、同じ障害を再現できる。
+// 次のことを確認する。
+// ・スレッドのリーク（切断後も終わらない接続時処理、スレッド）
+// ・データの欠落（障害を注入しなかった接続で、送信したのに受信できなかった行）
+// ・時間経過による性能低下（接続の通し番号ごとに区切ったスループット）
+// ・状態変化の通知の順番（遷移した順番に通知されること）
+public class SoakHarness
+{
+	// 結果
+	public static final class Result
+	{
+		public int      cycles;    // 実行した接続数
+		public int      connectFailures;    // 接続できなかった数
+		public int      faultedCycles;    // 障害を注入した接続の数
+		public int      stuckDisconnects;    // 時間内に切断完了しなかった数
+		public long     framesSent;
+		public long     framesReceived;
+		public long     framesLost;    // 障害を注入しなかった接続での欠落数（0であるべき）
+		public long     framesOutOfOrder;    // 順番が飛んだ、または重複した行の数（0であるべき）
+		public int      stateOrderViolations;    // 遷移の順番どおりに通知されなかった状態変化の数（0であるべき）
+		public int      leakedConnections;    // 接続時処理が終わらなかった接続の数（0であるべき）
+		public int      leakedThreads;    // 試験後に残っている接続用スレッドの数（ThreadPerConnectionの場合。0であるべき）
+		public double[] throughput;    // 区間ごとのスループット[bytes/s]（障害を注入しなかった接続のみ）
+
+		@Override
+		public String toString()
+		{
+			StringBuilder builder = new StringBuilder();
+			builder.append( "cycles=" ).append( cycles )
+				   .append( ", connectFailures=" ).append( connectFailures )
+				   .append( ", faultedCycles=" ).append( faultedCycles )
+				   .append( ", stuckDisconnects=" ).append( stuckDisconnects )
+				   .append( ", framesSent=" ).append( framesSent )
+				   .append( ", framesReceived=" ).append( framesReceived )
+				   .append( ", framesLost=" ).append( framesLost )
+				   .append( ", framesOutOfOrder=" ).append( framesOutOfOrder )
+				   .append( ", stateOrderViolations=" ).append( stateOrderViolations )
+				   .append( ", leakedConnections=" ).append( leakedConnections )
+				   .append( ", leakedThreads=" ).append( leakedThreads )
+				   .append( ", throughput=[" );
+			for( int i = 0; i < throughput.length; i++ )
+			{
+				builder.append( ( 0 < i ) ? ", " : "" ).append( (long)throughput[i] );
+			}
+			return builder.append( "]" ).toString();
+		}
+	}
+
+	// １回分の接続（状態変化の受け取りと、受信した行の確認）
+	private static final class Cycle implements BluetoothService.StateListener, LineDecoder.LineListener
+	{
+		private int  mState            = BluetoothService.STATE_NONE;
+		private long mExpectedSequence = 0;
+		private long mReceived         = 0;
+		private long mOutOfOrder       = 0;
+		private int  mOrderViolations  = 0;
+
+		// 状態変化（状態を変えたスレッドか、通知中のスレッドから呼ばれる）
+		// 許される遷移では、状態の値は必ず増えるので、増えていなければ通知の順番の誤り。
+		@Override
+		public synchronized void onStateChange( BluetoothService service, int state )
+		{
+			if( state <= mState )
+			{
+				mOrderViolations++;
+			}
+			mState = state;
+			notifyAll();
+		}
+
+		// 行の確認（受信処理のスレッドから呼ばれる）
+		@Override
+		public synchronized void onLine( byte[] line, int length )
+		{
+			long sequence = (long)NumberParser.parseDouble( line, 0, length );
+			if( sequence == mExpectedSequence )
+			{
+				mReceived++;
+			}
+			else
+			{
+				mOutOfOrder++;
+			}
+			mExpectedSequence = sequence + 1;
+			notifyAll();
+		}
+
+		// 接続完了か、切断完了まで待つ
+		synchronized int waitConnected( long timeoutMillis ) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while( BluetoothService.STATE_CONNECTED != mState && BluetoothService.STATE_DISCONNECTED != mState )
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if( 0 >= remaining )
+				{
+					break;
+				}
+				wait( remaining );
+			}
+			return mState;
+		}
+
+		// 全部受信するか、切断完了まで待つ
+		synchronized void waitReceived( long frames, long timeoutMillis ) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while( mReceived + mOutOfOrder < frames && BluetoothService.STATE_DISCONNECTED != mState )
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if( 0 >= remaining )
+				{
+					break;
+				}
+				wait( remaining );
+			}
+		}
+
+		// 切断完了まで待つ
+		synchronized boolean waitDisconnected( long timeoutMillis ) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while( BluetoothService.STATE_DISCONNECTED != mState )
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if( 0 >= remaining )
+				{
+					return false;
+				}
+				wait( remaining );
+			}
+			return true;
+		}
+	}
+
+	// 定数
+	private static final String THREADNAME_PREFIX = "BluetoothService-Connection-";    // ThreadPerConnectionのスレッド名
+	private static final int    THROUGHPUT_BUCKETS = 10;
+
+	// メンバー変数
+	private final FaultInjector       mFaultInjector;
+	private final ConnectionScheduler mScheduler;
+	private final int                 mConcurrency;
+	private final int                 mCycles;
+	private final int                 mFramesPerCycle;
+	private       long                mTimeoutMillis = 10000;
+
+	private final Result mResult = new Result();
+	private final long[] mBucketBytes = new long[THROUGHPUT_BUCKETS];
+	private final long[] mBucketNanos = new long[THROUGHPUT_BUCKETS];
+
+	// コンストラクタ
+	public SoakHarness( FaultInjector faultInjector, ConnectionScheduler scheduler, int concurrency, int cycles, int framesPerCycle )
+	{
+		mFaultInjector = faultInjector;
+		mScheduler = scheduler;
+		mConcurrency = concurrency;
+		mCycles = cycles;
+		mFramesPerCycle = framesPerCycle;
+	}
+
+	// 各段階の待ち時間の上限の設定
+	public void setTimeoutMillis( long timeoutMillis )
+	{
+		mTimeoutMillis = timeoutMillis;
+	}
+
+	// 実行（すべての接続が終わるまで戻らない）
+	public Result run() throws InterruptedException
+	{
+		int threadsBefore = countConnectionThreads();
+
+		final AtomicInteger nextCycle = new AtomicInteger();
+		ExecutorService executorService = Executors.newFixedThreadPool( mConcurrency );
+		for( int i = 0; i < mConcurrency; i++ )
+		{
+			executorService.execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int index;
+					while( mCycles > ( index = nextCycle.getAndIncrement() ) )
+					{
+						try
+						{
+							runCycle( index );
+						}
+						catch( InterruptedException e )
+						{
+							Thread.currentThread().interrupt();
+							return;
+						}
+					}
+				}
+			} );
+		}
+		executorService.shutdown();
+		while( !executorService.awaitTermination( 1, TimeUnit.SECONDS ) )
+		{
+			;    // 全接続の終了待ち
+		}
+
+		// 接続用スレッドが終わるのを少し待ってから数える
+		long deadline = System.currentTimeMillis() + mTimeoutMillis;
+		int  leaked   = countConnectionThreads() - threadsBefore;
+		while( 0 < leaked && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 100 );
+			leaked = countConnectionThreads() - threadsBefore;
+		}
+
+		synchronized( mResult )
+		{
+			mResult.leakedThreads = Math.max( 0, leaked );
+			mResult.throughput = new double[THROUGHPUT_BUCKETS];
+			for( int i = 0; i < THROUGHPUT_BUCKETS; i++ )
+			{
+				mResult.throughput[i] = ( 0 < mBucketNanos[i] ) ? mBucketBytes[i] * 1e9 / mBucketNanos[i] : 0;
+			}
+			return mResult;
+		}
+	}
+
+	// １回分の接続、送受信、切断
+	private void runCycle( int index ) throws InterruptedException
+	{
+		FaultInjector      faultInjector = mFaultInjector.derive( index );
+		SimulatedTransport transport     = new SimulatedTransport( faultInjector, true );
+		Cycle              cycle         = new Cycle();
+		BluetoothService   service       = new BluetoothService( null, null, transport, mScheduler );
+		LineDecoder        lineDecoder   = new LineDecoder();
+		service.addStateListener( cycle );
+		lineDecoder.addLineListener( cycle );
+		service.addReceiveListener( lineDecoder );
+
+		// 接続
+		service.connect();
+		if( BluetoothService.STATE_CONNECTED != cycle.waitConnected( mTimeoutMillis ) )
+		{
+			synchronized( mResult )
+			{
+				mResult.cycles++;
+				mResult.connectFailures++;
+			}
+			finishCycle( service, cycle );
+			synchronized( cycle )
+			{
+				synchronized( mResult )
+				{
+					mResult.stateOrderViolations += cycle.mOrderViolations;
+				}
+			}
+			return;
+		}
+
+		// 送受信（折り返しなので、送信した行がそのまま受信される）
+		long startNanos = System.nanoTime();
+		long bytes      = 0;
+		for( int sequence = 0; sequence < mFramesPerCycle; sequence++ )
+		{
+			byte[] frame = ( sequence + "\r\n" ).getBytes();
+			service.write( frame );
+			bytes += frame.length;
+		}
+		cycle.waitReceived( mFramesPerCycle, mTimeoutMillis );
+		long elapsedNanos = System.nanoTime() - startNanos;
+
+		// 切断
+		service.disconnect();
+		finishCycle( service, cycle );
+
+		boolean faulted = ( 0 < faultInjector.getInjectedFaultCount() );
+		synchronized( cycle )
+		{
+			synchronized( mResult )
+			{
+				mResult.cycles++;
+				mResult.framesSent += mFramesPerCycle;
+				mResult.framesReceived += cycle.mReceived;
+				mResult.framesOutOfOrder += cycle.mOutOfOrder;
+				mResult.stateOrderViolations += cycle.mOrderViolations;
+				if( faulted )
+				{
+					mResult.faultedCycles++;
+				}
+				else
+				{
+					mResult.framesLost += mFramesPerCycle - cycle.mReceived;
+					int bucket = (int)( (long)index * THROUGHPUT_BUCKETS / mCycles );
+					mBucketBytes[bucket] += bytes;
+					mBucketNanos[bucket] += elapsedNanos;
+				}
+			}
+		}
+	}
+
+	// 切断完了と、接続時処理の終了を待つ
+	private void finishCycle( BluetoothService service, Cycle cycle ) throws InterruptedException
+	{
+		boolean disconnected = cycle.waitDisconnected( mTimeoutMillis );
+		long    deadline     = System.currentTimeMillis() + mTimeoutMillis;
+		while( service.isRunning() && System.currentTimeMillis() < deadline )
+		{
+			Thread.sleep( 10 );
+		}
+		synchronized( mResult )
+		{
+			if( !disconnected )
+			{
+				mResult.stuckDisconnects++;
+			}
+			if( service.isRunning() )
+			{
+				mResult.leakedConnections++;
+			}
+		}
+	}
+
+	// 接続用スレッド（ThreadPerConnectionのスレッド）の数
+	private static int countConnectionThreads()
+	{
+		int count = 0;
+		for( Thread thread : Thread.getAllStackTraces().keySet() )
+		{
+			if( thread.isAlive() && thread.getName().startsWith( THREADNAME_PREFIX ) )
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+}
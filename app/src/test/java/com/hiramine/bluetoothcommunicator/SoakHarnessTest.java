@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import static org.junit.Assert.*;
+
+// 耐久試験（SoakHarness）の実行と、リーク、データの欠落、性能低下の確認
+// 既定の単体試験では、周回数を減らして確認だけを行う。本来の周回数での実行と結果の出力は、性能計測の試験（Benchmark）で行う。
+public class SoakHarnessTest
+{
+	// 定数
+	private static final int CONCURRENCY      = 8;
+	private static final int CYCLES           = 40;    // 既定の単体試験での周回数
+	private static final int SOAK_CYCLES      = 200;    // 耐久試験としての周回数
+	private static final int FRAMES_PER_CYCLE = 100;
+
+	@Test
+	public void noLeaksOrLostFramesWithoutFaults() throws Exception
+	{
+		runWithoutFaults( CYCLES );
+	}
+
+	@Test
+	public void noLeaksOrLostFramesWithFaults() throws Exception
+	{
+		runWithFaults( CYCLES );
+	}
+
+	@Test
+	public void noLeaksWithSharedExecutor() throws Exception
+	{
+		runWithSharedExecutor( CYCLES );
+	}
+
+	@Test
+	@Category( Benchmark.class )
+	public void soak() throws Exception
+	{
+		System.out.println( "no faults : " + runWithoutFaults( SOAK_CYCLES ) );
+		System.out.println( "shared executor : " + runWithSharedExecutor( SOAK_CYCLES ) );
+		System.out.println( "faults : " + runWithFaults( SOAK_CYCLES ) );
+	}
+
+	private static SoakHarness.Result runWithoutFaults( int cycles ) throws Exception
+	{
+		SoakHarness.Result result = new SoakHarness( new FaultInjector( 1 ), new ConnectionScheduler.ThreadPerConnection(), CONCURRENCY, cycles, FRAMES_PER_CYCLE ).run();
+		assertEquals( cycles, result.cycles );
+		assertEquals( 0, result.connectFailures );
+		assertEquals( 0, result.faultedCycles );
+		assertEquals( (long)cycles * FRAMES_PER_CYCLE, result.framesReceived );
+		assertHealthy( result );
+		assertNoDegradation( result );
+		return result;
+	}
+
+	private static SoakHarness.Result runWithFaults( int cycles ) throws Exception
+	{
+		FaultInjector faultInjector = new FaultInjector( 42 );
+		faultInjector.setMaxReadFragment( 7 );
+		faultInjector.setConnectFailProbability( 0.05 );
+		faultInjector.setIOExceptionProbability( 0.002 );
+		faultInjector.setHangProbability( 0.001 );
+		faultInjector.setPartialWriteProbability( 0.001 );
+		SoakHarness harness = new SoakHarness( faultInjector, new ConnectionScheduler.ThreadPerConnection(), CONCURRENCY, cycles, FRAMES_PER_CYCLE );
+		harness.setTimeoutMillis( 2000 );    // ハングを注入した接続は、この時間だけ待たされる
+		SoakHarness.Result result = harness.run();
+		assertEquals( cycles, result.cycles );
+		assertTrue( 0 < result.connectFailures + result.faultedCycles );    // 障害が注入されていること
+		assertHealthy( result );    // 性能低下は調べない（区間ごとの障害のない接続が少なく、スループットのばらつきが大きい）
+		return result;
+	}
+
+	private static SoakHarness.Result runWithSharedExecutor( int cycles ) throws Exception
+	{
+		ConnectionScheduler.SharedExecutor scheduler = new ConnectionScheduler.SharedExecutor( 2 * CONCURRENCY );
+		SoakHarness.Result result = new SoakHarness( new FaultInjector( 7 ), scheduler, CONCURRENCY, cycles, FRAMES_PER_CYCLE ).run();
+		scheduler.shutdown();
+		assertEquals( 0, result.connectFailures );    // 接続数に見合った大きさなので、拒否されない
+		assertHealthy( result );
+		assertNoDegradation( result );
+		assertEquals( 0, scheduler.getRunningTasks() );
+		return result;
+	}
+
+	private static void assertHealthy( SoakHarness.Result result )
+	{
+		assertEquals( 0, result.stuckDisconnects );
+		assertEquals( 0, result.leakedConnections );
+		assertEquals( 0, result.leakedThreads );
+		assertEquals( 0, result.framesLost );
+		assertEquals( 0, result.framesOutOfOrder );
+		assertEquals( 0, result.stateOrderViolations );
+	}
+
+	// 時間経過による性能低下がないこと（後半の区間のスループットが、前半の半分を下回らない）
+	// （前半はJITのウォームアップを含むので、低下していなければ後半の方が速い）
+	private static void assertNoDegradation( SoakHarness.Result result )
+	{
+		double firstHalf  = 0;
+		double secondHalf = 0;
+		int    half       = result.throughput.length / 2;
+		for( int i = 0; i < half; i++ )
+		{
+			firstHalf += result.throughput[i];
+			secondHalf += result.throughput[half + i];
+		}
+		assertTrue( "throughput degraded : " + result, secondHalf >= firstHalf * 0.5 );
+	}
+}
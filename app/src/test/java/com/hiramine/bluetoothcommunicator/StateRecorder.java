@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import java.util.ArrayList;
+
+import com.hiramine.bluetoothcommunicator.MainActivity.BluetoothService;
+
+// 状態変化の記録（試験用。状態変化は、状態を変えたスレッドから呼ばれる）
+class StateRecorder implements BluetoothService.StateListener
+{
+	private final ArrayList<Integer> mStates = new ArrayList<Integer>();
+
+	@Override
+	public synchronized void onStateChange( BluetoothService service, int state )
+	{
+		mStates.add( state );
+		notifyAll();
+	}
+
+	// 状態が通知されるまで待つ。戻り値は、時間内に通知されたかどうか。
+	public synchronized boolean await( int state, long timeoutMillis ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while( !mStates.contains( state ) )
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if( 0 >= remaining )
+			{
+				return false;
+			}
+			wait( remaining );
+		}
+		return true;
+	}
+
+	// 通知された状態（通知された順）
+	public synchronized int[] getStates()
+	{
+		int[] states = new int[mStates.size()];
+		for( int i = 0; i < states.length; i++ )
+		{
+			states[i] = mStates.get( i );
+		}
+		return states;
+	}
+}
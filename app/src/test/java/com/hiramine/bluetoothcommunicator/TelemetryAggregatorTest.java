@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+// TelemetryAggregatorの試験（集計、数値でない行の除外、別スレッドからのadvance()、定常状態での割り当て）
+public class TelemetryAggregatorTest
+{
+	// 窓ごとの集計結果の記録（フィールド0のみ）
+	private static final class Recorder implements TelemetryAggregator.WindowListener
+	{
+		final ArrayList<double[]> windows = new ArrayList<double[]>();    // { 開始時刻, フィールド数, 最小, 最大, 平均, 最終値 }
+
+		@Override
+		public void onWindow( long windowStartMillis, int fieldCount, double[] min, double[] max, double[] mean, double[] last )
+		{
+			windows.add( new double[]{ windowStartMillis, fieldCount, min[0], max[0], mean[0], last[0] } );
+		}
+	}
+
+	private static void feed( TelemetryAggregator aggregator, String line, long nowMillis )
+	{
+		byte[] bytes = line.getBytes();
+		aggregator.onLine( bytes, bytes.length, nowMillis );
+	}
+
+	@Test
+	public void aggregatesPerWindow()
+	{
+		TelemetryAggregator aggregator = new TelemetryAggregator( 1000, 4, 8 );
+		Recorder            recorder   = new Recorder();
+		aggregator.addWindowListener( recorder );
+
+		feed( aggregator, "T=10 H=40", 1000 );
+		feed( aggregator, "T=30 H=41", 1500 );
+		feed( aggregator, "T=20 H=42", 1999 );
+		assertEquals( 0, recorder.windows.size() );
+
+		feed( aggregator, "T=5 H=43", 2000 );    // 次の窓の最初の行で、前の窓を閉じる
+		assertEquals( 1, recorder.windows.size() );
+		assertArrayEquals( new double[]{ 1000, 2, 10, 30, 20, 20 }, recorder.windows.get( 0 ), 1e-9 );
+
+		// データが来なくても、advance()で窓を閉じる
+		aggregator.advance( 3000 );
+		assertEquals( 2, recorder.windows.size() );
+		assertArrayEquals( new double[]{ 2000, 2, 5, 5, 5, 5 }, recorder.windows.get( 1 ), 1e-9 );
+
+		// 履歴
+		double[] values = new double[8];
+		long[]   times  = new long[8];
+		assertEquals( 2, aggregator.copyHistory( 1, TelemetryAggregator.SERIES_MAX, times, values ) );
+		assertEquals( 42, values[0], 1e-9 );
+		assertEquals( 43, values[1], 1e-9 );
+		assertEquals( 2000, times[1] );
+	}
+
+	@Test
+	public void skipsNonNumericLines()
+	{
+		assertTrue( TelemetryAggregator.isTelemetryLine( "12.5,3,-0.25".getBytes(), 12 ) );
+		assertTrue( TelemetryAggregator.isTelemetryLine( "T=12.5 H:40".getBytes(), 11 ) );
+		assertFalse( TelemetryAggregator.isTelemetryLine( "OK".getBytes(), 2 ) );
+		assertFalse( TelemetryAggregator.isTelemetryLine( "ERR 12".getBytes(), 6 ) );
+		assertFalse( TelemetryAggregator.isTelemetryLine( "T=".getBytes(), 2 ) );
+		assertFalse( TelemetryAggregator.isTelemetryLine( " , ".getBytes(), 3 ) );
+
+		TelemetryAggregator aggregator = new TelemetryAggregator( 1000, 4, 8 );
+		Recorder            recorder   = new Recorder();
+		aggregator.addWindowListener( recorder );
+		feed( aggregator, "ERR 12", 0 );
+		aggregator.advance( 5000 );
+		assertEquals( 0, recorder.windows.size() );    // 集計する行がなかった
+		feed( aggregator, "7", 5000 );
+		feed( aggregator, "ERR 12", 5001 );
+		aggregator.advance( 6000 );
+		assertArrayEquals( new double[]{ 5000, 1, 7, 7, 7, 7 }, recorder.windows.get( 0 ), 1e-9 );
+	}
+
+	@Test
+	public void advanceFromAnotherThreadDoesNotCorruptWindows() throws Exception
+	{
+		// 受信処理のスレッドが値1の行を集計している間に、タイマーのスレッドがadvance()で窓を閉じ続ける。
+		// 集計中にリセットされると、平均や最小値が1でなくなる。
+		final TelemetryAggregator     aggregator = new TelemetryAggregator( 1, 1, 4 );
+		final AtomicReference<String> failure    = new AtomicReference<String>();
+		final AtomicBoolean           running    = new AtomicBoolean( true );
+		aggregator.addWindowListener( new TelemetryAggregator.WindowListener()
+		{
+			@Override
+			public void onWindow( long windowStartMillis, int fieldCount, double[] min, double[] max, double[] mean, double[] last )
+			{
+				if( 1 != fieldCount || 1 != min[0] || 1 != max[0] || 1 != mean[0] || 1 != last[0] )
+				{
+					failure.compareAndSet( null, "fields=" + fieldCount + " min=" + min[0] + " max=" + max[0] + " mean=" + mean[0] );
+				}
+			}
+		} );
+		Thread timer = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while( running.get() )
+				{
+					aggregator.advance();
+				}
+			}
+		} );
+		timer.start();
+		byte[] line = "1".getBytes();
+		long   end  = System.currentTimeMillis() + 500;
+		while( System.currentTimeMillis() < end )
+		{
+			aggregator.onLine( line, line.length );
+		}
+		running.set( false );
+		timer.join();
+		assertNull( failure.get() );
+	}
+
+	@Test
+	public void steadyStateDoesNotAllocate()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue( bean instanceof com.sun.management.ThreadMXBean );
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)bean;
+		Assume.assumeTrue( threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled() );
+
+		TelemetryAggregator aggregator = new TelemetryAggregator( 100, 8, 16 );
+		aggregator.addWindowListener( new TelemetryAggregator.WindowListener()
+		{
+			@Override
+			public void onWindow( long windowStartMillis, int fieldCount, double[] min, double[] max, double[] mean, double[] last )
+			{
+				;    // 何もしない
+			}
+		} );
+		byte[][] lines = { "T=12.5 H=40 P=1013.2".getBytes(), "1,2,3,4,5,6,7,8".getBytes(), "OK".getBytes() };
+
+		// ウォームアップ（JIT）
+		long now = 0;
+		for( int i = 0; i < 200000; i++ )
+		{
+			byte[] line = lines[i % lines.length];
+			aggregator.onLine( line, line.length, now++ );
+		}
+
+		// 窓を何度も閉じながら集計する
+		long threadId = Thread.currentThread().getId();
+		long before   = threadMXBean.getThreadAllocatedBytes( threadId );
+		for( int i = 0; i < 100000; i++ )
+		{
+			byte[] line = lines[i % lines.length];
+			aggregator.onLine( line, line.length, now++ );
+		}
+		long allocated = threadMXBean.getThreadAllocatedBytes( threadId ) - before;
+		assertTrue( "allocated " + allocated + " bytes", 1024 > allocated );
+	}
+}
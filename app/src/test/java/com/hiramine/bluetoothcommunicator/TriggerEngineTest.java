@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 Nobuki HIRAMINE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hiramine.bluetoothcommunicator;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// TriggerEngineの試験と、ルール数（10、100、1000）ごとの評価速度の比較
+public class TriggerEngineTest
+{
+	// 一致したルール名の記録
+	private static final class Recorder implements TriggerEngine.TriggerListener
+	{
+		final ArrayList<String> names = new ArrayList<String>();
+		long count = 0;
+
+		@Override
+		public void onTrigger( TriggerEngine.Rule rule, byte[] line, int length )
+		{
+			names.add( rule.getName() );
+			count++;
+		}
+	}
+
+	private static Recorder evaluate( TriggerEngine engine, String... lines )
+	{
+		Recorder recorder = new Recorder();
+		engine.addTriggerListener( recorder );
+		for( String line : lines )
+		{
+			byte[] bytes = line.getBytes();
+			engine.onLine( bytes, bytes.length );
+		}
+		engine.removeTriggerListener( recorder );
+		return recorder;
+	}
+
+	@Test
+	public void parsesEachRuleType()
+	{
+		TriggerEngine.Rule rule = TriggerEngine.Rule.parse( "prefix:ERR" );
+		assertEquals( TriggerEngine.Rule.TYPE_PREFIX, rule.getType() );
+		assertEquals( "prefix:ERR", rule.getName() );
+		assertEquals( TriggerEngine.Rule.TYPE_SUBSTRING, TriggerEngine.Rule.parse( "substring:ALARM" ).getType() );
+		assertEquals( TriggerEngine.Rule.TYPE_REGEX, TriggerEngine.Rule.parse( "regex:^T[0-9]+$" ).getType() );
+		assertEquals( TriggerEngine.Rule.TYPE_THRESHOLD, TriggerEngine.Rule.parse( "threshold:TEMP=>=40" ).getType() );
+	}
+
+	@Test
+	public void rejectsMalformedRules()
+	{
+		for( String spec : new String[]{ "ERR", "unknown:ERR", "prefix:", "regex:(", "threshold:TEMP=", "threshold:TEMP=>abc", "threshold:>5",
+										   "threshold:TEMP=>NaN", "threshold:TEMP=<Infinity", "threshold:TEMP=>=-Infinity" } )
+		{
+			try
+			{
+				TriggerEngine.Rule.parse( spec );
+				fail( "accepted : " + spec );
+			}
+			catch( IllegalArgumentException e )
+			{
+				;    // 期待どおり
+			}
+		}
+	}
+
+	@Test
+	public void parseRulesSkipsBlankAndCommentLines()
+	{
+		ArrayList<TriggerEngine.Rule> rules = TriggerEngine.parseRules( "# comment\r\nprefix:ERR\n\n  substring:ALARM  \n" );
+		assertEquals( 2, rules.size() );
+		assertEquals( "prefix:ERR", rules.get( 0 ).getName() );
+		assertEquals( "substring:ALARM", rules.get( 1 ).getName() );
+	}
+
+	@Test
+	public void matchesRules()
+	{
+		TriggerEngine engine = new TriggerEngine();
+		engine.setRules( TriggerEngine.parseRules( "prefix:ERR\nsubstring:ALARM\nregex:^T[0-9]+$\nthreshold:TEMP=>=40\nthreshold:V<3.3" ) );
+
+		assertEquals( Arrays.asList( "prefix:ERR" ), evaluate( engine, "ERR 12" ).names );
+		assertEquals( 0, evaluate( engine, "NO ERR" ).count );
+		assertEquals( Arrays.asList( "substring:ALARM" ), evaluate( engine, "X ALARM ALARM" ).names );    // １行で１回
+		assertEquals( Arrays.asList( "regex:^T[0-9]+$" ), evaluate( engine, "T42" ).names );
+		assertEquals( Arrays.asList( "threshold:TEMP=>=40" ), evaluate( engine, "TEMP= 40.0" ).names );
+		assertEquals( 0, evaluate( engine, "TEMP=39.9" ).count );
+		assertEquals( Arrays.asList( "threshold:V<3.3" ), evaluate( engine, "V3.1" ).names );
+	}
+
+	@Test
+	public void regexMatchesOnlyCurrentLine()
+	{
+		// 照合用の文字バッファーは使い回すので、前の長い行の残りが見えないこと
+		TriggerEngine engine = new TriggerEngine();
+		engine.setRules( TriggerEngine.parseRules( "regex:^T[0-9]+$\nregex:OK" ) );
+		assertEquals( Arrays.asList( "regex:^T[0-9]+$" ), evaluate( engine, "T1234567890" ).names );
+		assertEquals( Arrays.asList( "regex:^T[0-9]+$" ), evaluate( engine, "T1" ).names );
+		assertEquals( 0, evaluate( engine, "T1x" ).count );
+		assertEquals( Arrays.asList( "regex:OK" ), evaluate( engine, "T1x OK", "" ).names );
+	}
+
+	@Test
+	public void setRulesTakesEffectOnNextLine()
+	{
+		TriggerEngine engine = new TriggerEngine();
+		engine.setRules( TriggerEngine.parseRules( "prefix:A" ) );
+		assertEquals( 1, evaluate( engine, "AB" ).count );
+		engine.setRules( TriggerEngine.parseRules( "prefix:B" ) );
+		assertEquals( 1, engine.getRuleCount() );
+		assertEquals( 0, evaluate( engine, "AB" ).count );
+		assertEquals( 1, evaluate( engine, "BA" ).count );
+	}
+
+	@Test
+	@Category( Benchmark.class )
+	public void benchmarkRuleCount()
+	{
+		// 受信データを模した行（キー=値 をいくつか並べたもの）
+		Random   random = new Random( 1 );
+		byte[][] lines  = new byte[1000][];
+		for( int i = 0; i < lines.length; i++ )
+		{
+			lines[i] = ( "S" + random.nextInt( 2000 ) + "=" + random.nextInt( 100 ) + " T" + random.nextInt( 2000 ) + "=" + random.nextInt( 100 ) + " OK" ).getBytes();
+		}
+
+		System.out.println( "rules, lines/s, triggers" );
+		double base = 0;
+		for( int ruleCount : new int[]{ 10, 100, 1000 } )
+		{
+			ArrayList<TriggerEngine.Rule> rules = new ArrayList<TriggerEngine.Rule>();
+			for( int i = 0; i < ruleCount; i++ )
+			{
+				switch( i % 3 )
+				{
+					case 0:
+						rules.add( TriggerEngine.Rule.prefix( "p" + i, "S" + i + "=" ) );
+						break;
+					case 1:
+						rules.add( TriggerEngine.Rule.substring( "s" + i, "T" + i + "=" ) );
+						break;
+					default:
+						rules.add( TriggerEngine.Rule.threshold( "t" + i, "S" + i + "=", TriggerEngine.Rule.COMPARE_GREATER, 50 ) );
+						break;
+				}
+			}
+			TriggerEngine engine = new TriggerEngine();
+			engine.setRules( rules );
+			Recorder recorder = new Recorder();
+			engine.addTriggerListener( recorder );
+
+			// ウォームアップ（オートマトンの構築とJIT）の後に計測
+			for( int i = 0; i < 20000; i++ )
+			{
+				byte[] line = lines[i % lines.length];
+				engine.onLine( line, line.length );
+			}
+			int  iterations = 200000;
+			long startNanos = System.nanoTime();
+			for( int i = 0; i < iterations; i++ )
+			{
+				byte[] line = lines[i % lines.length];
+				engine.onLine( line, line.length );
+			}
+			double linesPerSecond = iterations * 1e9 / ( System.nanoTime() - startNanos );
+			System.out.println( ruleCount + ", " + (long)linesPerSecond + ", " + recorder.count );
+			assertTrue( 0 < recorder.count );
+			if( 0 == base )
+			{
+				base = linesPerSecond;
+			}
+			// ルール数が100倍になっても、１行あたりのコストはほぼ変わらない（ルールを順に試す方式なら、100倍遅くなる）
+			assertTrue( ruleCount + " rules : " + (long)linesPerSecond + " lines/s", linesPerSecond > base * 0.1 );
+		}
+	}
+}